@@ -0,0 +1,82 @@
+package com.wavefront.config;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Default source, the local host name. The name is resolved once per JVM on a background thread
+ * since the lookup may hit DNS, and callers wait for it at most for a bounded time: a JVM with
+ * broken DNS reports with a fallback source rather than blocking its startup. The first answer
+ * handed out is the source for the life of the JVM, even if the host name resolves later.
+ */
+final class DefaultSource {
+  private static final Logger logger = Logger.getLogger(DefaultSource.class.getCanonicalName());
+
+  static final String FALLBACK = "wavefront-sdk-default";
+  private static final long TIMEOUT_MILLIS = 1000;
+
+  private static volatile CompletableFuture<String> hostName;
+
+  private DefaultSource() {
+  }
+
+  /**
+   * Start resolving the host name in the background, if not done already.
+   */
+  static void prefetch() {
+    resolution();
+  }
+
+  /**
+   * Returns the host name, or {@link #FALLBACK} if it cannot be resolved in time. Once the
+   * fallback has been returned, later calls return it as well.
+   */
+  static String get() {
+    CompletableFuture<String> resolution = resolution();
+    try {
+      return resolution.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      if (resolution.complete(FALLBACK)) {
+        logger.log(Level.WARNING, "Local host name not resolved within " + TIMEOUT_MILLIS +
+            "ms, using " + FALLBACK + " as source");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      resolution.complete(FALLBACK);
+    } catch (ExecutionException e) {
+      resolution.complete(FALLBACK);
+    }
+    // the resolver may have completed first, in which case its host name is kept
+    return resolution.join();
+  }
+
+  private static CompletableFuture<String> resolution() {
+    CompletableFuture<String> resolution = hostName;
+    if (resolution == null) {
+      synchronized (DefaultSource.class) {
+        resolution = hostName;
+        if (resolution == null) {
+          // completed by the resolver or with the fallback, whichever comes first
+          CompletableFuture<String> future = new CompletableFuture<>();
+          Thread resolver = new Thread(() -> {
+            try {
+              future.complete(InetAddress.getLocalHost().getHostName());
+            } catch (UnknownHostException | RuntimeException e) {
+              future.complete(FALLBACK);
+            }
+          }, "wavefront-source-resolver");
+          resolver.setDaemon(true);
+          resolver.start();
+          hostName = resolution = future;
+        }
+      }
+    }
+    return resolution;
+  }
+}
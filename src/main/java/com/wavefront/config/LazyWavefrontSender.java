@@ -0,0 +1,118 @@
+package com.wavefront.config;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * {@link WavefrontSender} constructing the actual sender when it is first used, typically by the
+ * first reporting cycle, so that resolving the proxy host or server and starting the client's
+ * threads does not happen while the application starts up. A failed construction is retried on
+ * the next use and surfaces as an {@link IOException} to the caller.
+ */
+class LazyWavefrontSender implements WavefrontSender {
+
+  private final Supplier<WavefrontSender> factory;
+  private volatile WavefrontSender delegate;
+  private volatile boolean closed = false;
+
+  LazyWavefrontSender(Supplier<WavefrontSender> factory) {
+    this.factory = factory;
+  }
+
+  private WavefrontSender delegate() throws IOException {
+    WavefrontSender sender = delegate;
+    if (sender == null) {
+      synchronized (this) {
+        sender = delegate;
+        if (sender == null) {
+          if (closed) {
+            throw new IOException("Sender is closed");
+          }
+          try {
+            delegate = sender = factory.get();
+          } catch (RuntimeException e) {
+            throw new IOException("Unable to construct Wavefront sender", e);
+          }
+        }
+      }
+    }
+    return sender;
+  }
+
+  @Override
+  public String getClientId() {
+    try {
+      return delegate().getClientId();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void sendMetric(String name, double value, Long timestamp, String source,
+                         Map<String, String> tags) throws IOException {
+    delegate().sendMetric(name, value, timestamp, source, tags);
+  }
+
+  @Override
+  public void sendFormattedMetric(String point) throws IOException {
+    delegate().sendFormattedMetric(point);
+  }
+
+  @Override
+  public void sendDeltaCounter(String name, double value, String source,
+                               Map<String, String> tags) throws IOException {
+    delegate().sendDeltaCounter(name, value, source, tags);
+  }
+
+  @Override
+  public void sendDistribution(String name, List<Pair<Double, Integer>> centroids,
+                               Set<HistogramGranularity> histogramGranularities, Long timestamp,
+                               String source, Map<String, String> tags) throws IOException {
+    delegate().sendDistribution(name, centroids, histogramGranularities, timestamp, source, tags);
+  }
+
+  @Override
+  public void sendSpan(String name, long startMillis, long durationMillis, String source,
+                       UUID traceId, UUID spanId, List<UUID> parents, List<UUID> followsFrom,
+                       List<Pair<String, String>> tags, List<SpanLog> spanLogs)
+      throws IOException {
+    delegate().sendSpan(name, startMillis, durationMillis, source, traceId, spanId, parents,
+        followsFrom, tags, spanLogs);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    WavefrontSender sender = delegate;
+    if (sender != null) {
+      sender.flush();
+    }
+  }
+
+  @Override
+  public int getFailureCount() {
+    WavefrontSender sender = delegate;
+    return sender == null ? 0 : sender.getFailureCount();
+  }
+
+  @Override
+  public void close() throws IOException {
+    WavefrontSender sender;
+    synchronized (this) {
+      closed = true;
+      sender = delegate;
+    }
+    if (sender != null) {
+      sender.close();
+    }
+  }
+}
@@ -5,7 +5,6 @@ import com.wavefront.sdk.common.application.ApplicationTags;
 import com.wavefront.sdk.proxy.WavefrontProxyClient;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
-import com.fasterxml.jackson.dataformat.yaml.YAMLParser;
 import com.wavefront.sdk.direct.ingestion.WavefrontDirectIngestionClient;
 
 import java.io.File;
@@ -17,21 +16,32 @@ import java.io.IOException;
  * @author Hao Song (songhao@vmware.com).
  */
 public class ReportingUtils {
+  // thread-safe once configured, and expensive to create
+  private static final ObjectMapper YAML_MAPPER = new ObjectMapper(new YAMLFactory());
+
   /**
-   * Construct {@link WavefrontSender) from {@link WavefrontReportingConfig}
+   * Construct {@link WavefrontSender) from {@link WavefrontReportingConfig}. The returned sender
+   * resolves the proxy host or server and connects when it is first used, so constructing it
+   * never blocks on the network.
    */
   public static WavefrontSender constructWavefrontSender(
       WavefrontReportingConfig wfReportingConfig) {
     String reportingMechanism = wfReportingConfig.getReportingMechanism();
     switch (reportingMechanism) {
       case WavefrontReportingConfig.proxyReporting:
-        return new WavefrontProxyClient.Builder(wfReportingConfig.getProxyHost()).
-            metricsPort(wfReportingConfig.getProxyMetricsPort()).
-            distributionPort(wfReportingConfig.getProxyDistributionsPort()).
-            tracingPort(wfReportingConfig.getProxyTracingPort()).build();
+        String proxyHost = wfReportingConfig.getProxyHost();
+        int metricsPort = wfReportingConfig.getProxyMetricsPort();
+        int distributionsPort = wfReportingConfig.getProxyDistributionsPort();
+        int tracingPort = wfReportingConfig.getProxyTracingPort();
+        return new LazyWavefrontSender(() -> new WavefrontProxyClient.Builder(proxyHost).
+            metricsPort(metricsPort).
+            distributionPort(distributionsPort).
+            tracingPort(tracingPort).build());
       case WavefrontReportingConfig.directReporting:
-        return new WavefrontDirectIngestionClient.Builder(
-            wfReportingConfig.getServer(), wfReportingConfig.getToken()).build();
+        String server = wfReportingConfig.getServer();
+        String token = wfReportingConfig.getToken();
+        return new LazyWavefrontSender(
+            () -> new WavefrontDirectIngestionClient.Builder(server, token).build());
       default:
         throw new RuntimeException("Invalid reporting mechanism:" + reportingMechanism);
     }
@@ -42,18 +52,13 @@ public class ReportingUtils {
    */
   public static WavefrontReportingConfig constructWavefrontReportingConfig(
       String wfReportingConfigYamlFile) {
-    YAMLFactory factory = new YAMLFactory(new ObjectMapper());
-    YAMLParser parser;
-    try {
-      parser = factory.createParser(new File(wfReportingConfigYamlFile));
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-    try {
-      return parser.readValueAs(WavefrontReportingConfig.class);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    WavefrontReportingConfig config =
+        readYaml(wfReportingConfigYamlFile, WavefrontReportingConfig.class);
+    if (!config.hasSource()) {
+      // the host name is likely needed soon, look it up while the application starts
+      DefaultSource.prefetch();
     }
+    return config;
   }
 
   /**
@@ -93,15 +98,12 @@ public class ReportingUtils {
    */
   public static ApplicationTagsConfig constructApplicationTagsConfig(
       String applicationTagsYamlFile) {
-    YAMLFactory factory = new YAMLFactory(new ObjectMapper());
-    YAMLParser parser;
-    try {
-      parser = factory.createParser(new File(applicationTagsYamlFile));
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    return readYaml(applicationTagsYamlFile, ApplicationTagsConfig.class);
+  }
+
+  private static <T> T readYaml(String yamlFile, Class<T> type) {
     try {
-      return parser.readValueAs(ApplicationTagsConfig.class);
+      return YAML_MAPPER.readValue(new File(yamlFile), type);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -2,9 +2,6 @@ package com.wavefront.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
 import javax.annotation.Nonnull;
 
 /**
@@ -62,10 +59,10 @@ public class WavefrontReportingConfig {
 
   /**
    * Source field that needs to be emitted when you report metrics, histograms and tracing spans
-   * to Wavefront. Set to hostname by default.
+   * to Wavefront. Set to hostname by default, resolved when first needed.
    */
   @JsonProperty
-  private String source = getDefaultSource();
+  private String source;
 
   /**
    * Set to true/false depending on whether you want to instrument your application to emit traces
@@ -104,8 +101,17 @@ public class WavefrontReportingConfig {
     return proxyTracingPort;
   }
 
+  /**
+   * Returns the configured source, or the local host name if none is configured. The host name
+   * is looked up in the background once per JVM; if the lookup takes longer than a second, e.g.
+   * because DNS is broken, {@code wavefront-sdk-default} is returned instead.
+   */
   public String getSource() {
-    return source;
+    return source == null ? DefaultSource.get() : source;
+  }
+
+  boolean hasSource() {
+    return source != null;
   }
 
   public Boolean getReportTraces() {
@@ -147,12 +153,4 @@ public class WavefrontReportingConfig {
   public void setReportTraces(Boolean reportTraces) {
     this.reportTraces = reportTraces;
   }
-
-  private String getDefaultSource() {
-    try {
-      return InetAddress.getLocalHost().getHostName();
-    } catch (UnknownHostException ex) {
-      return "wavefront-sdk-default";
-    }
-  }
 }
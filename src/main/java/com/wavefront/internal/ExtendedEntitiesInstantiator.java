@@ -0,0 +1,133 @@
+package com.wavefront.internal;
+
+import com.wavefront.internal.histogram.IntervalHdrReservoir;
+import com.wavefront.internal.histogram.RecordingMode;
+import com.wavefront.internal.histogram.SamplingPolicy;
+
+import java.util.function.Supplier;
+
+import io.dropwizard.metrics5.Clock;
+import io.dropwizard.metrics5.DistinctCounter;
+import io.dropwizard.metrics5.HeavyHitters;
+import io.dropwizard.metrics5.Histogram;
+import io.dropwizard.metrics5.LightweightMeter;
+import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.Timer;
+import io.dropwizard.metrics5.WavefrontHistogram;
+
+/**
+ * Instantiator of the metrics that the Wavefront internal reporter supports on top of the ones of
+ * {@link EntitiesInstantiator}, e.g. Wavefront histograms with a recording mode. Kept apart so
+ * that every implementation of {@link EntitiesInstantiator} supports all of its methods.
+ */
+public interface ExtendedEntitiesInstantiator extends EntitiesInstantiator {
+
+  /**
+   * Returns a new WavefrontHistogram
+   *
+   * @param metricName    entity composed of name and optional point tags
+   * @param clock         optional clock to change time manually
+   * @param recordingMode how recorded values are stored until they are reported
+   * @return WavefrontHistogram
+   */
+  WavefrontHistogram newWavefrontHistogram(MetricName metricName, Supplier<Long> clock,
+                                           RecordingMode recordingMode);
+
+  /**
+   * Returns a new timer recording only a sample of its durations into its reservoir. Counts and
+   * rates remain exact, and the current sampling rate is reported as a gauge named after the
+   * timer with a {@code sampling_rate} suffix.
+   *
+   * @param metricName     entity composed of name and optional point tags
+   * @param samplingPolicy how durations are sampled
+   * @return Timer
+   */
+  Timer newTimer(MetricName metricName, SamplingPolicy samplingPolicy);
+
+  /**
+   * Returns a new WavefrontHistogram recording only a sample of its values into distributions,
+   * each weighted by the inverse of the sampling rate so that the distributions estimate all
+   * values. The exact number of values and the current sampling rate are reported as gauges named
+   * after the histogram with {@code count} and {@code sampling_rate} suffixes.
+   *
+   * @param metricName     entity composed of name and optional point tags
+   * @param samplingPolicy how values are sampled
+   * @return WavefrontHistogram
+   */
+  WavefrontHistogram newWavefrontHistogram(MetricName metricName, SamplingPolicy samplingPolicy);
+
+  /**
+   * Returns a new histogram backed by an interval HDR reservoir: percentiles have a bounded
+   * relative error and each report covers the values recorded since the previous report.
+   *
+   * @param metricName entity composed of name and optional point tags
+   * @param reservoir  reservoir of the histogram, not shared with any other metric
+   * @return Histogram
+   */
+  Histogram newHistogram(MetricName metricName, IntervalHdrReservoir reservoir);
+
+  /**
+   * Returns a new timer backed by an interval HDR reservoir: percentiles have a bounded relative
+   * error and each report covers the durations recorded since the previous report.
+   *
+   * @param metricName entity composed of name and optional point tags
+   * @param reservoir  reservoir of the timer tracking durations in nanoseconds, not shared with
+   *                   any other metric
+   * @return Timer
+   */
+  Timer newTimer(MetricName metricName, IntervalHdrReservoir reservoir);
+
+  /**
+   * Returns a new timer measuring durations with the given clock, e.g. a
+   * {@link com.wavefront.internal.reporter.CoarseClock}, or {@link Clock#defaultClock()} for
+   * precise durations when the reporter uses a coarse clock.
+   *
+   * @param metricName entity composed of name and optional point tags
+   * @param clock      clock used to time durations and to decay rates
+   * @return Timer
+   */
+  Timer newTimer(MetricName metricName, Clock clock);
+
+  /**
+   * Returns a new meter that only counts its marks. Its rates are computed when it is reported,
+   * so marking it is cheaper than marking a {@link Meter}, and only the count and the rates
+   * configured on the reporter are sent.
+   *
+   * @param metricName  entity composed of name and optional point tags
+   * @return LightweightMeter
+   */
+  LightweightMeter newLightweightMeter(MetricName metricName);
+
+  /**
+   * Returns a new delta counter of events that are also counted by key, e.g. by tenant, in
+   * fixed memory whatever the number of distinct keys. Only the keys with the most events in a
+   * reporting cycle are reported, tagged with the key, the rest as a series tagged
+   * {@code other}.
+   *
+   * @param metricName entity composed of name and optional point tags
+   * @param tagKey     point tag key under which keys are reported
+   * @param topK       number of keys reported every cycle
+   * @return HeavyHitters
+   */
+  HeavyHitters newHeavyHitters(MetricName metricName, String tagKey, int topK);
+
+  /**
+   * Returns a new gauge of the number of distinct values added to it in a reporting cycle,
+   * estimated in fixed memory with a HyperLogLog sketch of the default precision.
+   *
+   * @param metricName  entity composed of name and optional point tags
+   * @return DistinctCounter
+   */
+  DistinctCounter newDistinctCounter(MetricName metricName);
+
+  /**
+   * Returns a new gauge of the number of distinct values added to it in a reporting cycle,
+   * estimated in fixed memory with a HyperLogLog sketch of {@code 2^precision} registers.
+   *
+   * @param metricName  entity composed of name and optional point tags
+   * @param precision   base-2 logarithm of the number of registers
+   * @return DistinctCounter
+   */
+  DistinctCounter newDistinctCounter(MetricName metricName, int precision);
+}
@@ -0,0 +1,36 @@
+package com.wavefront.internal.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface declaring metric families with {@link MetricFamily}. At compile time, the
+ * annotation processor shipped with this library generates a class named after the interface
+ * with a {@code Handles} suffix, e.g. {@code CheckoutMetricsHandles} for
+ * {@code CheckoutMetrics}. The generated class creates every metric of every family once, in a
+ * static {@code register(EntitiesInstantiator)} method to be called at startup, which takes an
+ * {@code ExtendedEntitiesInstantiator} if a family is a {@code LightweightMeter}, and exposes a
+ * static method per family returning the metric for the given tag values with a single array
+ * lookup:
+ *
+ * <pre>
+ * &#64;MetricFamilies
+ * interface CheckoutMetrics {
+ *   &#64;MetricFamily("checkout.requests")
+ *   DeltaCounter requests(&#64;Tag("status") Status status, Region region);
+ * }
+ *
+ * CheckoutMetricsHandles.register(reporter);
+ * CheckoutMetricsHandles.requests(Status.OK, Region.EU).inc();
+ * </pre>
+ *
+ * <p>The interface is never implemented, it only declares the families.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface MetricFamilies {
+}
@@ -0,0 +1,318 @@
+package com.wavefront.internal.annotation;
+
+import com.wavefront.internal.EntitiesInstantiator;
+import com.wavefront.internal.ExtendedEntitiesInstantiator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+import io.dropwizard.metrics5.Counter;
+import io.dropwizard.metrics5.DeltaCounter;
+import io.dropwizard.metrics5.Histogram;
+import io.dropwizard.metrics5.LightweightMeter;
+import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.Timer;
+import io.dropwizard.metrics5.WavefrontHistogram;
+
+/**
+ * Generates the handle classes of {@link MetricFamilies} interfaces. Registered as a service, so
+ * javac runs it whenever this library is on the annotation processor path, which by default is
+ * the class path.
+ *
+ * <p>Metric types are referenced through class literals so that they follow the relocation of
+ * shaded Dropwizard classes.
+ */
+public class MetricFamiliesProcessor extends AbstractProcessor {
+
+  // metric type -> EntitiesInstantiator method creating it
+  private static final Map<String, String> FACTORIES = new HashMap<>();
+
+  static {
+    FACTORIES.put(Counter.class.getCanonicalName(), "newCounter");
+    FACTORIES.put(DeltaCounter.class.getCanonicalName(), "newDeltaCounter");
+    FACTORIES.put(Histogram.class.getCanonicalName(), "newHistogram");
+    FACTORIES.put(WavefrontHistogram.class.getCanonicalName(), "newWavefrontHistogram");
+    FACTORIES.put(Meter.class.getCanonicalName(), "newMeter");
+    FACTORIES.put(LightweightMeter.class.getCanonicalName(), "newLightweightMeter");
+    FACTORIES.put(Timer.class.getCanonicalName(), "newTimer");
+  }
+
+  // metric types only created by ExtendedEntitiesInstantiator
+  private static final Set<String> EXTENDED_TYPES =
+      Collections.singleton(LightweightMeter.class.getCanonicalName());
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return Collections.singleton(MetricFamilies.class.getCanonicalName());
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (Element element : roundEnv.getElementsAnnotatedWith(MetricFamilies.class)) {
+      if (element.getKind() != ElementKind.INTERFACE) {
+        error(element, "@MetricFamilies must annotate an interface");
+        continue;
+      }
+      List<Family> families = families((TypeElement) element);
+      if (families != null) {
+        generate((TypeElement) element, families);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the families declared by the interface, or null if any declaration is invalid.
+   */
+  private List<Family> families(TypeElement type) {
+    List<Family> families = new ArrayList<>();
+    boolean valid = true;
+    for (Element member : type.getEnclosedElements()) {
+      if (member.getKind() != ElementKind.METHOD || member.getModifiers().contains(
+          Modifier.STATIC) || member.getModifiers().contains(Modifier.DEFAULT)) {
+        continue;
+      }
+      ExecutableElement method = (ExecutableElement) member;
+      MetricFamily annotation = method.getAnnotation(MetricFamily.class);
+      if (annotation == null) {
+        error(method, "Methods of a @MetricFamilies interface must be annotated with " +
+            "@MetricFamily");
+        valid = false;
+        continue;
+      }
+      String metricType = method.getReturnType().toString();
+      String factory = FACTORIES.get(metricType);
+      if (factory == null) {
+        error(method, "@MetricFamily methods must return one of Counter, DeltaCounter, " +
+            "Histogram, WavefrontHistogram, Meter, LightweightMeter or Timer");
+        valid = false;
+        continue;
+      }
+      Family family = new Family(method.getSimpleName().toString(), annotation.value(),
+          metricType, factory);
+      long series = 1;
+      for (VariableElement parameter : method.getParameters()) {
+        TypeMirror parameterType = parameter.asType();
+        if (parameterType.getKind() != TypeKind.DECLARED ||
+            ((DeclaredType) parameterType).asElement().getKind() != ElementKind.ENUM) {
+          error(parameter, "@MetricFamily parameters must be enums");
+          valid = false;
+          continue;
+        }
+        Tag tag = parameter.getAnnotation(Tag.class);
+        family.tagKeys.add(tag == null ? parameter.getSimpleName().toString() : tag.value());
+        family.tagTypes.add(parameterType.toString());
+        family.parameterNames.add(parameter.getSimpleName().toString());
+        long constants = 0;
+        for (Element constant : ((DeclaredType) parameterType).asElement().getEnclosedElements()) {
+          if (constant.getKind() == ElementKind.ENUM_CONSTANT) {
+            constants++;
+          }
+        }
+        series *= Math.max(1, constants);
+      }
+      if (series > annotation.maxSeries()) {
+        error(method, "@MetricFamily \"" + annotation.value() + "\" has " + series +
+            " series, more than its maxSeries of " + annotation.maxSeries());
+        valid = false;
+      }
+      families.add(family);
+    }
+    return valid ? families : null;
+  }
+
+  private void generate(TypeElement type, List<Family> families) {
+    String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName()
+        .toString();
+    String className = handlesClassName(type);
+    boolean extended = false;
+    for (Family family : families) {
+      extended |= EXTENDED_TYPES.contains(family.metricType);
+    }
+    String instantiator = (extended ? ExtendedEntitiesInstantiator.class :
+        EntitiesInstantiator.class).getCanonicalName();
+    String metricName = MetricName.class.getCanonicalName();
+    try (Writer writer = processingEnv.getFiler().createSourceFile(
+        packageName.isEmpty() ? className : packageName + "." + className, type).openWriter();
+         PrintWriter out = new PrintWriter(writer)) {
+      if (!packageName.isEmpty()) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/**");
+      out.println(" * Metric handles of {@link " + type.getQualifiedName() + "}, generated by " +
+          getClass().getSimpleName() + ".");
+      out.println(" */");
+      out.println("public final class " + className + " {");
+      for (Family family : families) {
+        out.println("  private static " + family.metricType +
+            (family.tagKeys.isEmpty() ? "" : "[]") + " " + family.method + ";");
+        for (int i = 1; i < family.tagTypes.size(); i++) {
+          out.println("  private static final int " + family.method + "Length" + i + " = " +
+              family.tagTypes.get(i) + ".values().length;");
+        }
+      }
+      out.println();
+      out.println("  private " + className + "() {");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * Create all metrics. Must be called before any handle is used.");
+      out.println("   */");
+      out.println("  public static synchronized void register(" + instantiator + " metrics) {");
+      for (Family family : families) {
+        generateRegistration(out, family, metricName);
+      }
+      out.println("  }");
+      for (Family family : families) {
+        generateHandle(out, family);
+      }
+      out.println("}");
+    } catch (IOException e) {
+      error(type, "Unable to generate " + className + ": " + e.getMessage());
+    }
+  }
+
+  private static void generateRegistration(PrintWriter out, Family family, String metricName) {
+    String name = stringLiteral(family.name);
+    if (family.tagKeys.isEmpty()) {
+      out.println("    " + family.method + " = metrics." + family.factory + "(new " + metricName +
+          "(" + name + ", java.util.Collections.<String, String>emptyMap()));");
+      return;
+    }
+    out.println("    {");
+    out.println("      " + family.metricType + "[] handles = new " + family.metricType + "[" +
+        seriesExpression(family) + "];");
+    out.println("      int index = 0;");
+    String indent = "      ";
+    for (int i = 0; i < family.tagTypes.size(); i++) {
+      out.println(indent + "for (" + family.tagTypes.get(i) + " tag" + i + " : " +
+          family.tagTypes.get(i) + ".values()) {");
+      indent += "  ";
+    }
+    out.println(indent + "java.util.Map<String, String> tags = new java.util.HashMap<>();");
+    for (int i = 0; i < family.tagKeys.size(); i++) {
+      out.println(indent + "tags.put(" + stringLiteral(family.tagKeys.get(i)) + ", tag" + i +
+          ".toString());");
+    }
+    out.println(indent + "handles[index++] = metrics." + family.factory + "(new " + metricName +
+        "(" + name + ", tags));");
+    for (int i = 0; i < family.tagTypes.size(); i++) {
+      indent = indent.substring(2);
+      out.println(indent + "}");
+    }
+    out.println("      " + family.method + " = handles;");
+    out.println("    }");
+  }
+
+  private static void generateHandle(PrintWriter out, Family family) {
+    out.println();
+    out.println("  /**");
+    out.println("   * Returns the metric of {@code " + family.name.replace("*/", "*&#47;") +
+        "} for the given tag values.");
+    out.println("   */");
+    StringBuilder parameters = new StringBuilder();
+    StringBuilder index = new StringBuilder();
+    for (int i = 0; i < family.tagTypes.size(); i++) {
+      String parameter = family.parameterNames.get(i);
+      if (i > 0) {
+        parameters.append(", ");
+        index.insert(0, "(").append(") * ").append(family.method).append("Length").append(i)
+            .append(" + ");
+      }
+      parameters.append(family.tagTypes.get(i)).append(' ').append(parameter);
+      index.append(parameter).append(".ordinal()");
+    }
+    out.println("  public static " + family.metricType + " " + family.method + "(" +
+        parameters + ") {");
+    out.println("    return " + family.method +
+        (family.tagTypes.isEmpty() ? "" : "[" + index + "]") + ";");
+    out.println("  }");
+  }
+
+  private static String seriesExpression(Family family) {
+    StringBuilder series = new StringBuilder(family.tagTypes.get(0) + ".values().length");
+    for (int i = 1; i < family.tagTypes.size(); i++) {
+      series.append(" * ").append(family.method).append("Length").append(i);
+    }
+    return series.toString();
+  }
+
+  private static String handlesClassName(TypeElement type) {
+    StringBuilder name = new StringBuilder(type.getSimpleName());
+    Element enclosing = type.getEnclosingElement();
+    while (enclosing.getKind().isClass() || enclosing.getKind().isInterface()) {
+      name.insert(0, enclosing.getSimpleName() + "_");
+      enclosing = enclosing.getEnclosingElement();
+    }
+    return name.append("Handles").toString();
+  }
+
+  private static String stringLiteral(String value) {
+    StringBuilder literal = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '"':
+          literal.append("\\\"");
+          break;
+        case '\\':
+          literal.append("\\\\");
+          break;
+        case '\n':
+          literal.append("\\n");
+          break;
+        default:
+          literal.append(c);
+      }
+    }
+    return literal.append('"').toString();
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+
+  private static class Family {
+    private final String method;
+    private final String name;
+    private final String metricType;
+    private final String factory;
+    private final List<String> tagKeys = new ArrayList<>();
+    private final List<String> tagTypes = new ArrayList<>();
+    private final List<String> parameterNames = new ArrayList<>();
+
+    Family(String method, String name, String metricType, String factory) {
+      this.method = method;
+      this.name = name;
+      this.metricType = metricType;
+      this.factory = factory;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.wavefront.internal.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a family of metrics sharing a name, on a method of a {@link MetricFamilies}
+ * interface. The return type of the method is the type of the metrics: {@code Counter},
+ * {@code DeltaCounter}, {@code Histogram}, {@code WavefrontHistogram}, {@code Meter},
+ * {@code LightweightMeter} or {@code Timer}. Every parameter is a point tag and must be of an
+ * enum type: the family has one metric per combination of enum constants, tagged with the
+ * {@code toString()} of each constant.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface MetricFamily {
+  /**
+   * Name of the metrics.
+   */
+  String value();
+
+  /**
+   * Upper bound on the number of metrics in the family, checked at compile time.
+   */
+  int maxSeries() default 10_000;
+}
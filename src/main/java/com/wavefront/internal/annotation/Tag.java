@@ -0,0 +1,18 @@
+package com.wavefront.internal.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets the point tag key of a {@link MetricFamily} parameter, which defaults to the name of the
+ * parameter.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.PARAMETER)
+public @interface Tag {
+  String value();
+}
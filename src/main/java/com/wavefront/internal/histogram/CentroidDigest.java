@@ -0,0 +1,384 @@
+package com.wavefront.internal.histogram;
+
+import com.wavefront.sdk.common.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A merging t-digest kept entirely in primitive arrays. Values are appended to a buffer and
+ * merged into the sorted centroid list once the buffer fills up, so recording a value is an
+ * array store in the common case. Not thread-safe: callers are expected to confine a digest to
+ * a single writer or guard it externally.
+ */
+public class CentroidDigest {
+  /**
+   * Same accuracy as the digests used by {@code WavefrontHistogramImpl}.
+   */
+  public static final int DEFAULT_COMPRESSION = 100;
+
+  private final double compression;
+
+  private double[] means;
+  private double[] weights;
+  private int centroidCount;
+
+  private double[] bufferMeans;
+  private double[] bufferWeights;
+  private int bufferCount;
+
+  private double[] mergedMeans;
+  private double[] mergedWeights;
+
+  private double totalWeight;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  public CentroidDigest() {
+    this(DEFAULT_COMPRESSION);
+  }
+
+  public CentroidDigest(int compression) {
+    if (compression < 1) {
+      throw new IllegalArgumentException("compression must be positive");
+    }
+    this.compression = compression;
+    int capacity = maxCentroids(compression);
+    this.means = new double[capacity];
+    this.weights = new double[capacity];
+    this.bufferMeans = new double[capacity];
+    this.bufferWeights = new double[capacity];
+    this.mergedMeans = new double[capacity * 2];
+    this.mergedWeights = new double[capacity * 2];
+  }
+
+  /**
+   * Upper bound on the number of centroids retained for a given compression. A centroid spans at
+   * most one unit of the k1 scale, which has {@code compression} units, and two neighbouring
+   * centroids span more than one, or they would have been merged.
+   */
+  public static int maxCentroids(int compression) {
+    return 2 * compression + 1;
+  }
+
+  public void add(double value) {
+    add(value, 1);
+  }
+
+  public void add(double mean, long weight) {
+    if (weight <= 0 || Double.isNaN(mean)) {
+      return;
+    }
+    if (bufferCount == bufferMeans.length) {
+      compress();
+    }
+    bufferMeans[bufferCount] = mean;
+    bufferWeights[bufferCount] = weight;
+    bufferCount++;
+    totalWeight += weight;
+    if (mean < min) {
+      min = mean;
+    }
+    if (mean > max) {
+      max = mean;
+    }
+  }
+
+  /**
+   * Merge all centroids of {@code other} into this digest. {@code other} is compressed as a
+   * side effect but otherwise left untouched.
+   */
+  public void add(CentroidDigest other) {
+    other.compress();
+    for (int i = 0; i < other.centroidCount; i++) {
+      add(other.means[i], (long) other.weights[i]);
+    }
+    if (other.totalWeight > 0) {
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+  }
+
+  /**
+   * Merge a list of centroids, as carried by a distribution, into this digest.
+   */
+  public void addAll(List<Pair<Double, Integer>> centroids) {
+    for (Pair<Double, Integer> centroid : centroids) {
+      add(centroid._1, centroid._2);
+    }
+  }
+
+  /**
+   * Merge buffered values into the centroid list.
+   */
+  public void compress() {
+    if (bufferCount == 0) {
+      return;
+    }
+    sort(bufferMeans, bufferWeights, 0, bufferCount - 1);
+
+    int required = centroidCount + bufferCount;
+    if (mergedMeans.length < required) {
+      mergedMeans = new double[required * 2];
+      mergedWeights = new double[required * 2];
+    }
+
+    int merged = 0;
+    double weightSoFar = 0;
+    double weightLimit = 0;
+    double currentMean = 0;
+    double currentWeight = 0;
+    int i = 0;
+    int j = 0;
+    while (i < centroidCount || j < bufferCount) {
+      double mean;
+      double weight;
+      if (j >= bufferCount || (i < centroidCount && means[i] <= bufferMeans[j])) {
+        mean = means[i];
+        weight = weights[i];
+        i++;
+      } else {
+        mean = bufferMeans[j];
+        weight = bufferWeights[j];
+        j++;
+      }
+      if (currentWeight > 0 && weightSoFar + currentWeight + weight <= weightLimit) {
+        currentWeight += weight;
+        currentMean += (mean - currentMean) * weight / currentWeight;
+        continue;
+      }
+      if (currentWeight > 0) {
+        mergedMeans[merged] = currentMean;
+        mergedWeights[merged] = currentWeight;
+        merged++;
+        weightSoFar += currentWeight;
+      }
+      currentMean = mean;
+      currentWeight = weight;
+      // a centroid may span at most one unit of the k1 scale function
+      weightLimit = totalWeight * inverseScale(scale(weightSoFar / totalWeight) + 1);
+    }
+    if (currentWeight > 0) {
+      mergedMeans[merged] = currentMean;
+      mergedWeights[merged] = currentWeight;
+      merged++;
+    }
+
+    double[] swapMeans = means;
+    double[] swapWeights = weights;
+    means = mergedMeans;
+    weights = mergedWeights;
+    mergedMeans = swapMeans;
+    mergedWeights = swapWeights;
+    if (mergedMeans.length < means.length) {
+      mergedMeans = new double[means.length];
+      mergedWeights = new double[means.length];
+    }
+    centroidCount = merged;
+    bufferCount = 0;
+  }
+
+  public long getCount() {
+    return (long) totalWeight;
+  }
+
+  public double getMin() {
+    return totalWeight == 0 ? Double.NaN : min;
+  }
+
+  public double getMax() {
+    return totalWeight == 0 ? Double.NaN : max;
+  }
+
+  public double getSum() {
+    compress();
+    double sum = 0;
+    for (int i = 0; i < centroidCount; i++) {
+      sum += means[i] * weights[i];
+    }
+    return sum;
+  }
+
+  public double getMean() {
+    return totalWeight == 0 ? Double.NaN : getSum() / totalWeight;
+  }
+
+  public double getStdDev() {
+    if (totalWeight == 0) {
+      return Double.NaN;
+    }
+    double mean = getMean();
+    double variance = 0;
+    for (int i = 0; i < centroidCount; i++) {
+      double delta = means[i] - mean;
+      variance += weights[i] * delta * delta;
+    }
+    return Math.sqrt(variance / totalWeight);
+  }
+
+  /**
+   * Estimate the value at the given quantile.
+   *
+   * @param quantile a value between 0 and 1 (inclusive)
+   * @return the estimated value, or NaN if the digest is empty
+   */
+  public double quantile(double quantile) {
+    compress();
+    if (centroidCount == 0) {
+      return Double.NaN;
+    }
+    if (centroidCount == 1) {
+      return means[0];
+    }
+    double index = quantile * totalWeight;
+    if (index <= 0) {
+      return min;
+    }
+    if (index >= totalWeight) {
+      return max;
+    }
+    double weightSoFar = weights[0] / 2;
+    if (index < weightSoFar) {
+      return min + (means[0] - min) * index / weightSoFar;
+    }
+    for (int i = 0; i < centroidCount - 1; i++) {
+      double step = (weights[i] + weights[i + 1]) / 2;
+      if (weightSoFar + step > index) {
+        return means[i] + (means[i + 1] - means[i]) * (index - weightSoFar) / step;
+      }
+      weightSoFar += step;
+    }
+    double tail = weights[centroidCount - 1] / 2;
+    return means[centroidCount - 1] +
+        (max - means[centroidCount - 1]) * Math.min(1, (index - weightSoFar) / tail);
+  }
+
+  /**
+   * Number of centroids after merging any buffered values.
+   */
+  public int centroidCount() {
+    compress();
+    return centroidCount;
+  }
+
+  public double centroidMean(int index) {
+    return means[index];
+  }
+
+  public long centroidWeight(int index) {
+    return (long) weights[index];
+  }
+
+  /**
+   * Centroids in the shape expected by
+   * {@link com.wavefront.sdk.entities.histograms.WavefrontHistogramSender}.
+   */
+  public List<Pair<Double, Integer>> centroids() {
+    compress();
+    List<Pair<Double, Integer>> centroids = new ArrayList<>(centroidCount);
+    for (int i = 0; i < centroidCount; i++) {
+      centroids.add(new Pair<>(means[i], (int) Math.min(weights[i], Integer.MAX_VALUE)));
+    }
+    return centroids;
+  }
+
+  /**
+   * Append an already merged centroid. Used to rebuild a digest from external storage; the
+   * caller must append centroids in ascending order of their means into an empty digest.
+   */
+  void restoreCentroid(double mean, double weight) {
+    if (centroidCount == means.length) {
+      means = Arrays.copyOf(means, means.length * 2);
+      weights = Arrays.copyOf(weights, weights.length * 2);
+      mergedMeans = new double[means.length];
+      mergedWeights = new double[means.length];
+    }
+    means[centroidCount] = mean;
+    weights[centroidCount] = weight;
+    centroidCount++;
+    totalWeight += weight;
+  }
+
+  /**
+   * Restore the exact minimum and maximum after {@link #restoreCentroid(double, double)}.
+   */
+  void restoreRange(double min, double max) {
+    this.min = min;
+    this.max = max;
+  }
+
+  public void reset() {
+    centroidCount = 0;
+    bufferCount = 0;
+    totalWeight = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+  }
+
+  @Override
+  public String toString() {
+    compress();
+    return "CentroidDigest{count=" + getCount() + ", centroids=" +
+        Arrays.toString(Arrays.copyOf(means, centroidCount)) + "}";
+  }
+
+  private double scale(double quantile) {
+    return compression * (Math.asin(2 * quantile - 1) / Math.PI + 0.5);
+  }
+
+  private double inverseScale(double k) {
+    if (k >= compression) {
+      return 1;
+    }
+    return (Math.sin((k / compression - 0.5) * Math.PI) + 1) / 2;
+  }
+
+  private static void sort(double[] keys, double[] values, int lo, int hi) {
+    while (hi - lo > 16) {
+      double pivot = keys[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          i++;
+        }
+        while (keys[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(keys, values, i++, j--);
+        }
+      }
+      // recurse into the smaller half to bound stack depth
+      if (j - lo < hi - i) {
+        sort(keys, values, lo, j);
+        lo = i;
+      } else {
+        sort(keys, values, i, hi);
+        hi = j;
+      }
+    }
+    for (int i = lo + 1; i <= hi; i++) {
+      double key = keys[i];
+      double value = values[i];
+      int j = i - 1;
+      while (j >= lo && keys[j] > key) {
+        keys[j + 1] = keys[j];
+        values[j + 1] = values[j];
+        j--;
+      }
+      keys[j + 1] = key;
+      values[j + 1] = value;
+    }
+  }
+
+  private static void swap(double[] keys, double[] values, int i, int j) {
+    double key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    double value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+  }
+}
@@ -0,0 +1,57 @@
+package com.wavefront.internal.histogram;
+
+import java.io.OutputStream;
+
+import io.dropwizard.metrics5.Snapshot;
+
+/**
+ * A Dropwizard {@link Snapshot} backed by a {@link CentroidDigest}. The digest is owned by the
+ * snapshot and must not be modified after construction.
+ */
+public class DigestSnapshot extends Snapshot {
+
+  private final CentroidDigest digest;
+
+  public DigestSnapshot(CentroidDigest digest) {
+    this.digest = digest;
+  }
+
+  @Override
+  public double getValue(double quantile) {
+    return digest.quantile(quantile);
+  }
+
+  @Override
+  public long[] getValues() {
+    return new long[0];
+  }
+
+  @Override
+  public int size() {
+    return (int) digest.getCount();
+  }
+
+  @Override
+  public long getMax() {
+    return Math.round(digest.getMax());
+  }
+
+  @Override
+  public double getMean() {
+    return digest.getMean();
+  }
+
+  @Override
+  public long getMin() {
+    return (long) digest.getMin();
+  }
+
+  @Override
+  public double getStdDev() {
+    return digest.getStdDev();
+  }
+
+  @Override
+  public void dump(OutputStream outputStream) {
+  }
+}
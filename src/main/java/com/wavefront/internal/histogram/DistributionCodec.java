@@ -0,0 +1,195 @@
+package com.wavefront.internal.histogram;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact, lossless binary encoding of the distributions flushed by a
+ * {@link io.dropwizard.metrics5.WavefrontHistogram}, used to ship distributions from many
+ * processes to a single aggregating reporter.
+ *
+ * <p>Layout: a version byte and the number of distributions, then for every distribution its
+ * timestamp as a zigzag varint delta from the previous timestamp and its number of centroids.
+ * Each centroid mean is XORed with the previous mean of the same distribution, written as the
+ * number of trailing zero bits of the result followed by the remaining bits as a varint, so that
+ * the shared sign, exponent and low mantissa bits of neighbouring centroids cost nothing. Weights
+ * are varints.
+ */
+public final class DistributionCodec {
+
+  private static final byte VERSION = 1;
+  // trailing zero count written when a mean equals the previous one
+  private static final int SAME_MEAN = 64;
+  // smallest encodings of a distribution (timestamp and centroid count) and of a centroid
+  // (trailing zero count and weight), which bound the counts a valid input can declare
+  private static final int MIN_DISTRIBUTION_BYTES = 2;
+  private static final int MIN_CENTROID_BYTES = 2;
+
+  private DistributionCodec() {
+  }
+
+  public static byte[] encode(List<WavefrontHistogramImpl.Distribution> distributions) {
+    Writer writer = new Writer(16 + distributions.size() * 64);
+    writer.writeByte(VERSION);
+    writer.writeVarint(distributions.size());
+    long previousTimestamp = 0;
+    for (WavefrontHistogramImpl.Distribution distribution : distributions) {
+      writer.writeVarint(zigzag(distribution.timestamp - previousTimestamp));
+      previousTimestamp = distribution.timestamp;
+      writer.writeVarint(distribution.centroids.size());
+      long previousBits = 0;
+      for (Pair<Double, Integer> centroid : distribution.centroids) {
+        long bits = Double.doubleToLongBits(centroid._1);
+        long xor = bits ^ previousBits;
+        previousBits = bits;
+        if (xor == 0) {
+          writer.writeByte(SAME_MEAN);
+        } else {
+          int trailingZeros = Long.numberOfTrailingZeros(xor);
+          writer.writeByte(trailingZeros);
+          writer.writeVarint(xor >>> trailingZeros);
+        }
+        writer.writeVarint(centroid._2);
+      }
+    }
+    return writer.toByteArray();
+  }
+
+  public static List<WavefrontHistogramImpl.Distribution> decode(byte[] bytes) {
+    return decode(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Decode distributions encoded by {@link #encode(List)}.
+   *
+   * @throws IllegalArgumentException if the bytes are not a valid encoding
+   */
+  public static List<WavefrontHistogramImpl.Distribution> decode(byte[] bytes, int offset,
+                                                                 int length) {
+    if (offset < 0 || length < 0 || offset > bytes.length - length) {
+      throw new IndexOutOfBoundsException("Invalid range " + offset + ".." + (offset + length) +
+          " of " + bytes.length + " bytes");
+    }
+    Reader reader = new Reader(bytes, offset, offset + length);
+    int version = reader.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported distribution encoding version: " + version);
+    }
+    int distributionCount = reader.readCount(MIN_DISTRIBUTION_BYTES);
+    List<WavefrontHistogramImpl.Distribution> distributions = new ArrayList<>(distributionCount);
+    long timestamp = 0;
+    for (int i = 0; i < distributionCount; i++) {
+      timestamp += unzigzag(reader.readVarint());
+      int centroidCount = reader.readCount(MIN_CENTROID_BYTES);
+      List<Pair<Double, Integer>> centroids = new ArrayList<>(centroidCount);
+      long bits = 0;
+      for (int j = 0; j < centroidCount; j++) {
+        int trailingZeros = reader.readByte();
+        if (trailingZeros > SAME_MEAN) {
+          throw new IllegalArgumentException("Invalid centroid encoding");
+        }
+        if (trailingZeros != SAME_MEAN) {
+          bits ^= reader.readVarint() << trailingZeros;
+        }
+        centroids.add(new Pair<>(Double.longBitsToDouble(bits), reader.readCount()));
+      }
+      distributions.add(new WavefrontHistogramImpl.Distribution(timestamp, centroids));
+    }
+    if (reader.position != reader.limit) {
+      throw new IllegalArgumentException("Trailing bytes after distributions");
+    }
+    return distributions;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static final class Writer {
+    private byte[] buffer;
+    private int position = 0;
+
+    Writer(int capacity) {
+      buffer = new byte[capacity];
+    }
+
+    void writeByte(int value) {
+      if (position == buffer.length) {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+      buffer[position++] = (byte) value;
+    }
+
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        writeByte((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      writeByte((int) value);
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, position);
+    }
+  }
+
+  private static final class Reader {
+    private final byte[] bytes;
+    private final int limit;
+    private int position;
+
+    Reader(byte[] bytes, int position, int limit) {
+      this.bytes = bytes;
+      this.position = position;
+      this.limit = limit;
+    }
+
+    int readByte() {
+      if (position >= limit) {
+        throw new IllegalArgumentException("Truncated distribution encoding");
+      }
+      return bytes[position++] & 0xFF;
+    }
+
+    long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint");
+    }
+
+    int readCount() {
+      long value = readVarint();
+      if (value < 0 || value > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Invalid count: " + value);
+      }
+      return (int) value;
+    }
+
+    /**
+     * Reads the number of elements that follow, each encoded in at least {@code minBytes}, and
+     * checks that they fit in the remaining bytes before anything is allocated for them.
+     */
+    int readCount(int minBytes) {
+      int count = readCount();
+      if ((long) count * minBytes > limit - position) {
+        throw new IllegalArgumentException("Count " + count + " exceeds the " +
+            (limit - position) + " remaining bytes");
+      }
+      return count;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.wavefront.internal.histogram;
+
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.util.List;
+
+import io.dropwizard.metrics5.Snapshot;
+
+/**
+ * Storage behind a {@link io.dropwizard.metrics5.WavefrontHistogram}. Values are recorded into
+ * minute bins which are handed out as distributions once the minute is over.
+ */
+public interface DistributionRecorder {
+  /**
+   * Record a single value into the bin for the current minute.
+   *
+   * @param value value to record
+   */
+  void update(double value);
+
+  /**
+   * Record a value standing for several identical values into the bin for the current minute,
+   * e.g. a sampled value. Records the value {@code weight} times unless overridden.
+   *
+   * @param value  value to record
+   * @param weight number of values it stands for
+   */
+  default void update(double value, int weight) {
+    for (int i = 0; i < weight; i++) {
+      update(value);
+    }
+  }
+
+  /**
+   * Returns the number of values recorded in bins that have not been flushed yet.
+   *
+   * @return count of values held by this recorder
+   */
+  long getCount();
+
+  /**
+   * Returns the fraction of values actually recorded into bins.
+   *
+   * @return sampling rate between 0 and 1
+   */
+  default double getSamplingRate() {
+    return 1;
+  }
+
+  /**
+   * Returns a snapshot across all bins that have not been flushed yet.
+   *
+   * @return Snapshot
+   */
+  Snapshot getSnapshot();
+
+  /**
+   * Remove and return the distributions of all completed minute bins.
+   *
+   * @return distributions ordered by timestamp
+   */
+  List<WavefrontHistogramImpl.Distribution> flushDistributions();
+
+  /**
+   * Remove and return the distributions of all minute bins, including the bin of the current
+   * minute. Used for a final flush when reporting stops.
+   *
+   * @return distributions ordered by timestamp
+   */
+  List<WavefrontHistogramImpl.Distribution> flushAllDistributions();
+
+  /**
+   * Returns whether this recorder can read its bins without flushing them.
+   *
+   * @return whether {@link #peekDistributions()} is supported
+   */
+  default boolean supportsPeek() {
+    return false;
+  }
+
+  /**
+   * Returns the distributions of all minute bins that have not been flushed yet, including the
+   * bin of the current minute, without removing them.
+   *
+   * @return distributions ordered by timestamp
+   * @throws UnsupportedOperationException if {@link #supportsPeek()} is {@code false}
+   */
+  default List<WavefrontHistogramImpl.Distribution> peekDistributions() {
+    throw new UnsupportedOperationException(getClass().getSimpleName() +
+        " cannot peek at distributions");
+  }
+
+  /**
+   * Returns whether this recorder can merge distributions recorded elsewhere.
+   *
+   * @return whether {@link #merge(List)} is supported
+   */
+  default boolean supportsMerge() {
+    return false;
+  }
+
+  /**
+   * Merge distributions recorded elsewhere, e.g. by another process, into the bins of their
+   * minutes so that they are flushed together with the values recorded here.
+   *
+   * @param distributions distributions to merge
+   * @throws UnsupportedOperationException if {@link #supportsMerge()} is {@code false}
+   */
+  default void merge(List<WavefrontHistogramImpl.Distribution> distributions) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() +
+        " cannot merge distributions");
+  }
+
+  /**
+   * Discard the bins that have not been flushed yet and release the storage held for them, once
+   * the histogram is no longer reported. Values recorded afterwards are held again.
+   */
+  default void release() {
+  }
+}
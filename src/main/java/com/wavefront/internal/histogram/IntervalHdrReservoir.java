@@ -0,0 +1,248 @@
+package com.wavefront.internal.histogram;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.dropwizard.metrics5.Reservoir;
+import io.dropwizard.metrics5.Snapshot;
+
+/**
+ * A {@link Reservoir} counting values in fixed log-linear buckets, in the layout of an
+ * HdrHistogram: every power of two is split into the same number of linear sub-buckets, so that
+ * any value up to the highest trackable value is recorded with a relative error below
+ * {@code 10^-significantDigits}. Memory is allocated once, recording a value is a single atomic
+ * increment, and taking a snapshot sweeps the buckets once, so neither depends on the number of
+ * values recorded.
+ *
+ * <p>Snapshots cover an interval: {@link #getSnapshot()} atomically drains the buckets, so each
+ * snapshot contains the values recorded since the previous one and every value ends up in exactly
+ * one snapshot. The reservoir is therefore meant to be read by a single reporter. Values above the
+ * highest trackable value are recorded as the highest trackable value, negative values as zero.
+ */
+public class IntervalHdrReservoir implements Reservoir {
+
+  private final long highestTrackableValue;
+  private final int subBucketHalfCountMagnitude;
+  private final int subBucketHalfCount;
+  private final long subBucketMask;
+  private final int leadingZeroCountBase;
+  private final AtomicLongArray counts;
+
+  /**
+   * @param highestTrackableValue highest value recorded accurately, e.g.
+   *                              {@code TimeUnit.MINUTES.toNanos(1)} for a timer
+   * @param significantDigits     number of significant decimal digits preserved, from 1 to 5
+   */
+  public IntervalHdrReservoir(long highestTrackableValue, int significantDigits) {
+    if (highestTrackableValue < 2) {
+      throw new IllegalArgumentException("highestTrackableValue must be at least 2");
+    }
+    if (significantDigits < 1 || significantDigits > 5) {
+      throw new IllegalArgumentException("significantDigits must be between 1 and 5");
+    }
+    this.highestTrackableValue = highestTrackableValue;
+    long largestSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+    int subBucketCountMagnitude =
+        64 - Long.numberOfLeadingZeros(largestSingleUnitResolution - 1);
+    this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+    this.subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+    int subBucketCount = 1 << subBucketCountMagnitude;
+    this.subBucketMask = subBucketCount - 1;
+    this.leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+    this.counts = new AtomicLongArray(countsIndex(highestTrackableValue) + 1);
+  }
+
+  private int countsIndex(long value) {
+    int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+    int subBucketIndex = (int) (value >>> bucketIndex);
+    return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + subBucketIndex -
+        subBucketHalfCount;
+  }
+
+  private long lowestValueAt(int index) {
+    int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+    int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+    if (bucketIndex < 0) {
+      subBucketIndex -= subBucketHalfCount;
+      bucketIndex = 0;
+    }
+    return (long) subBucketIndex << bucketIndex;
+  }
+
+  private long widthAt(int index) {
+    return 1L << Math.max(0, (index >> subBucketHalfCountMagnitude) - 1);
+  }
+
+  /**
+   * Returns the number of buckets, which determines the memory used and the cost of a snapshot.
+   */
+  public int bucketCount() {
+    return counts.length();
+  }
+
+  @Override
+  public int size() {
+    long size = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      size += counts.get(i);
+    }
+    return (int) Math.min(Integer.MAX_VALUE, size);
+  }
+
+  @Override
+  public void update(long value) {
+    counts.incrementAndGet(countsIndex(Math.min(Math.max(0, value), highestTrackableValue)));
+  }
+
+  /**
+   * Returns a snapshot of the values recorded since the previous snapshot and starts a new
+   * interval.
+   */
+  @Override
+  public Snapshot getSnapshot() {
+    int[] indexes = new int[16];
+    long[] bucketCounts = new long[16];
+    int buckets = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      if (counts.get(i) == 0) {
+        continue;
+      }
+      long count = counts.getAndSet(i, 0);
+      if (count == 0) {
+        continue;
+      }
+      if (buckets == indexes.length) {
+        indexes = Arrays.copyOf(indexes, buckets * 2);
+        bucketCounts = Arrays.copyOf(bucketCounts, buckets * 2);
+      }
+      indexes[buckets] = i;
+      bucketCounts[buckets++] = count;
+    }
+    long[] lowest = new long[buckets];
+    long[] highest = new long[buckets];
+    for (int i = 0; i < buckets; i++) {
+      lowest[i] = lowestValueAt(indexes[i]);
+      highest[i] = Math.min(highestTrackableValue, lowest[i] + widthAt(indexes[i]) - 1);
+    }
+    return new IntervalSnapshot(lowest, highest, Arrays.copyOf(bucketCounts, buckets));
+  }
+
+  /**
+   * Values of a single interval, as the non-empty buckets in ascending order. Every value is
+   * represented by the highest value of its bucket, except for the mean and standard deviation
+   * which use the middle of the bucket.
+   */
+  private static class IntervalSnapshot extends Snapshot {
+    private final long[] lowest;
+    private final long[] highest;
+    private final long[] bucketCounts;
+    private final long count;
+
+    IntervalSnapshot(long[] lowest, long[] highest, long[] bucketCounts) {
+      this.lowest = lowest;
+      this.highest = highest;
+      this.bucketCounts = bucketCounts;
+      long count = 0;
+      for (long bucketCount : bucketCounts) {
+        count += bucketCount;
+      }
+      this.count = count;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+        throw new IllegalArgumentException(quantile + " is not in [0..1]");
+      }
+      if (count == 0) {
+        return 0.0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        seen += bucketCounts[i];
+        if (seen >= rank) {
+          return highest[i];
+        }
+      }
+      return highest[highest.length - 1];
+    }
+
+    /**
+     * Returns every value of the interval, which unlike the other methods costs memory in
+     * proportion to the number of values.
+     */
+    @Override
+    public long[] getValues() {
+      long[] values = new long[size()];
+      int position = 0;
+      for (int i = 0; i < bucketCounts.length && position < values.length; i++) {
+        int n = (int) Math.min(bucketCounts[i], values.length - position);
+        Arrays.fill(values, position, position + n, highest[i]);
+        position += n;
+      }
+      return values;
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(Integer.MAX_VALUE, count);
+    }
+
+    @Override
+    public long getMax() {
+      return count == 0 ? 0 : highest[highest.length - 1];
+    }
+
+    @Override
+    public long getMin() {
+      return count == 0 ? 0 : lowest[0];
+    }
+
+    @Override
+    public double getMean() {
+      if (count == 0) {
+        return 0;
+      }
+      double sum = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        sum += middle(i) * bucketCounts[i];
+      }
+      return sum / count;
+    }
+
+    @Override
+    public double getStdDev() {
+      if (count <= 1) {
+        return 0;
+      }
+      double mean = getMean();
+      double sumOfSquares = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        double deviation = middle(i) - mean;
+        sumOfSquares += deviation * deviation * bucketCounts[i];
+      }
+      return Math.sqrt(sumOfSquares / (count - 1));
+    }
+
+    private double middle(int i) {
+      return lowest[i] + (highest[i] - lowest[i]) / 2.0;
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      try (PrintWriter out = new PrintWriter(
+          new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+        for (int i = 0; i < bucketCounts.length; i++) {
+          for (long j = 0; j < bucketCounts[i]; j++) {
+            out.printf("%d%n", highest[i]);
+          }
+        }
+      }
+    }
+  }
+}
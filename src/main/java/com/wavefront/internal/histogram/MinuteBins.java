@@ -0,0 +1,155 @@
+package com.wavefront.internal.histogram;
+
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Minute-keyed {@link CentroidDigest}s. Digests of flushed bins are recycled so that steady-state
+ * recording does not allocate. Not thread-safe.
+ */
+public class MinuteBins {
+  /**
+   * Same retention as {@code WavefrontHistogramImpl}: bins older than this are dropped.
+   */
+  public static final int MAX_BINS = 10;
+
+  private final int compression;
+  private final TreeMap<Long, CentroidDigest> bins = new TreeMap<>();
+  private final ArrayDeque<CentroidDigest> free = new ArrayDeque<>();
+
+  private long lastMinuteMillis = Long.MIN_VALUE;
+  private CentroidDigest lastBin;
+
+  public MinuteBins() {
+    this(CentroidDigest.DEFAULT_COMPRESSION);
+  }
+
+  public MinuteBins(int compression) {
+    this.compression = compression;
+  }
+
+  public static long minuteMillis(long clockMillis) {
+    return (clockMillis / 60000L) * 60000L;
+  }
+
+  /**
+   * Returns the bin for the given minute, creating it if needed.
+   */
+  public CentroidDigest bin(long minuteMillis) {
+    if (minuteMillis == lastMinuteMillis) {
+      return lastBin;
+    }
+    CentroidDigest bin = bins.get(minuteMillis);
+    if (bin == null) {
+      bin = free.isEmpty() ? new CentroidDigest(compression) : free.poll();
+      bins.put(minuteMillis, bin);
+      while (bins.size() > MAX_BINS) {
+        recycle(bins.pollFirstEntry().getValue());
+      }
+    }
+    lastMinuteMillis = minuteMillis;
+    lastBin = bin;
+    return bin;
+  }
+
+  public boolean isEmpty() {
+    return bins.isEmpty();
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (CentroidDigest bin : bins.values()) {
+      count += bin.getCount();
+    }
+    return count;
+  }
+
+  /**
+   * Merge every bin of {@code other} into the matching bin of this instance.
+   */
+  public void addAll(MinuteBins other) {
+    for (Map.Entry<Long, CentroidDigest> entry : other.bins.entrySet()) {
+      bin(entry.getKey()).add(entry.getValue());
+    }
+  }
+
+  /**
+   * Merge each distribution into the bin of its minute.
+   */
+  public void addAll(List<WavefrontHistogramImpl.Distribution> distributions) {
+    for (WavefrontHistogramImpl.Distribution distribution : distributions) {
+      bin(minuteMillis(distribution.timestamp)).addAll(distribution.centroids);
+    }
+  }
+
+  /**
+   * Merge all bins into {@code target}.
+   */
+  public void mergeInto(CentroidDigest target) {
+    for (CentroidDigest bin : bins.values()) {
+      target.add(bin);
+    }
+  }
+
+  /**
+   * Remove and return distributions for all bins older than {@code currentMinuteMillis}.
+   */
+  public List<WavefrontHistogramImpl.Distribution> flush(long currentMinuteMillis) {
+    if (bins.isEmpty() || bins.firstKey() >= currentMinuteMillis) {
+      return Collections.emptyList();
+    }
+    List<WavefrontHistogramImpl.Distribution> distributions = new ArrayList<>();
+    Iterator<Map.Entry<Long, CentroidDigest>> iterator =
+        bins.headMap(currentMinuteMillis).entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Long, CentroidDigest> entry = iterator.next();
+      if (entry.getValue().getCount() > 0) {
+        distributions.add(new WavefrontHistogramImpl.Distribution(entry.getKey(),
+            entry.getValue().centroids()));
+      }
+      recycle(entry.getValue());
+      iterator.remove();
+    }
+    return distributions;
+  }
+
+  /**
+   * Returns distributions for all bins without removing them.
+   */
+  public List<WavefrontHistogramImpl.Distribution> distributions() {
+    List<WavefrontHistogramImpl.Distribution> distributions = new ArrayList<>(bins.size());
+    for (Map.Entry<Long, CentroidDigest> entry : bins.entrySet()) {
+      if (entry.getValue().getCount() > 0) {
+        distributions.add(new WavefrontHistogramImpl.Distribution(entry.getKey(),
+            entry.getValue().centroids()));
+      }
+    }
+    return distributions;
+  }
+
+  /**
+   * Remove all bins, keeping their digests for reuse.
+   */
+  public void clear() {
+    for (CentroidDigest bin : bins.values()) {
+      recycle(bin);
+    }
+    bins.clear();
+  }
+
+  private void recycle(CentroidDigest bin) {
+    if (bin == lastBin) {
+      lastMinuteMillis = Long.MIN_VALUE;
+      lastBin = null;
+    }
+    bin.reset();
+    free.add(bin);
+  }
+}
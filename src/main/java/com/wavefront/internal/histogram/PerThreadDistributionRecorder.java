@@ -0,0 +1,168 @@
+package com.wavefront.internal.histogram;
+
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Supplier;
+
+import io.dropwizard.metrics5.Snapshot;
+
+/**
+ * {@link DistributionRecorder} where every recording thread writes into its own
+ * {@link MinuteBins}. Writers never block and never share a cache line with each other; the
+ * per-thread bins are swapped out and merged only when the histogram is flushed, counted or
+ * snapshotted.
+ */
+public class PerThreadDistributionRecorder implements DistributionRecorder {
+
+  private final Supplier<Long> clockMillis;
+  private final List<ThreadRecorder> recorders = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<ThreadRecorder> threadRecorder =
+      ThreadLocal.withInitial(this::newThreadRecorder);
+
+  // Guarded by this.
+  private final MinuteBins merged = new MinuteBins();
+
+  public PerThreadDistributionRecorder(Supplier<Long> clockMillis) {
+    this.clockMillis = clockMillis;
+  }
+
+  @Override
+  public void update(double value) {
+    threadRecorder.get().record(MinuteBins.minuteMillis(clockMillis.get()), value, 1);
+  }
+
+  @Override
+  public void update(double value, int weight) {
+    threadRecorder.get().record(MinuteBins.minuteMillis(clockMillis.get()), value, weight);
+  }
+
+  @Override
+  public synchronized long getCount() {
+    drain();
+    return merged.getCount();
+  }
+
+  @Override
+  public synchronized Snapshot getSnapshot() {
+    drain();
+    CentroidDigest digest = new CentroidDigest();
+    merged.mergeInto(digest);
+    return new DigestSnapshot(digest);
+  }
+
+  @Override
+  public synchronized List<WavefrontHistogramImpl.Distribution> flushDistributions() {
+    drain();
+    return merged.flush(MinuteBins.minuteMillis(clockMillis.get()));
+  }
+
+  @Override
+  public boolean supportsPeek() {
+    return true;
+  }
+
+  @Override
+  public boolean supportsMerge() {
+    return true;
+  }
+
+  @Override
+  public synchronized void merge(List<WavefrontHistogramImpl.Distribution> distributions) {
+    merged.addAll(distributions);
+  }
+
+  @Override
+  public synchronized List<WavefrontHistogramImpl.Distribution> flushAllDistributions() {
+    drain();
+    return merged.flush(Long.MAX_VALUE);
+  }
+
+  @Override
+  public synchronized List<WavefrontHistogramImpl.Distribution> peekDistributions() {
+    drain();
+    return merged.distributions();
+  }
+
+  private ThreadRecorder newThreadRecorder() {
+    ThreadRecorder recorder = new ThreadRecorder(Thread.currentThread());
+    recorders.add(recorder);
+    return recorder;
+  }
+
+  /**
+   * Swap out the bins of every thread and merge them into {@link #merged}. Bins of threads that
+   * have terminated are merged one last time before the thread's recorder is dropped.
+   */
+  private void drain() {
+    for (ThreadRecorder recorder : recorders) {
+      boolean terminated = recorder.isTerminated();
+      MinuteBins bins = recorder.swap();
+      merged.addAll(bins);
+      bins.clear();
+      recorder.spare = bins;
+      if (terminated) {
+        recorders.remove(recorder);
+      }
+    }
+  }
+
+  private static final class ThreadRecorder {
+    private static final AtomicLongFieldUpdater<ThreadRecorder> PHASE =
+        AtomicLongFieldUpdater.newUpdater(ThreadRecorder.class, "phase");
+
+    private final WeakReference<Thread> owner;
+
+    /**
+     * Odd while the owning thread is recording. Only ever written by the owning thread.
+     */
+    private volatile long phase;
+
+    /**
+     * Bins the owning thread currently records into.
+     */
+    private volatile MinuteBins active = new MinuteBins();
+
+    /**
+     * Empty bins handed to the owning thread on the next swap. Only touched by the draining
+     * thread.
+     */
+    private MinuteBins spare = new MinuteBins();
+
+    ThreadRecorder(Thread owner) {
+      this.owner = new WeakReference<>(owner);
+    }
+
+    void record(long minuteMillis, double value, int weight) {
+      long current = phase;
+      // volatile write followed by the volatile read of active: pairs with swap()
+      phase = current + 1;
+      active.bin(minuteMillis).add(value, weight);
+      PHASE.lazySet(this, current + 2);
+    }
+
+    /**
+     * Install the spare bins and wait until the owning thread is no longer writing into the
+     * previously active ones, which are then returned.
+     */
+    MinuteBins swap() {
+      MinuteBins previous = active;
+      active = spare;
+      long observed = phase;
+      if ((observed & 1) != 0) {
+        while (phase == observed) {
+          Thread.yield();
+        }
+      }
+      return previous;
+    }
+
+    boolean isTerminated() {
+      Thread thread = owner.get();
+      return thread == null || !thread.isAlive();
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.wavefront.internal.histogram;
+
+/**
+ * How a {@link io.dropwizard.metrics5.WavefrontHistogram} records its values.
+ */
+public enum RecordingMode {
+  /**
+   * Record through a single {@code WavefrontHistogramImpl} shared by all threads.
+   */
+  SHARED,
+
+  /**
+   * Record into a digest owned by the calling thread. Per-thread digests are only merged when
+   * distributions are flushed or a snapshot is taken, so updates never contend with each other.
+   */
+  PER_THREAD,
+
+  /**
+   * Record into a fixed-compression slot of an off-heap {@link SlabDistributionStore}, keeping
+   * the on-heap footprint of the histogram minimal. Meant for registries holding a very large
+   * number of histograms.
+   */
+  COMPACT
+}
@@ -0,0 +1,77 @@
+package com.wavefront.internal.histogram;
+
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.util.List;
+
+import io.dropwizard.metrics5.Snapshot;
+
+/**
+ * {@link DistributionRecorder} recording a sample of all values into another recorder. Every
+ * sampled value is recorded with the weight of the sampling rate at the time, the rounded inverse
+ * of the rate, so that the counts and sums of the distributions estimate all values even when an
+ * adaptive rate changes within a minute. {@link #getCount()} is the exact number of values
+ * recorded since creation.
+ */
+public class SampledDistributionRecorder implements DistributionRecorder {
+
+  private final DistributionRecorder delegate;
+  private final Sampler sampler;
+
+  public SampledDistributionRecorder(DistributionRecorder delegate, Sampler sampler) {
+    this.delegate = delegate;
+    this.sampler = sampler;
+  }
+
+  @Override
+  public void update(double value) {
+    if (sampler.sample()) {
+      delegate.update(value, sampler.getWeight());
+    }
+  }
+
+  @Override
+  public long getCount() {
+    return sampler.getCount();
+  }
+
+  @Override
+  public double getSamplingRate() {
+    return sampler.getRate();
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    return delegate.getSnapshot();
+  }
+
+  @Override
+  public List<WavefrontHistogramImpl.Distribution> flushDistributions() {
+    return delegate.flushDistributions();
+  }
+
+  @Override
+  public List<WavefrontHistogramImpl.Distribution> flushAllDistributions() {
+    return delegate.flushAllDistributions();
+  }
+
+  @Override
+  public boolean supportsPeek() {
+    return delegate.supportsPeek();
+  }
+
+  @Override
+  public boolean supportsMerge() {
+    return delegate.supportsMerge();
+  }
+
+  @Override
+  public List<WavefrontHistogramImpl.Distribution> peekDistributions() {
+    return delegate.peekDistributions();
+  }
+
+  @Override
+  public void merge(List<WavefrontHistogramImpl.Distribution> distributions) {
+    delegate.merge(distributions);
+  }
+}
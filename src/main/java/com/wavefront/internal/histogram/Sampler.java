@@ -0,0 +1,98 @@
+package com.wavefront.internal.histogram;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which updates of a sampled metric are recorded, while counting every update exactly
+ * with a striped counter. Sampling costs a thread-local random number and a comparison; an
+ * adaptive sampler additionally re-evaluates its rate at most once per second, from a sampled
+ * update or from {@link #getRate()}.
+ */
+public final class Sampler {
+
+  private static final long WINDOW_NANOS = 1_000_000_000L;
+  // random values are 53 bits, like the mantissa of ThreadLocalRandom.nextDouble()
+  private static final double RANDOM_RANGE = (double) (1L << 53);
+
+  private static final AtomicLongFieldUpdater<Sampler> WINDOW_START =
+      AtomicLongFieldUpdater.newUpdater(Sampler.class, "windowStartNanos");
+
+  private final LongAdder updates = new LongAdder();
+  private final long targetUpdatesPerSecond;
+
+  private volatile double rate;
+  private volatile long threshold;
+  private volatile int weight;
+  private volatile long windowStartNanos = System.nanoTime();
+  // guarded by winning the windowStartNanos CAS
+  private long windowStartUpdates = 0;
+
+  Sampler(double rate, long targetUpdatesPerSecond) {
+    this.targetUpdatesPerSecond = targetUpdatesPerSecond;
+    setRate(rate);
+  }
+
+  /**
+   * Count an update.
+   *
+   * @return whether the update should be recorded
+   */
+  public boolean sample() {
+    updates.increment();
+    long threshold = this.threshold;
+    if (threshold < (1L << 53) &&
+        (ThreadLocalRandom.current().nextLong() >>> 11) >= threshold) {
+      return false;
+    }
+    if (targetUpdatesPerSecond > 0) {
+      adapt();
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of updates a recorded update stands for at the current rate, i.e. the
+   * rounded inverse of the rate.
+   */
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * Returns the exact number of updates counted, sampled or not.
+   */
+  public long getCount() {
+    return updates.sum();
+  }
+
+  /**
+   * Returns the fraction of updates currently recorded.
+   */
+  public double getRate() {
+    if (targetUpdatesPerSecond > 0) {
+      adapt();
+    }
+    return rate;
+  }
+
+  private void adapt() {
+    long now = System.nanoTime();
+    long start = windowStartNanos;
+    if (now - start < WINDOW_NANOS || !WINDOW_START.compareAndSet(this, start, now)) {
+      return;
+    }
+    long total = updates.sum();
+    double updatesPerSecond = (total - windowStartUpdates) * 1e9 / (now - start);
+    windowStartUpdates = total;
+    setRate(updatesPerSecond <= targetUpdatesPerSecond ? 1 :
+        targetUpdatesPerSecond / updatesPerSecond);
+  }
+
+  private void setRate(double rate) {
+    this.rate = rate;
+    this.threshold = rate >= 1 ? 1L << 53 : (long) (rate * RANDOM_RANGE);
+    this.weight = rate >= 1 ? 1 : (int) Math.min(Integer.MAX_VALUE, Math.round(1 / rate));
+  }
+}
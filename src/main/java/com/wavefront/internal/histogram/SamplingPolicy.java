@@ -0,0 +1,47 @@
+package com.wavefront.internal.histogram;
+
+/**
+ * How values recorded into a sampled histogram or timer are sampled. Every metric created with a
+ * policy gets its own {@link Sampler}.
+ */
+public final class SamplingPolicy {
+
+  private final double rate;
+  private final long targetUpdatesPerSecond;
+
+  private SamplingPolicy(double rate, long targetUpdatesPerSecond) {
+    this.rate = rate;
+    this.targetUpdatesPerSecond = targetUpdatesPerSecond;
+  }
+
+  /**
+   * Record a fixed fraction of all values.
+   *
+   * @param rate fraction of values to record, between 0 (exclusive) and 1 (inclusive)
+   * @return SamplingPolicy
+   */
+  public static SamplingPolicy fixedRate(double rate) {
+    if (!(rate > 0 && rate <= 1)) {
+      throw new IllegalArgumentException("rate must be in (0, 1]");
+    }
+    return new SamplingPolicy(rate, 0);
+  }
+
+  /**
+   * Adjust the sampling rate every second so that about {@code targetUpdatesPerSecond} values
+   * are recorded per second, recording every value while the update rate stays below target.
+   *
+   * @param targetUpdatesPerSecond number of values to record per second
+   * @return SamplingPolicy
+   */
+  public static SamplingPolicy adaptive(long targetUpdatesPerSecond) {
+    if (targetUpdatesPerSecond < 1) {
+      throw new IllegalArgumentException("targetUpdatesPerSecond must be positive");
+    }
+    return new SamplingPolicy(1, targetUpdatesPerSecond);
+  }
+
+  public Sampler newSampler() {
+    return new Sampler(rate, targetUpdatesPerSecond);
+  }
+}
@@ -0,0 +1,227 @@
+package com.wavefront.internal.histogram;
+
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import io.dropwizard.metrics5.Snapshot;
+
+/**
+ * {@link DistributionRecorder} recording through a single {@link WavefrontHistogramImpl}. The
+ * histogram only flushes completed minutes, so flushing all minutes retires it: updates go to a
+ * new histogram while the retired one is flushed with its own clock moved past its current
+ * minute. Updates that read the histogram just before it was retired may still be recorded into
+ * it, so it is flushed along with the new one until the next time all minutes are flushed.
+ *
+ * <p>The histogram cannot be read without flushing it, so merged distributions and the minutes
+ * drained to peek at them are kept in side {@link MinuteBins}, flushed along with the histogram.
+ */
+public class SharedDistributionRecorder implements DistributionRecorder {
+
+  private static final Comparator<WavefrontHistogramImpl.Distribution> BY_TIMESTAMP =
+      Comparator.comparingLong(distribution -> distribution.timestamp);
+
+  private final Supplier<Long> clockMillis;
+  private volatile Delegate current;
+  private volatile Delegate retired;
+
+  // Guarded by this.
+  private final MinuteBins bins = new MinuteBins();
+
+  public SharedDistributionRecorder(Supplier<Long> clockMillis) {
+    this.clockMillis = clockMillis;
+    this.current = new Delegate(clockMillis);
+  }
+
+  @Override
+  public void update(double value) {
+    current.histogram.update(value);
+  }
+
+  @Override
+  public void update(double value, int weight) {
+    current.histogram.bulkUpdate(Collections.singletonList(value),
+        Collections.singletonList(weight));
+  }
+
+  @Override
+  public long getCount() {
+    Delegate retired = this.retired;
+    long binned;
+    synchronized (this) {
+      binned = bins.getCount();
+    }
+    return current.histogram.getCount() + (retired == null ? 0 : retired.histogram.getCount()) +
+        binned;
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    synchronized (this) {
+      if (!bins.isEmpty()) {
+        // the histogram snapshot would miss the side bins, so drain it into them
+        bins.addAll(retire());
+        CentroidDigest digest = new CentroidDigest();
+        bins.mergeInto(digest);
+        return new DigestSnapshot(digest);
+      }
+    }
+    final WavefrontHistogramImpl delegate = current.histogram;
+    final WavefrontHistogramImpl.Snapshot delegateSnapshot = delegate.getSnapshot();
+
+    return new Snapshot() {
+      @Override
+      public double getMedian() {
+        return getValue(.50);
+      }
+
+      @Override
+      public double get75thPercentile() {
+        return getValue(.75);
+      }
+
+      @Override
+      public double get95thPercentile() {
+        return getValue(.95);
+      }
+
+      @Override
+      public double get98thPercentile() {
+        return getValue(.98);
+      }
+
+      @Override
+      public double get99thPercentile() {
+        return getValue(.99);
+      }
+
+      @Override
+      public double get999thPercentile() {
+        return getValue(.999);
+      }
+
+      @Override
+      public long getMax() {
+        return Math.round(delegateSnapshot.getMax());
+      }
+
+      @Override
+      public double getMean() {
+        return delegateSnapshot.getMean();
+      }
+
+      @Override
+      public long getMin() {
+        return (long) delegateSnapshot.getMin();
+      }
+
+      @Override
+      public double getStdDev() {
+        return delegate.stdDev();
+      }
+
+      @Override
+      public void dump(OutputStream outputStream) {
+      }
+
+      @Override
+      public double getValue(double quantile) {
+        return delegateSnapshot.getValue(quantile);
+      }
+
+      @Override
+      public long[] getValues() {
+        return new long[0];
+      }
+
+      @Override
+      public int size() {
+        return delegateSnapshot.getSize();
+      }
+    };
+  }
+
+  @Override
+  public List<WavefrontHistogramImpl.Distribution> flushDistributions() {
+    Delegate retired = this.retired;
+    List<WavefrontHistogramImpl.Distribution> distributions =
+        new ArrayList<>(current.histogram.flushDistributions());
+    if (retired != null) {
+      distributions.addAll(retired.histogram.flushDistributions());
+    }
+    synchronized (this) {
+      distributions.addAll(bins.flush(MinuteBins.minuteMillis(clockMillis.get())));
+    }
+    distributions.sort(BY_TIMESTAMP);
+    return distributions;
+  }
+
+  @Override
+  public synchronized List<WavefrontHistogramImpl.Distribution> flushAllDistributions() {
+    List<WavefrontHistogramImpl.Distribution> distributions = retire();
+    distributions.addAll(bins.flush(Long.MAX_VALUE));
+    distributions.sort(BY_TIMESTAMP);
+    return distributions;
+  }
+
+  @Override
+  public boolean supportsPeek() {
+    return true;
+  }
+
+  @Override
+  public boolean supportsMerge() {
+    return true;
+  }
+
+  @Override
+  public synchronized List<WavefrontHistogramImpl.Distribution> peekDistributions() {
+    bins.addAll(retire());
+    return bins.distributions();
+  }
+
+  @Override
+  public synchronized void merge(List<WavefrontHistogramImpl.Distribution> distributions) {
+    bins.addAll(distributions);
+  }
+
+  /**
+   * Retire the current histogram and return the distributions of all its minutes, along with
+   * the ones of the histogram retired before it.
+   */
+  private List<WavefrontHistogramImpl.Distribution> retire() {
+    Delegate previous = retired;
+    retired = current;
+    current = new Delegate(clockMillis);
+    List<WavefrontHistogramImpl.Distribution> distributions = new ArrayList<>(retired.flushAll());
+    if (previous != null) {
+      distributions.addAll(previous.flushAll());
+    }
+    return distributions;
+  }
+
+  private static class Delegate {
+    private final WavefrontHistogramImpl histogram;
+    private volatile long clockOffsetMillis = 0;
+
+    Delegate(Supplier<Long> clockMillis) {
+      histogram = new WavefrontHistogramImpl(() -> clockMillis.get() + clockOffsetMillis);
+    }
+
+    List<WavefrontHistogramImpl.Distribution> flushAll() {
+      // only this histogram, which no longer receives updates, sees its current minute as
+      // completed
+      clockOffsetMillis = 60000L;
+      try {
+        return histogram.flushDistributions();
+      } finally {
+        clockOffsetMillis = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,531 @@
+package com.wavefront.internal.histogram;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import io.dropwizard.metrics5.Snapshot;
+
+/**
+ * Off-heap storage for the minute bins of many {@link io.dropwizard.metrics5.WavefrontHistogram}s.
+ * Every (histogram, minute) bin lives in a fixed-size slot of a direct {@link ByteBuffer} slab
+ * holding its merged centroids plus a small buffer of raw values, so the on-heap footprint of a
+ * histogram is a handful of fields regardless of how many values it records.
+ *
+ * <p>Slots of a single histogram are guarded by that histogram's recorder; slots of different
+ * histograms are disjoint regions of the slab and are only ever accessed with absolute
+ * operations.
+ *
+ * <p>The slots of a histogram are released when they are flushed, when the histogram is
+ * {@linkplain DistributionRecorder#release() released}, e.g. by the reporter once it is removed
+ * from its registry, or when its recorder is garbage collected.
+ */
+public class SlabDistributionStore {
+
+  private static final int SLOTS_PER_SLAB = 256;
+  private static final int BUFFER_CAPACITY = 64;
+
+  // Slot layout
+  private static final int MINUTE_OFFSET = 0;
+  private static final int COUNT_OFFSET = 8;
+  private static final int MIN_OFFSET = 16;
+  private static final int MAX_OFFSET = 24;
+  private static final int CENTROID_COUNT_OFFSET = 32;
+  private static final int BUFFER_COUNT_OFFSET = 36;
+  private static final int HEADER_SIZE = 40;
+  private static final int CENTROID_SIZE = 12;
+
+  private static volatile SlabDistributionStore shared;
+
+  private final int compression;
+  private final int centroidCapacity;
+  private final int bufferOffset;
+  private final int slotSize;
+
+  // copied on growth so that slots can be resolved without holding the store lock
+  private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+  private int[] freeSlots = new int[SLOTS_PER_SLAB];
+  private int freeCount = 0;
+  private int slotsInUse = 0;
+
+  private final ThreadLocal<CentroidDigest> scratch;
+
+  // recorders that were garbage collected, and the references that keep their bins reachable
+  private final ReferenceQueue<DistributionRecorder> collected = new ReferenceQueue<>();
+  private final Set<BinsReference> references = ConcurrentHashMap.newKeySet();
+
+  public SlabDistributionStore() {
+    this(CentroidDigest.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param compression fixed compression used for every bin held by this store
+   */
+  public SlabDistributionStore(int compression) {
+    if (compression < 1) {
+      throw new IllegalArgumentException("compression must be positive");
+    }
+    this.compression = compression;
+    // every centroid the digest can retain, so that compressing a bin never drops weight
+    this.centroidCapacity = CentroidDigest.maxCentroids(compression);
+    this.bufferOffset = HEADER_SIZE + centroidCapacity * CENTROID_SIZE;
+    this.slotSize = bufferOffset + BUFFER_CAPACITY * 8;
+    this.scratch = ThreadLocal.withInitial(() -> new CentroidDigest(compression));
+  }
+
+  /**
+   * Returns the store used by histograms that are not created through a reporter.
+   */
+  public static SlabDistributionStore shared() {
+    SlabDistributionStore store = shared;
+    if (store == null) {
+      synchronized (SlabDistributionStore.class) {
+        store = shared;
+        if (store == null) {
+          store = new SlabDistributionStore();
+          shared = store;
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Returns a recorder for a new histogram whose bins are held by this store.
+   *
+   * @param clockMillis clock used to assign values to minute bins
+   * @return DistributionRecorder
+   */
+  public DistributionRecorder newRecorder(Supplier<Long> clockMillis) {
+    releaseCollected();
+    Bins bins = new Bins(clockMillis);
+    SlabDistributionRecorder recorder = new SlabDistributionRecorder(bins);
+    references.add(new BinsReference(recorder, bins, collected));
+    return recorder;
+  }
+
+  public int getCompression() {
+    return compression;
+  }
+
+  /**
+   * Returns the number of off-heap bytes reserved by this store.
+   */
+  public synchronized long getReservedBytes() {
+    return (long) slabs.length * SLOTS_PER_SLAB * slotSize;
+  }
+
+  /**
+   * Returns the number of minute bins currently held by this store.
+   */
+  public int getSlotsInUse() {
+    releaseCollected();
+    synchronized (this) {
+      return slotsInUse;
+    }
+  }
+
+  /**
+   * Release the bins of recorders that were garbage collected without being flushed.
+   */
+  private void releaseCollected() {
+    Reference<? extends DistributionRecorder> reference;
+    while ((reference = collected.poll()) != null) {
+      BinsReference binsReference = (BinsReference) reference;
+      references.remove(binsReference);
+      binsReference.bins.release();
+    }
+  }
+
+  private int allocate(long minuteMillis) {
+    // the bins being collected are unreachable, so releasing them cannot deadlock with the caller
+    releaseCollected();
+    return allocateSlot(minuteMillis);
+  }
+
+  private synchronized int allocateSlot(long minuteMillis) {
+    if (freeCount == 0) {
+      ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+      grown[slabs.length] = ByteBuffer.allocateDirect(SLOTS_PER_SLAB * slotSize);
+      int base = slabs.length * SLOTS_PER_SLAB;
+      slabs = grown;
+      for (int i = SLOTS_PER_SLAB - 1; i >= 0; i--) {
+        freeSlots[freeCount++] = base + i;
+      }
+    }
+    int slot = freeSlots[--freeCount];
+    slotsInUse++;
+    ByteBuffer slab = slab(slot);
+    int offset = offset(slot);
+    slab.putLong(offset + MINUTE_OFFSET, minuteMillis);
+    slab.putLong(offset + COUNT_OFFSET, 0);
+    slab.putDouble(offset + MIN_OFFSET, Double.POSITIVE_INFINITY);
+    slab.putDouble(offset + MAX_OFFSET, Double.NEGATIVE_INFINITY);
+    slab.putInt(offset + CENTROID_COUNT_OFFSET, 0);
+    slab.putInt(offset + BUFFER_COUNT_OFFSET, 0);
+    return slot;
+  }
+
+  private synchronized void releaseSlot(int slot) {
+    if (freeCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+    }
+    freeSlots[freeCount++] = slot;
+    slotsInUse--;
+  }
+
+  private ByteBuffer slab(int slot) {
+    return slabs[slot / SLOTS_PER_SLAB];
+  }
+
+  private int offset(int slot) {
+    return (slot % SLOTS_PER_SLAB) * slotSize;
+  }
+
+  private long minuteOf(int slot) {
+    return slab(slot).getLong(offset(slot) + MINUTE_OFFSET);
+  }
+
+  private long countOf(int slot) {
+    return slab(slot).getLong(offset(slot) + COUNT_OFFSET);
+  }
+
+  private void record(int slot, double value) {
+    ByteBuffer slab = slab(slot);
+    int offset = offset(slot);
+    int buffered = slab.getInt(offset + BUFFER_COUNT_OFFSET);
+    if (buffered == BUFFER_CAPACITY) {
+      compress(slab, offset, load(slab, offset));
+      buffered = 0;
+    }
+    slab.putDouble(offset + bufferOffset + buffered * 8, value);
+    slab.putInt(offset + BUFFER_COUNT_OFFSET, buffered + 1);
+    slab.putLong(offset + COUNT_OFFSET, slab.getLong(offset + COUNT_OFFSET) + 1);
+    if (value < slab.getDouble(offset + MIN_OFFSET)) {
+      slab.putDouble(offset + MIN_OFFSET, value);
+    }
+    if (value > slab.getDouble(offset + MAX_OFFSET)) {
+      slab.putDouble(offset + MAX_OFFSET, value);
+    }
+  }
+
+  /**
+   * Load the slot into the calling thread's scratch digest, including buffered values.
+   */
+  private CentroidDigest load(ByteBuffer slab, int offset) {
+    CentroidDigest digest = scratch.get();
+    digest.reset();
+    int centroids = slab.getInt(offset + CENTROID_COUNT_OFFSET);
+    int position = offset + HEADER_SIZE;
+    for (int i = 0; i < centroids; i++, position += CENTROID_SIZE) {
+      digest.restoreCentroid(slab.getDouble(position), slab.getInt(position + 8));
+    }
+    int buffered = slab.getInt(offset + BUFFER_COUNT_OFFSET);
+    position = offset + bufferOffset;
+    for (int i = 0; i < buffered; i++, position += 8) {
+      digest.add(slab.getDouble(position));
+    }
+    digest.restoreRange(slab.getDouble(offset + MIN_OFFSET), slab.getDouble(offset + MAX_OFFSET));
+    return digest;
+  }
+
+  /**
+   * Write the merged centroids of {@code digest} back into the slot and empty its buffer.
+   */
+  private void compress(ByteBuffer slab, int offset, CentroidDigest digest) {
+    int centroids = digest.centroidCount();
+    int position = offset + HEADER_SIZE;
+    for (int i = 0; i < centroids; i++, position += CENTROID_SIZE) {
+      slab.putDouble(position, digest.centroidMean(i));
+      slab.putInt(position + 8, (int) Math.min(digest.centroidWeight(i), Integer.MAX_VALUE));
+    }
+    slab.putInt(offset + CENTROID_COUNT_OFFSET, centroids);
+    slab.putInt(offset + BUFFER_COUNT_OFFSET, 0);
+  }
+
+  private void mergeCentroids(int slot, List<Pair<Double, Integer>> centroids) {
+    ByteBuffer slab = slab(slot);
+    int offset = offset(slot);
+    CentroidDigest digest = load(slab, offset);
+    long count = 0;
+    for (Pair<Double, Integer> centroid : centroids) {
+      digest.add(centroid._1, centroid._2);
+      count += centroid._2;
+    }
+    compress(slab, offset, digest);
+    slab.putLong(offset + COUNT_OFFSET, slab.getLong(offset + COUNT_OFFSET) + count);
+    slab.putDouble(offset + MIN_OFFSET, digest.getMin());
+    slab.putDouble(offset + MAX_OFFSET, digest.getMax());
+  }
+
+  private void mergeInto(int slot, CentroidDigest target) {
+    target.add(load(slab(slot), offset(slot)));
+  }
+
+  private WavefrontHistogramImpl.Distribution toDistribution(int slot) {
+    ByteBuffer slab = slab(slot);
+    int offset = offset(slot);
+    CentroidDigest digest = load(slab, offset);
+    return new WavefrontHistogramImpl.Distribution(slab.getLong(offset + MINUTE_OFFSET),
+        digest.centroids());
+  }
+
+  /**
+   * Recorder handed out to a histogram. Its bins are kept apart so that they can be released
+   * once the recorder is garbage collected.
+   */
+  private static class SlabDistributionRecorder implements DistributionRecorder {
+    private final Bins bins;
+
+    SlabDistributionRecorder(Bins bins) {
+      this.bins = bins;
+    }
+
+    @Override
+    public void update(double value) {
+      bins.update(value);
+    }
+
+    @Override
+    public long getCount() {
+      return bins.getCount();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+      return bins.getSnapshot();
+    }
+
+    @Override
+    public List<WavefrontHistogramImpl.Distribution> flushDistributions() {
+      return bins.flushDistributions();
+    }
+
+    @Override
+    public List<WavefrontHistogramImpl.Distribution> flushAllDistributions() {
+      return bins.flushAllDistributions();
+    }
+
+    @Override
+    public boolean supportsPeek() {
+      return true;
+    }
+
+    @Override
+    public boolean supportsMerge() {
+      return true;
+    }
+
+    @Override
+    public List<WavefrontHistogramImpl.Distribution> peekDistributions() {
+      return bins.peekDistributions();
+    }
+
+    @Override
+    public void merge(List<WavefrontHistogramImpl.Distribution> distributions) {
+      bins.merge(distributions);
+    }
+
+    @Override
+    public void release() {
+      bins.release();
+    }
+  }
+
+  private static class BinsReference extends PhantomReference<DistributionRecorder> {
+    private final Bins bins;
+
+    BinsReference(DistributionRecorder recorder, Bins bins,
+                  ReferenceQueue<DistributionRecorder> queue) {
+      super(recorder, queue);
+      this.bins = bins;
+    }
+  }
+
+  /**
+   * Bins of a single histogram: the slot of the current minute plus the slots of earlier minutes
+   * that have not been flushed yet.
+   */
+  private class Bins implements DistributionRecorder {
+    private final Supplier<Long> clockMillis;
+
+    private long currentMinuteMillis = Long.MIN_VALUE;
+    private int currentSlot = -1;
+    private int[] completedSlots = null;
+    private int completedCount = 0;
+
+    Bins(Supplier<Long> clockMillis) {
+      this.clockMillis = clockMillis;
+    }
+
+    @Override
+    public synchronized void update(double value) {
+      long minuteMillis = MinuteBins.minuteMillis(clockMillis.get());
+      if (minuteMillis != currentMinuteMillis) {
+        completeCurrentSlot();
+        currentSlot = allocate(minuteMillis);
+        currentMinuteMillis = minuteMillis;
+      }
+      record(currentSlot, value);
+    }
+
+    private void completeCurrentSlot() {
+      if (currentSlot < 0) {
+        return;
+      }
+      if (completedSlots == null) {
+        completedSlots = new int[2];
+      } else if (completedCount == completedSlots.length) {
+        completedSlots = Arrays.copyOf(completedSlots, completedCount * 2);
+      }
+      completedSlots[completedCount++] = currentSlot;
+      currentSlot = -1;
+      currentMinuteMillis = Long.MIN_VALUE;
+      trimCompletedSlots();
+    }
+
+    private void trimCompletedSlots() {
+      // same retention as WavefrontHistogramImpl
+      while (completedCount > MinuteBins.MAX_BINS) {
+        releaseSlot(completedSlots[0]);
+        System.arraycopy(completedSlots, 1, completedSlots, 0, --completedCount);
+      }
+    }
+
+    @Override
+    public synchronized void merge(List<WavefrontHistogramImpl.Distribution> distributions) {
+      for (WavefrontHistogramImpl.Distribution distribution : distributions) {
+        int slot = slotFor(MinuteBins.minuteMillis(distribution.timestamp));
+        if (slot >= 0) {
+          mergeCentroids(slot, distribution.centroids);
+        }
+      }
+    }
+
+    /**
+     * Returns the slot holding the given minute, adding a completed slot if needed, or -1 if the
+     * minute is older than every retained bin.
+     */
+    private int slotFor(long minuteMillis) {
+      if (currentSlot >= 0 && minuteMillis == currentMinuteMillis) {
+        return currentSlot;
+      }
+      // completed slots are ordered by minute
+      int index = completedCount;
+      for (int i = 0; i < completedCount; i++) {
+        long completedMinuteMillis = minuteOf(completedSlots[i]);
+        if (completedMinuteMillis == minuteMillis) {
+          return completedSlots[i];
+        } else if (completedMinuteMillis > minuteMillis) {
+          index = i;
+          break;
+        }
+      }
+      if (index == 0 && completedCount >= MinuteBins.MAX_BINS) {
+        return -1;
+      }
+      if (completedSlots == null) {
+        completedSlots = new int[2];
+      } else if (completedCount == completedSlots.length) {
+        completedSlots = Arrays.copyOf(completedSlots, completedCount * 2);
+      }
+      int slot = allocate(minuteMillis);
+      System.arraycopy(completedSlots, index, completedSlots, index + 1, completedCount - index);
+      completedSlots[index] = slot;
+      completedCount++;
+      trimCompletedSlots();
+      return slot;
+    }
+
+    @Override
+    public synchronized long getCount() {
+      long count = currentSlot >= 0 ? countOf(currentSlot) : 0;
+      for (int i = 0; i < completedCount; i++) {
+        count += countOf(completedSlots[i]);
+      }
+      return count;
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+      CentroidDigest digest = new CentroidDigest(compression);
+      for (int i = 0; i < completedCount; i++) {
+        mergeInto(completedSlots[i], digest);
+      }
+      if (currentSlot >= 0) {
+        mergeInto(currentSlot, digest);
+      }
+      return new DigestSnapshot(digest);
+    }
+
+    @Override
+    public synchronized List<WavefrontHistogramImpl.Distribution> flushDistributions() {
+      long minuteMillis = MinuteBins.minuteMillis(clockMillis.get());
+      if (currentSlot >= 0 && currentMinuteMillis < minuteMillis) {
+        completeCurrentSlot();
+      }
+      return flushCompletedSlots();
+    }
+
+    @Override
+    public synchronized List<WavefrontHistogramImpl.Distribution> flushAllDistributions() {
+      completeCurrentSlot();
+      return flushCompletedSlots();
+    }
+
+    @Override
+    public synchronized List<WavefrontHistogramImpl.Distribution> peekDistributions() {
+      List<WavefrontHistogramImpl.Distribution> distributions =
+          new ArrayList<>(completedCount + 1);
+      for (int i = 0; i < completedCount; i++) {
+        if (countOf(completedSlots[i]) > 0) {
+          distributions.add(toDistribution(completedSlots[i]));
+        }
+      }
+      if (currentSlot >= 0 && countOf(currentSlot) > 0) {
+        distributions.add(toDistribution(currentSlot));
+      }
+      return distributions;
+    }
+
+    private List<WavefrontHistogramImpl.Distribution> flushCompletedSlots() {
+      if (completedCount == 0) {
+        return Collections.emptyList();
+      }
+      List<WavefrontHistogramImpl.Distribution> distributions = new ArrayList<>(completedCount);
+      for (int i = 0; i < completedCount; i++) {
+        int slot = completedSlots[i];
+        if (countOf(slot) > 0) {
+          distributions.add(toDistribution(slot));
+        }
+        releaseSlot(slot);
+      }
+      completedCount = 0;
+      return distributions;
+    }
+
+    @Override
+    public synchronized void release() {
+      if (currentSlot >= 0) {
+        releaseSlot(currentSlot);
+        currentSlot = -1;
+        currentMinuteMillis = Long.MIN_VALUE;
+      }
+      for (int i = 0; i < completedCount; i++) {
+        releaseSlot(completedSlots[i]);
+      }
+      completedCount = 0;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.wavefront.internal.reporter;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import io.dropwizard.metrics5.Clock;
+
+/**
+ * A {@link Clock} returning times cached by a background thread, so that reading it is a volatile
+ * read instead of a call into the OS clock. Times advance in steps of the clock's resolution:
+ * durations measured with it are only accurate to that resolution, which suits timing operations
+ * that are long compared to the resolution or recorded at a high rate. The precise time remains
+ * available through {@link #getPreciseTick()} and {@link #getPreciseTime()}.
+ *
+ * <p>Clocks are shared per resolution and ticked by a single daemon thread each. Every
+ * {@link #withResolution(Duration)} takes a reference to the clock that is given back with
+ * {@link #release()}: once the last one is released, the thread stops and the clock reads the OS
+ * clock, so that metrics still holding it keep measuring correctly.
+ */
+public class CoarseClock extends Clock {
+
+  private static final Map<Long, CoarseClock> clocks = new ConcurrentHashMap<>();
+
+  private final long resolutionNanos;
+  private final Thread ticker;
+  // guarded by the entry of the clock in clocks
+  private int references = 0;
+  private volatile boolean ticking = true;
+  private volatile long tick;
+  private volatile long time;
+  // boxed once per change of the time so that millis() does not allocate
+  private volatile Long boxedTime;
+
+  private CoarseClock(long resolutionNanos) {
+    this.resolutionNanos = resolutionNanos;
+    update();
+    ticker = new Thread(this::run, "wavefront-coarse-clock-" +
+        Duration.ofNanos(resolutionNanos).toString().substring(2).toLowerCase());
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * Returns the coarse clock of the given resolution, starting it if needed. Each call must be
+   * matched by a {@link #release()} once the clock is no longer needed.
+   *
+   * @param resolution interval at which the cached times are updated, at least 100 microseconds
+   */
+  public static CoarseClock withResolution(Duration resolution) {
+    long resolutionNanos = resolution.toNanos();
+    if (resolutionNanos < 100_000) {
+      throw new IllegalArgumentException("resolution must be at least 100 microseconds");
+    }
+    return clocks.compute(resolutionNanos, (key, clock) -> {
+      if (clock == null) {
+        clock = new CoarseClock(key);
+      }
+      clock.references++;
+      return clock;
+    });
+  }
+
+  /**
+   * Give back a reference taken by {@link #withResolution(Duration)}. Releasing the last one stops
+   * the ticker thread, and the next {@link #withResolution(Duration)} starts a new clock.
+   */
+  public void release() {
+    clocks.computeIfPresent(resolutionNanos, (key, clock) -> {
+      if (clock != this || --references > 0) {
+        return clock;
+      }
+      ticking = false;
+      LockSupport.unpark(ticker);
+      return null;
+    });
+  }
+
+  public Duration getResolution() {
+    return Duration.ofNanos(resolutionNanos);
+  }
+
+  private void run() {
+    while (ticking) {
+      LockSupport.parkNanos(resolutionNanos);
+      update();
+    }
+  }
+
+  private void update() {
+    tick = System.nanoTime();
+    long now = System.currentTimeMillis();
+    if (now != time || boxedTime == null) {
+      time = now;
+      boxedTime = now;
+    }
+  }
+
+  /**
+   * Returns the cached tick, in nanoseconds.
+   */
+  @Override
+  public long getTick() {
+    return ticking ? tick : System.nanoTime();
+  }
+
+  /**
+   * Returns the cached time, in milliseconds since the epoch.
+   */
+  @Override
+  public long getTime() {
+    return ticking ? time : System.currentTimeMillis();
+  }
+
+  public long getPreciseTick() {
+    return System.nanoTime();
+  }
+
+  public long getPreciseTime() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Returns a supplier of the cached time in milliseconds, e.g. as the clock of a
+   * {@link io.dropwizard.metrics5.WavefrontHistogram}.
+   */
+  public Supplier<Long> millis() {
+    return () -> ticking ? boxedTime : System.currentTimeMillis();
+  }
+}
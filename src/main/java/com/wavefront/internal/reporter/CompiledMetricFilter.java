@@ -0,0 +1,307 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.sdk.common.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import io.dropwizard.metrics5.Counter;
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.Histogram;
+import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.Metric;
+import io.dropwizard.metrics5.MetricFilter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistryListener;
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * A {@link MetricFilter} evaluating include and exclude rules on metric names and point tags.
+ * Name prefixes and the literal prefixes of globs are compiled into a single trie and tag rules
+ * are indexed by tag key, so the cost of evaluating a metric does not grow with the number of
+ * rules. Each metric is evaluated once, when it is added to the registry, and the decision is
+ * cached; filtering during a reporting cycle is a lookup of that decision.
+ *
+ * <p>A metric is reported if it matches at least one include rule (or no include rules are
+ * configured) and matches no exclude rule. Names are matched without the reporter prefix and
+ * without the delta counter prefix.
+ */
+class CompiledMetricFilter implements MetricFilter, MetricRegistryListener {
+
+  private final Rules includes;
+  private final Rules excludes;
+
+  // Dropwizard metrics use identity equality, so this lookup never touches the metric's tags.
+  private final Map<Metric, Boolean> decisionsByMetric = new ConcurrentHashMap<>();
+  private final Map<MetricName, Boolean> decisionsByName = new ConcurrentHashMap<>();
+  private final Map<MetricName, Metric> metricsByName = new ConcurrentHashMap<>();
+
+  CompiledMetricFilter(Rules includes, Rules excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  @Override
+  public boolean matches(MetricName name, Metric metric) {
+    Boolean decision = decisionsByMetric.get(metric);
+    if (decision != null) {
+      return decision;
+    }
+    decision = decisionsByName.get(name);
+    if (decision == null) {
+      decision = evaluate(name);
+      decisionsByName.put(name, decision);
+    }
+    return decision;
+  }
+
+  boolean evaluate(MetricName metricName) {
+    String name = metricName.getKey();
+    if (name.startsWith(Constants.DELTA_PREFIX) || name.startsWith(Constants.DELTA_PREFIX_2)) {
+      name = name.substring(1);
+    }
+    Map<String, String> tags = metricName.getTags();
+    return (includes.isEmpty() || includes.matches(name, tags)) && !excludes.matches(name, tags);
+  }
+
+  private void added(MetricName name, Metric metric) {
+    boolean decision = evaluate(name);
+    decisionsByName.put(name, decision);
+    metricsByName.put(name, metric);
+    Boolean previous = decisionsByMetric.putIfAbsent(metric, decision);
+    if (previous != null && previous != decision) {
+      // the same instance is registered under names with different outcomes
+      decisionsByMetric.remove(metric);
+    }
+  }
+
+  private void removed(MetricName name) {
+    decisionsByName.remove(name);
+    Metric metric = metricsByName.remove(name);
+    if (metric != null) {
+      decisionsByMetric.remove(metric);
+    }
+  }
+
+  @Override
+  public void onGaugeAdded(MetricName name, Gauge<?> gauge) {
+    added(name, gauge);
+  }
+
+  @Override
+  public void onGaugeRemoved(MetricName name) {
+    removed(name);
+  }
+
+  @Override
+  public void onCounterAdded(MetricName name, Counter counter) {
+    added(name, counter);
+  }
+
+  @Override
+  public void onCounterRemoved(MetricName name) {
+    removed(name);
+  }
+
+  @Override
+  public void onHistogramAdded(MetricName name, Histogram histogram) {
+    added(name, histogram);
+  }
+
+  @Override
+  public void onHistogramRemoved(MetricName name) {
+    removed(name);
+  }
+
+  @Override
+  public void onMeterAdded(MetricName name, Meter meter) {
+    added(name, meter);
+  }
+
+  @Override
+  public void onMeterRemoved(MetricName name) {
+    removed(name);
+  }
+
+  @Override
+  public void onTimerAdded(MetricName name, Timer timer) {
+    added(name, timer);
+  }
+
+  @Override
+  public void onTimerRemoved(MetricName name) {
+    removed(name);
+  }
+
+  /**
+   * A compiled set of name prefix, name glob and tag rules.
+   */
+  static class Rules {
+    private final TrieNode names = new TrieNode();
+    private final Map<String, TagRule> tags = new HashMap<>();
+    private boolean empty = true;
+
+    void addPrefix(String prefix) {
+      names.insert(prefix).terminal = true;
+      empty = false;
+    }
+
+    /**
+     * Add a glob where {@code *} matches any sequence of characters and {@code ?} matches any
+     * single character.
+     */
+    void addGlob(String glob) {
+      int wildcard = firstWildcard(glob);
+      if (wildcard < 0) {
+        names.insert(glob).exact = true;
+      } else {
+        names.insert(glob.substring(0, wildcard)).globs.add(compileGlob(glob));
+      }
+      empty = false;
+    }
+
+    void addTag(String key, String valueGlob) {
+      TagRule rule = tags.computeIfAbsent(key, k -> new TagRule());
+      if (valueGlob.equals("*")) {
+        rule.anyValue = true;
+      } else if (firstWildcard(valueGlob) < 0) {
+        rule.values.add(valueGlob);
+      } else {
+        rule.valueGlobs.add(compileGlob(valueGlob));
+      }
+      empty = false;
+    }
+
+    boolean isEmpty() {
+      return empty;
+    }
+
+    boolean matches(String name, Map<String, String> metricTags) {
+      if (empty) {
+        return false;
+      }
+      if (!tags.isEmpty()) {
+        for (Map.Entry<String, String> tag : metricTags.entrySet()) {
+          TagRule rule = tags.get(tag.getKey());
+          if (rule != null && rule.matches(tag.getValue())) {
+            return true;
+          }
+        }
+      }
+      TrieNode node = names;
+      int depth = 0;
+      while (node != null) {
+        if (node.terminal) {
+          return true;
+        }
+        if (!node.globs.isEmpty()) {
+          for (Pattern glob : node.globs) {
+            if (glob.matcher(name).matches()) {
+              return true;
+            }
+          }
+        }
+        if (depth == name.length()) {
+          return node.exact;
+        }
+        node = node.child(name.charAt(depth++));
+      }
+      return false;
+    }
+  }
+
+  private static class TagRule {
+    private boolean anyValue = false;
+    private final Set<String> values = new HashSet<>();
+    private final List<Pattern> valueGlobs = new ArrayList<>();
+
+    boolean matches(String value) {
+      if (anyValue || values.contains(value)) {
+        return true;
+      }
+      for (Pattern glob : valueGlobs) {
+        if (glob.matcher(value).matches()) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static class TrieNode {
+    private static final char[] NO_KEYS = new char[0];
+    private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+    // sorted so that children can be found with a binary search
+    private char[] keys = NO_KEYS;
+    private TrieNode[] children = NO_CHILDREN;
+    private boolean terminal = false;
+    private boolean exact = false;
+    private final List<Pattern> globs = new ArrayList<>(0);
+
+    TrieNode child(char c) {
+      int index = Arrays.binarySearch(keys, c);
+      return index < 0 ? null : children[index];
+    }
+
+    TrieNode insert(String path) {
+      TrieNode node = this;
+      for (int i = 0; i < path.length(); i++) {
+        char c = path.charAt(i);
+        int index = Arrays.binarySearch(node.keys, c);
+        if (index < 0) {
+          index = -index - 1;
+          char[] keys = new char[node.keys.length + 1];
+          TrieNode[] children = new TrieNode[node.children.length + 1];
+          System.arraycopy(node.keys, 0, keys, 0, index);
+          System.arraycopy(node.children, 0, children, 0, index);
+          keys[index] = c;
+          children[index] = new TrieNode();
+          System.arraycopy(node.keys, index, keys, index + 1, node.keys.length - index);
+          System.arraycopy(node.children, index, children, index + 1,
+              node.children.length - index);
+          node.keys = keys;
+          node.children = children;
+        }
+        node = node.children[index];
+      }
+      return node;
+    }
+  }
+
+  private static int firstWildcard(String glob) {
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static Pattern compileGlob(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int literalStart = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        if (i > literalStart) {
+          regex.append(Pattern.quote(glob.substring(literalStart, i)));
+        }
+        regex.append(c == '*' ? ".*" : ".");
+        literalStart = i + 1;
+      }
+    }
+    if (literalStart < glob.length()) {
+      regex.append(Pattern.quote(glob.substring(literalStart)));
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+}
@@ -0,0 +1,104 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.histogram.CentroidDigest;
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Shrinks distributions before they are sent. Distributions with more centroids than the budget
+ * are re-compressed into a digest sized for the budget. When coalescing and the minute
+ * granularity is not reported, distributions of the same hour, or of the same day if only the
+ * day granularity is reported, are merged into a single distribution: Wavefront aggregates them
+ * into the same hour or day bin anyway.
+ */
+class DistributionCompactor {
+  private static final long HOUR_MILLIS = 3600_000L;
+  private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+  private final int maxCentroids;
+  private final long coalesceMillis;
+  // largest compression whose digests fit the budget, see CentroidDigest#maxCentroids
+  private final int compression;
+  // guarded by this
+  private final CentroidDigest digest;
+
+  /**
+   * @param maxCentroids   centroid budget per distribution, at least 3, or 0 for no budget
+   * @param coalesce       whether to merge distributions of the same hour or day
+   * @param granularities  granularities the distributions are reported with
+   */
+  DistributionCompactor(int maxCentroids, boolean coalesce,
+                        Set<HistogramGranularity> granularities) {
+    if (maxCentroids != 0 && maxCentroids < CentroidDigest.maxCentroids(1)) {
+      throw new IllegalArgumentException("centroid budget must be at least " +
+          CentroidDigest.maxCentroids(1));
+    }
+    this.maxCentroids = maxCentroids;
+    if (!coalesce || granularities.isEmpty() ||
+        granularities.contains(HistogramGranularity.MINUTE)) {
+      this.coalesceMillis = 0;
+    } else {
+      this.coalesceMillis = granularities.contains(HistogramGranularity.HOUR) ? HOUR_MILLIS :
+          DAY_MILLIS;
+    }
+    this.compression = maxCentroids == 0 ? CentroidDigest.DEFAULT_COMPRESSION :
+        (maxCentroids - 1) / 2;
+    this.digest = new CentroidDigest(compression);
+  }
+
+  /**
+   * Returns whether {@link #compact(List)} can change any distribution.
+   */
+  boolean isEnabled() {
+    return maxCentroids > 0 || coalesceMillis > 0;
+  }
+
+  /**
+   * @param distributions distributions ordered by timestamp
+   * @return the compacted distributions, ordered by timestamp
+   */
+  synchronized List<WavefrontHistogramImpl.Distribution> compact(
+      List<WavefrontHistogramImpl.Distribution> distributions) {
+    List<WavefrontHistogramImpl.Distribution> compacted = new ArrayList<>(distributions.size());
+    int i = 0;
+    while (i < distributions.size()) {
+      WavefrontHistogramImpl.Distribution first = distributions.get(i);
+      int end = i + 1;
+      if (coalesceMillis > 0) {
+        long interval = Math.floorDiv(first.timestamp, coalesceMillis);
+        while (end < distributions.size() &&
+            Math.floorDiv(distributions.get(end).timestamp, coalesceMillis) == interval) {
+          end++;
+        }
+      }
+      if (end == i + 1 && (maxCentroids == 0 || first.centroids.size() <= maxCentroids)) {
+        compacted.add(first);
+      } else {
+        List<Pair<Double, Integer>> centroids = merge(digest, distributions, i, end);
+        int reduced = compression;
+        while (maxCentroids > 0 && centroids.size() > maxCentroids && reduced > 1) {
+          reduced = Math.max(1, reduced * maxCentroids / centroids.size());
+          centroids = merge(new CentroidDigest(reduced), distributions, i, end);
+        }
+        compacted.add(new WavefrontHistogramImpl.Distribution(first.timestamp, centroids));
+      }
+      i = end;
+    }
+    return compacted;
+  }
+
+  private static List<Pair<Double, Integer>> merge(
+      CentroidDigest digest, List<WavefrontHistogramImpl.Distribution> distributions, int start,
+      int end) {
+    digest.reset();
+    for (int i = start; i < end; i++) {
+      digest.addAll(distributions.get(i).centroids);
+    }
+    return digest.centroids();
+  }
+}
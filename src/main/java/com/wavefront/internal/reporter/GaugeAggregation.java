@@ -0,0 +1,11 @@
+package com.wavefront.internal.reporter;
+
+/**
+ * How the values of gauges rolled up into a single series are combined.
+ */
+public enum GaugeAggregation {
+  SUM,
+  MIN,
+  MAX,
+  AVERAGE
+}
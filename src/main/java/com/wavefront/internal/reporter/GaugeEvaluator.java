@@ -0,0 +1,195 @@
+package com.wavefront.internal.reporter;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.MetricName;
+
+/**
+ * Evaluates gauges on a bounded pool so that a gauge blocking on a lock or a remote call cannot
+ * stall a reporting cycle. Every cycle submits all gauges, reports whatever else it has to
+ * report, then waits for the gauges. Each gauge gets the time budget from when its evaluation
+ * starts, so gauges queued behind others are not penalized, and the cycle stops waiting once every
+ * gauge still running is past its budget. Gauges that have not completed by then report their last
+ * value and are counted as slow; a gauge whose previous evaluation is still running is not
+ * submitted again, and its value is reported by the first cycle after it completes.
+ */
+class GaugeEvaluator implements Closeable {
+  private static final Logger logger = Logger.getLogger(GaugeEvaluator.class.getCanonicalName());
+
+  private final int threads;
+  private final long timeoutNanos;
+  private final ExecutorService executor;
+  // evaluations running on the pool, whichever cycle submitted them
+  private final AtomicInteger executing = new AtomicInteger();
+  // weak so that the state of gauges removed from the registry is dropped with them
+  private final Map<Gauge<?>, GaugeState> states =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  // notified whenever an evaluation starts or completes
+  private final Object progress = new Object();
+
+  // only accessed by the thread running the cycle
+  private final List<GaugeState> submitted = new ArrayList<>();
+
+  GaugeEvaluator(int threads, long timeoutNanos) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    this.threads = threads;
+    this.timeoutNanos = timeoutNanos;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable,
+              "wavefront-reporter-gauges-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Start a new cycle.
+   */
+  void startCycle() {
+    submitted.clear();
+  }
+
+  /**
+   * Start evaluating a gauge in the current cycle, unless its previous evaluation is still
+   * running.
+   */
+  void submit(MetricName metricName, Gauge<?> gauge) {
+    GaugeState state = states.computeIfAbsent(gauge, g -> new GaugeState(metricName));
+    submitted.add(state);
+    if (state.running) {
+      return;
+    }
+    state.running = true;
+    state.started = false;
+    try {
+      executor.execute(() -> {
+        executing.incrementAndGet();
+        state.startNanos = System.nanoTime();
+        state.started = true;
+        signalProgress();
+        try {
+          state.value = gauge.getValue();
+        } catch (RuntimeException e) {
+          logger.log(Level.FINE, "Unable to evaluate gauge " + state.metricName, e);
+        } finally {
+          executing.decrementAndGet();
+          state.running = false;
+          signalProgress();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the evaluator is closed: report the last value
+      state.running = false;
+    }
+  }
+
+  /**
+   * Wait for the gauges submitted in the current cycle until each of them has completed or run
+   * for the time budget, or is queued behind gauges that have.
+   *
+   * @return the number of gauges that did not complete in time
+   */
+  int awaitCycle() {
+    try {
+      await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    int slow = 0;
+    for (GaugeState state : submitted) {
+      if (state.running) {
+        slow++;
+        if (!state.slow) {
+          state.slow = true;
+          logger.log(Level.WARNING, "Gauge " + state.metricName + " did not complete within its " +
+              TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms budget, reporting its last value");
+        }
+      } else {
+        state.slow = false;
+      }
+    }
+    return slow;
+  }
+
+  private void await() throws InterruptedException {
+    synchronized (progress) {
+      while (true) {
+        long now = System.nanoTime();
+        long remaining = Long.MAX_VALUE;
+        boolean queued = false;
+        // includes evaluations started by previous cycles, which hold threads too
+        for (GaugeState state : submitted) {
+          if (!state.running) {
+            continue;
+          }
+          if (!state.started) {
+            queued = true;
+          } else if (state.startNanos + timeoutNanos - now > 0) {
+            remaining = Math.min(remaining, state.startNanos + timeoutNanos - now);
+          }
+        }
+        if (queued && executing.get() < threads) {
+          // a thread is free to start a queued gauge, which notifies once it does
+          remaining = Math.min(remaining, timeoutNanos);
+        } else if (remaining == Long.MAX_VALUE) {
+          // every gauge still running is done or past its budget, the others are queued
+          return;
+        }
+        TimeUnit.NANOSECONDS.timedWait(progress, remaining);
+      }
+    }
+  }
+
+  private void signalProgress() {
+    synchronized (progress) {
+      progress.notifyAll();
+    }
+  }
+
+  /**
+   * Returns the last value of the gauge, or null if it never completed an evaluation.
+   */
+  Object valueOf(Gauge<?> gauge) {
+    GaugeState state = states.get(gauge);
+    return state == null ? null : state.value;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private static class GaugeState {
+    private final MetricName metricName;
+    private volatile Object value;
+    private volatile boolean running = false;
+    // whether the running evaluation has left the queue, and since when
+    private volatile boolean started = false;
+    private volatile long startNanos;
+    // only accessed by the thread running the cycle
+    private boolean slow = false;
+
+    GaugeState(MetricName metricName) {
+      this.metricName = metricName;
+    }
+  }
+}
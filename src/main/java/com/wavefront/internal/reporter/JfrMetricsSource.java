@@ -0,0 +1,30 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.EntitiesInstantiator;
+
+import java.io.Closeable;
+
+/**
+ * Aggregates JDK Flight Recorder events into allocation, GC pause, safepoint and monitor
+ * contention metrics. JFR event streaming requires Java 14 or later: this is the implementation
+ * used on older runtimes, which does nothing. The streaming implementation is packaged under
+ * {@code META-INF/versions/14} of the multi-release jar.
+ */
+class JfrMetricsSource implements Closeable {
+
+  JfrMetricsSource(EntitiesInstantiator entitiesInstantiator) {
+  }
+
+  /**
+   * Start consuming JFR events.
+   *
+   * @return whether JFR event streaming is supported by the running JVM
+   */
+  boolean start() {
+    return false;
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,338 @@
+package com.wavefront.internal.reporter;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.Metric;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.MetricSet;
+
+/**
+ * Collects JVM metrics by querying every MXBean once per reporting cycle into primitive fields.
+ * The gauges handed out by this collector only read those fields, replacing the Dropwizard JVM
+ * metric sets where every gauge queries the MXBeans (or takes a thread dump) on its own. Metric
+ * names are the same as the ones of the Dropwizard JVM metric sets.
+ */
+public class JvmMetricsCollector {
+
+  /**
+   * How thread metrics are collected.
+   */
+  public enum ThreadStates {
+    /**
+     * Do not report thread metrics.
+     */
+    NONE,
+
+    /**
+     * Report thread and daemon thread counts only. Does not require a thread dump.
+     */
+    COUNTS,
+
+    /**
+     * Report thread counts per state and deadlocked threads. Requires a thread dump (without
+     * stack traces) and deadlock detection once per reporting cycle.
+     */
+    FULL
+  }
+
+  private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+  private static final String[] BUFFER_POOLS = {"direct", "mapped"};
+  private static final Thread.State[] THREAD_STATES = Thread.State.values();
+
+  private final ThreadStates threadStates;
+
+  private final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+  private final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+  private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final List<GarbageCollectorMXBean> garbageCollectors =
+      ManagementFactory.getGarbageCollectorMXBeans();
+  private final List<MemoryPoolMXBean> memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+  private final BufferPoolMXBean[] bufferPools = new BufferPoolMXBean[BUFFER_POOLS.length];
+  // methods of com.sun.management.UnixOperatingSystemMXBean, looked up reflectively as that
+  // interface is not part of every JVM, or null if the OS MXBean does not implement it
+  private final Method openFileDescriptorCount;
+  private final Method maxFileDescriptorCount;
+
+  // Last sample. Only written by sample(), which is called once per reporting cycle.
+  private volatile boolean sampled = false;
+  private long uptime;
+  private long classesLoaded;
+  private long classesUnloaded;
+  private double fileDescriptorUsage = Double.NaN;
+  private final long[] bufferCount = new long[BUFFER_POOLS.length];
+  private final long[] bufferUsed = new long[BUFFER_POOLS.length];
+  private final long[] bufferCapacity = new long[BUFFER_POOLS.length];
+  private final long[] gcCount;
+  private final long[] gcTime;
+  // init, used, max, committed
+  private final long[] heap = new long[4];
+  private final long[] nonHeap = new long[4];
+  private final long[][] pools;
+  private final long[] poolUsedAfterGc;
+  private int threadCount;
+  private int daemonThreadCount;
+  private int deadlockedThreadCount;
+  private final int[] threadStateCounts = new int[THREAD_STATES.length];
+
+  JvmMetricsCollector(ThreadStates threadStates) {
+    this.threadStates = threadStates;
+    Method openCount = null;
+    Method maxCount = null;
+    try {
+      Class<?> unix = Class.forName("com.sun.management.UnixOperatingSystemMXBean");
+      if (unix.isInstance(os)) {
+        openCount = unix.getMethod("getOpenFileDescriptorCount");
+        maxCount = unix.getMethod("getMaxFileDescriptorCount");
+      }
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      // file descriptor usage is not reported
+    }
+    openFileDescriptorCount = openCount;
+    maxFileDescriptorCount = maxCount;
+    for (BufferPoolMXBean bufferPool :
+        ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      for (int i = 0; i < BUFFER_POOLS.length; i++) {
+        if (BUFFER_POOLS[i].equals(bufferPool.getName())) {
+          bufferPools[i] = bufferPool;
+        }
+      }
+    }
+    gcCount = new long[garbageCollectors.size()];
+    gcTime = new long[garbageCollectors.size()];
+    pools = new long[memoryPools.size()][4];
+    poolUsedAfterGc = new long[memoryPools.size()];
+  }
+
+  /**
+   * Query all MXBeans and store their values for the gauges of this collector to read.
+   */
+  synchronized void sample() {
+    uptime = runtime.getUptime();
+    classesLoaded = classLoading.getTotalLoadedClassCount();
+    classesUnloaded = classLoading.getUnloadedClassCount();
+    if (openFileDescriptorCount != null) {
+      try {
+        fileDescriptorUsage = ratio((Long) openFileDescriptorCount.invoke(os),
+            (Long) maxFileDescriptorCount.invoke(os));
+      } catch (ReflectiveOperationException e) {
+        fileDescriptorUsage = Double.NaN;
+      }
+    }
+    for (int i = 0; i < bufferPools.length; i++) {
+      if (bufferPools[i] != null) {
+        bufferCount[i] = bufferPools[i].getCount();
+        bufferUsed[i] = bufferPools[i].getMemoryUsed();
+        bufferCapacity[i] = bufferPools[i].getTotalCapacity();
+      }
+    }
+    for (int i = 0; i < gcCount.length; i++) {
+      GarbageCollectorMXBean gc = garbageCollectors.get(i);
+      gcCount[i] = gc.getCollectionCount();
+      gcTime[i] = gc.getCollectionTime();
+    }
+    copy(memory.getHeapMemoryUsage(), heap);
+    copy(memory.getNonHeapMemoryUsage(), nonHeap);
+    for (int i = 0; i < pools.length; i++) {
+      MemoryPoolMXBean pool = memoryPools.get(i);
+      copy(pool.getUsage(), pools[i]);
+      MemoryUsage afterGc = pool.getCollectionUsage();
+      poolUsedAfterGc[i] = afterGc == null ? 0 : afterGc.getUsed();
+    }
+    switch (threadStates) {
+      case FULL:
+        Arrays.fill(threadStateCounts, 0);
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+          if (info != null) {
+            threadStateCounts[info.getThreadState().ordinal()]++;
+          }
+        }
+        long[] deadlocked = threads.findDeadlockedThreads();
+        deadlockedThreadCount = deadlocked == null ? 0 : deadlocked.length;
+        // fall through
+      case COUNTS:
+        threadCount = threads.getThreadCount();
+        daemonThreadCount = threads.getDaemonThreadCount();
+        break;
+      case NONE:
+      default:
+        break;
+    }
+    sampled = true;
+  }
+
+  private void ensureSampled() {
+    // gauges read outside of a reporting cycle before the first sample
+    if (!sampled) {
+      sample();
+    }
+  }
+
+  /**
+   * Replacement for {@code jvm.uptime}.
+   */
+  Gauge<Long> uptime() {
+    return () -> {
+      ensureSampled();
+      return uptime;
+    };
+  }
+
+  /**
+   * Replacement for {@code ClassLoadingGaugeSet}.
+   */
+  MetricSet classLoading() {
+    Map<MetricName, Metric> gauges = new HashMap<>();
+    gauges.put(MetricName.build("loaded"), longGauge(() -> classesLoaded));
+    gauges.put(MetricName.build("unloaded"), longGauge(() -> classesUnloaded));
+    return metricSet(gauges);
+  }
+
+  /**
+   * Replacement for {@code FileDescriptorRatioGauge}.
+   */
+  Gauge<Double> fileDescriptorUsage() {
+    return () -> {
+      ensureSampled();
+      return fileDescriptorUsage;
+    };
+  }
+
+  /**
+   * Replacement for {@code BufferPoolMetricSet}.
+   */
+  MetricSet bufferPools() {
+    Map<MetricName, Metric> gauges = new HashMap<>();
+    for (int i = 0; i < BUFFER_POOLS.length; i++) {
+      if (bufferPools[i] == null) {
+        continue;
+      }
+      final int pool = i;
+      gauges.put(MetricRegistry.name(BUFFER_POOLS[i], "count"),
+          longGauge(() -> bufferCount[pool]));
+      gauges.put(MetricRegistry.name(BUFFER_POOLS[i], "used"),
+          longGauge(() -> bufferUsed[pool]));
+      gauges.put(MetricRegistry.name(BUFFER_POOLS[i], "capacity"),
+          longGauge(() -> bufferCapacity[pool]));
+    }
+    return metricSet(gauges);
+  }
+
+  /**
+   * Replacement for {@code GarbageCollectorMetricSet}.
+   */
+  MetricSet garbageCollectors() {
+    Map<MetricName, Metric> gauges = new HashMap<>();
+    for (int i = 0; i < gcCount.length; i++) {
+      final int gc = i;
+      String name = WHITESPACE.matcher(garbageCollectors.get(i).getName()).replaceAll("-");
+      gauges.put(MetricRegistry.name(name, "count"), longGauge(() -> gcCount[gc]));
+      gauges.put(MetricRegistry.name(name, "time"), longGauge(() -> gcTime[gc]));
+    }
+    return metricSet(gauges);
+  }
+
+  /**
+   * Replacement for {@code MemoryUsageGaugeSet}.
+   */
+  MetricSet memory() {
+    Map<MetricName, Metric> gauges = new HashMap<>();
+    gauges.put(MetricName.build("total.init"), longGauge(() -> heap[0] + nonHeap[0]));
+    gauges.put(MetricName.build("total.used"), longGauge(() -> heap[1] + nonHeap[1]));
+    gauges.put(MetricName.build("total.max"),
+        longGauge(() -> heap[2] == -1 || nonHeap[2] == -1 ? -1 : heap[2] + nonHeap[2]));
+    gauges.put(MetricName.build("total.committed"), longGauge(() -> heap[3] + nonHeap[3]));
+    addUsage(gauges, "heap", heap);
+    addUsage(gauges, "non-heap", nonHeap);
+    for (int i = 0; i < pools.length; i++) {
+      final int pool = i;
+      MemoryPoolMXBean bean = memoryPools.get(i);
+      String name = "pools." + WHITESPACE.matcher(bean.getName()).replaceAll("-");
+      addUsage(gauges, name, pools[i]);
+      if (bean.getCollectionUsage() != null) {
+        gauges.put(MetricRegistry.name(name, "used-after-gc"),
+            longGauge(() -> poolUsedAfterGc[pool]));
+      }
+    }
+    return metricSet(gauges);
+  }
+
+  /**
+   * Replacement for {@code ThreadStatesGaugeSet}, reduced according to {@link ThreadStates}.
+   */
+  MetricSet threadStates() {
+    Map<MetricName, Metric> gauges = new HashMap<>();
+    if (threadStates == ThreadStates.NONE) {
+      return metricSet(gauges);
+    }
+    gauges.put(MetricName.build("count"), longGauge(() -> threadCount));
+    gauges.put(MetricName.build("daemon.count"), longGauge(() -> daemonThreadCount));
+    if (threadStates == ThreadStates.FULL) {
+      for (Thread.State state : THREAD_STATES) {
+        gauges.put(MetricRegistry.name(state.toString().toLowerCase(), "count"),
+            longGauge(() -> threadStateCounts[state.ordinal()]));
+      }
+      gauges.put(MetricName.build("deadlock.count"), longGauge(() -> deadlockedThreadCount));
+    }
+    return metricSet(gauges);
+  }
+
+  private void addUsage(Map<MetricName, Metric> gauges, String prefix, long[] usage) {
+    gauges.put(MetricRegistry.name(prefix, "init"), longGauge(() -> usage[0]));
+    gauges.put(MetricRegistry.name(prefix, "used"), longGauge(() -> usage[1]));
+    gauges.put(MetricRegistry.name(prefix, "max"), longGauge(() -> usage[2]));
+    gauges.put(MetricRegistry.name(prefix, "committed"), longGauge(() -> usage[3]));
+    gauges.put(MetricRegistry.name(prefix, "usage"), (Gauge<Double>) () -> {
+      ensureSampled();
+      return ratio(usage[1], usage[2] == -1 ? usage[3] : usage[2]);
+    });
+  }
+
+  private Gauge<Long> longGauge(LongReader reader) {
+    return () -> {
+      ensureSampled();
+      return reader.read();
+    };
+  }
+
+  private static MetricSet metricSet(Map<MetricName, Metric> gauges) {
+    Map<MetricName, Metric> metrics = Collections.unmodifiableMap(gauges);
+    return () -> metrics;
+  }
+
+  private static void copy(MemoryUsage usage, long[] target) {
+    target[0] = usage.getInit();
+    target[1] = usage.getUsed();
+    target[2] = usage.getMax();
+    target[3] = usage.getCommitted();
+  }
+
+  private static double ratio(double numerator, double denominator) {
+    return denominator == 0 ? Double.NaN : numerator / denominator;
+  }
+
+  @FunctionalInterface
+  private interface LongReader {
+    long read();
+  }
+}
@@ -0,0 +1,131 @@
+package com.wavefront.internal.reporter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Atomic access to the longs and ints of a memory-mapped file, shared by every process mapping
+ * it. Values are stored in native byte order and offsets must be aligned to the size of the
+ * value. This is the implementation used on older runtimes, which goes through
+ * {@code sun.misc.Unsafe}, looked up reflectively so that it is not linked at compile time; the
+ * implementation packaged under {@code META-INF/versions/14} of the multi-release jar uses byte
+ * buffer view handles instead. Both check every offset against the bounds of the mapping.
+ */
+class MappedLongs {
+  private static final MethodHandle GET_LONG_VOLATILE;
+  private static final MethodHandle GET_AND_ADD_LONG;
+  private static final MethodHandle COMPARE_AND_SWAP_LONG;
+  private static final MethodHandle GET_INT_VOLATILE;
+  private static final MethodHandle COMPARE_AND_SWAP_INT;
+  private static final MethodHandle GET_LONG;
+  private static final long ADDRESS_OFFSET;
+
+  static {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      GET_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "getLongVolatile",
+          MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+      GET_AND_ADD_LONG = lookup.findVirtual(unsafeClass, "getAndAddLong",
+          MethodType.methodType(long.class, Object.class, long.class, long.class)).bindTo(unsafe);
+      COMPARE_AND_SWAP_LONG = lookup.findVirtual(unsafeClass, "compareAndSwapLong",
+          MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class))
+          .bindTo(unsafe);
+      GET_INT_VOLATILE = lookup.findVirtual(unsafeClass, "getIntVolatile",
+          MethodType.methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+      COMPARE_AND_SWAP_INT = lookup.findVirtual(unsafeClass, "compareAndSwapInt",
+          MethodType.methodType(boolean.class, Object.class, long.class, int.class, int.class))
+          .bindTo(unsafe);
+      MethodHandle objectFieldOffset = lookup.findVirtual(unsafeClass, "objectFieldOffset",
+          MethodType.methodType(long.class, Field.class));
+      ADDRESS_OFFSET = (long) objectFieldOffset.invoke(unsafe,
+          Buffer.class.getDeclaredField("address"));
+      GET_LONG = lookup.findVirtual(unsafeClass, "getLong",
+          MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+    } catch (Throwable e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  // keeps the mapping reachable while its address is in use
+  private final MappedByteBuffer buffer;
+  private final long address;
+  private final int capacity;
+
+  MappedLongs(MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    this.capacity = buffer.capacity();
+    try {
+      this.address = (long) GET_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+    } catch (Throwable e) {
+      throw new IllegalStateException("Unable to read the address of the mapping", e);
+    }
+  }
+
+  private long address(int offset, int size) {
+    if (offset < 0 || offset > capacity - size || (offset & (size - 1)) != 0) {
+      throw new IndexOutOfBoundsException("Invalid offset " + offset + " for a value of " +
+          size + " bytes in a mapping of " + capacity + " bytes");
+    }
+    return address + offset;
+  }
+
+  long getVolatile(int offset) {
+    try {
+      return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address(offset, 8));
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  long getAndAdd(int offset, long delta) {
+    try {
+      return (long) GET_AND_ADD_LONG.invokeExact((Object) null, address(offset, 8), delta);
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  boolean compareAndSet(int offset, long expected, long value) {
+    try {
+      return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address(offset, 8),
+          expected, value);
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  int getIntVolatile(int offset) {
+    try {
+      return (int) GET_INT_VOLATILE.invokeExact((Object) null, address(offset, 4));
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  boolean compareAndSetInt(int offset, int expected, int value) {
+    try {
+      return (boolean) COMPARE_AND_SWAP_INT.invokeExact((Object) null, address(offset, 4),
+          expected, value);
+    } catch (Throwable e) {
+      throw rethrow(e);
+    }
+  }
+
+  private static RuntimeException rethrow(Throwable e) {
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    throw new IllegalStateException(e);
+  }
+}
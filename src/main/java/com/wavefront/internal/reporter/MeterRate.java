@@ -0,0 +1,44 @@
+package com.wavefront.internal.reporter;
+
+import io.dropwizard.metrics5.MetricAttribute;
+
+/**
+ * Rates reported for a {@link io.dropwizard.metrics5.LightweightMeter}, in addition to its count.
+ * All of them are computed at report time. Rates with a matching {@link MetricAttribute} are not
+ * reported when that attribute is disabled on the reporter.
+ */
+public enum MeterRate {
+  /**
+   * Rate over the last reporting interval, reported with the {@code rate} suffix.
+   */
+  INTERVAL("rate", null),
+
+  /**
+   * One-minute moving average, reported with the {@code m1_rate} suffix.
+   */
+  M1("m1_rate", MetricAttribute.M1_RATE),
+
+  /**
+   * Five-minute moving average, reported with the {@code m5_rate} suffix.
+   */
+  M5("m5_rate", MetricAttribute.M5_RATE),
+
+  /**
+   * Fifteen-minute moving average, reported with the {@code m15_rate} suffix.
+   */
+  M15("m15_rate", MetricAttribute.M15_RATE),
+
+  /**
+   * Rate since the meter was created, reported with the {@code mean_rate} suffix.
+   */
+  MEAN("mean_rate", MetricAttribute.MEAN_RATE);
+
+  final String code;
+  // attribute disabling the rate, null if it cannot be disabled
+  final MetricAttribute attribute;
+
+  MeterRate(String code, MetricAttribute attribute) {
+    this.code = code;
+    this.attribute = attribute;
+  }
+}
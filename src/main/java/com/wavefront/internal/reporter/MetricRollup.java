@@ -0,0 +1,415 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.histogram.MinuteBins;
+import com.wavefront.sdk.common.Constants;
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.dropwizard.metrics5.Counter;
+import io.dropwizard.metrics5.DeltaCounter;
+import io.dropwizard.metrics5.DistinctCounter;
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.HeavyHitters;
+import io.dropwizard.metrics5.Histogram;
+import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.Metric;
+import io.dropwizard.metrics5.MetricFilter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistryListener;
+import io.dropwizard.metrics5.Timer;
+import io.dropwizard.metrics5.WavefrontHistogram;
+
+/**
+ * Client-side roll-up of metrics across point tags. Metrics matching a roll-up rule have the
+ * rule's tag keys dropped, and all metrics of the same type that end up with the same name and
+ * tags are assigned to a single slot when they are registered. At report time each slot is
+ * reported as one series: counters and delta counters are summed, Wavefront histogram centroids
+ * are merged per minute, distinct counter sketches are merged and other gauges are combined with
+ * the rule's {@link GaugeAggregation}. Slots keep their members and aggregation state across
+ * cycles, so reporting a slot does not allocate beyond what the sender requires.
+ *
+ * <p>Timers, meters and other histograms cannot be merged and are always reported unchanged.
+ */
+class MetricRollup implements MetricRegistryListener {
+
+  /**
+   * A roll-up rule: metrics whose name matches {@code names} lose the point tags in
+   * {@code droppedTagKeys}.
+   */
+  static class Rule {
+    private final CompiledMetricFilter.Rules names;
+    private final Set<String> droppedTagKeys;
+    private final GaugeAggregation gaugeAggregation;
+
+    Rule(CompiledMetricFilter.Rules names, Set<String> droppedTagKeys,
+         GaugeAggregation gaugeAggregation) {
+      this.names = names;
+      this.droppedTagKeys = droppedTagKeys;
+      this.gaugeAggregation = gaugeAggregation;
+    }
+  }
+
+  /**
+   * Receives the aggregated value of each slot.
+   */
+  interface Sink {
+    void counter(MetricName metricName, long count) throws IOException;
+
+    /**
+     * @return whether the count was sent, the members of the slot are only decremented if so
+     */
+    boolean deltaCounter(MetricName metricName, long count) throws IOException;
+
+    void gauge(MetricName metricName, double value) throws IOException;
+
+    /**
+     * Returns the current value of a member gauge.
+     */
+    Object gaugeValue(Gauge<?> gauge);
+
+    /**
+     * @return the distributions that were not sent, which the slot keeps for its next report
+     */
+    List<WavefrontHistogramImpl.Distribution> distributions(
+        MetricName metricName, List<WavefrontHistogramImpl.Distribution> distributions)
+        throws IOException;
+  }
+
+  enum Kind {
+    COUNTER,
+    DELTA_COUNTER,
+    WAVEFRONT_HISTOGRAM,
+    DISTINCT_COUNTER,
+    GAUGE
+  }
+
+  private static final Slot[] NO_SLOTS = new Slot[0];
+
+  private final List<Rule> rules;
+  private final MetricFilter filter;
+
+  private final Map<Metric, Slot> slotsByMember = new ConcurrentHashMap<>();
+  private final Map<MetricName, Metric> membersByName = new ConcurrentHashMap<>();
+  // guarded by this
+  private final Map<Kind, Map<MetricName, Slot>> slotsByName = new HashMap<>();
+  private volatile Slot[] slots = NO_SLOTS;
+
+  MetricRollup(List<Rule> rules, MetricFilter filter) {
+    this.rules = rules;
+    this.filter = filter;
+    for (Kind kind : Kind.values()) {
+      slotsByName.put(kind, new HashMap<>());
+    }
+  }
+
+  /**
+   * Returns whether the metric is reported as part of a slot rather than on its own.
+   */
+  boolean isRolledUp(Metric metric) {
+    return slotsByMember.containsKey(metric);
+  }
+
+  /**
+   * Returns all slots; the array must not be modified.
+   */
+  Slot[] slots() {
+    return slots;
+  }
+
+  private Rule ruleFor(MetricName metricName) {
+    String name = metricName.getKey();
+    if (name.startsWith(Constants.DELTA_PREFIX) || name.startsWith(Constants.DELTA_PREFIX_2)) {
+      name = name.substring(1);
+    }
+    for (Rule rule : rules) {
+      if (rule.names.matches(name, metricName.getTags())) {
+        return rule;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void added(MetricName metricName, Metric metric, Kind kind) {
+    Rule rule = ruleFor(metricName);
+    if (rule == null || !filter.matches(metricName, metric)) {
+      return;
+    }
+    Map<String, String> tags = new HashMap<>(metricName.getTags());
+    tags.keySet().removeAll(rule.droppedTagKeys);
+    MetricName rolledUpName = new MetricName(metricName.getKey(), tags);
+    Slot slot = slotsByName.get(kind).get(rolledUpName);
+    if (slot == null) {
+      slot = newSlot(kind, rolledUpName, rule.gaugeAggregation);
+      slotsByName.get(kind).put(rolledUpName, slot);
+      Slot[] grown = Arrays.copyOf(slots, slots.length + 1);
+      grown[slots.length] = slot;
+      slots = grown;
+    }
+    slot.add(metric);
+    slotsByMember.put(metric, slot);
+    membersByName.put(metricName, metric);
+  }
+
+  private synchronized void removed(MetricName metricName) {
+    Metric metric = membersByName.remove(metricName);
+    if (metric == null) {
+      return;
+    }
+    Slot slot = slotsByMember.remove(metric);
+    if (slot == null || !slot.remove(metric)) {
+      return;
+    }
+    // the slot is empty: stop reporting it
+    slotsByName.get(slot.kind).remove(slot.metricName);
+    Slot[] shrunk = new Slot[slots.length - 1];
+    int i = 0;
+    for (Slot existing : slots) {
+      if (existing != slot) {
+        shrunk[i++] = existing;
+      }
+    }
+    slots = shrunk;
+  }
+
+  private static Slot newSlot(Kind kind, MetricName metricName,
+                              GaugeAggregation gaugeAggregation) {
+    switch (kind) {
+      case COUNTER:
+      case DELTA_COUNTER:
+        return new CounterSlot(kind, metricName);
+      case WAVEFRONT_HISTOGRAM:
+        return new HistogramSlot(metricName);
+      case DISTINCT_COUNTER:
+        return new DistinctCounterSlot(metricName);
+      case GAUGE:
+      default:
+        return new GaugeSlot(metricName, gaugeAggregation);
+    }
+  }
+
+  @Override
+  public void onGaugeAdded(MetricName name, Gauge<?> gauge) {
+    added(name, gauge, gauge instanceof DistinctCounter ? Kind.DISTINCT_COUNTER : Kind.GAUGE);
+  }
+
+  @Override
+  public void onGaugeRemoved(MetricName name) {
+    removed(name);
+  }
+
+  @Override
+  public void onCounterAdded(MetricName name, Counter counter) {
+    if (counter instanceof HeavyHitters) {
+      // reported per key, never rolled up
+      return;
+    }
+    added(name, counter, counter instanceof DeltaCounter ? Kind.DELTA_COUNTER : Kind.COUNTER);
+  }
+
+  @Override
+  public void onCounterRemoved(MetricName name) {
+    removed(name);
+  }
+
+  @Override
+  public void onHistogramAdded(MetricName name, Histogram histogram) {
+    if (histogram instanceof WavefrontHistogram) {
+      added(name, histogram, Kind.WAVEFRONT_HISTOGRAM);
+    }
+  }
+
+  @Override
+  public void onHistogramRemoved(MetricName name) {
+    removed(name);
+  }
+
+  @Override
+  public void onMeterAdded(MetricName name, Meter meter) {
+  }
+
+  @Override
+  public void onMeterRemoved(MetricName name) {
+  }
+
+  @Override
+  public void onTimerAdded(MetricName name, Timer timer) {
+  }
+
+  @Override
+  public void onTimerRemoved(MetricName name) {
+  }
+
+  /**
+   * A single outbound series aggregated from its member metrics. Members are copied on write, so
+   * reporting only reads the current member array.
+   */
+  abstract static class Slot {
+    final Kind kind;
+    final MetricName metricName;
+    volatile Metric[] members = new Metric[0];
+
+    Slot(Kind kind, MetricName metricName) {
+      this.kind = kind;
+      this.metricName = metricName;
+    }
+
+    synchronized void add(Metric metric) {
+      Metric[] grown = Arrays.copyOf(members, members.length + 1);
+      grown[members.length] = metric;
+      members = grown;
+    }
+
+    /**
+     * @return whether the slot has no members left
+     */
+    synchronized boolean remove(Metric metric) {
+      Metric[] current = members;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == metric) {
+          Metric[] shrunk = new Metric[current.length - 1];
+          System.arraycopy(current, 0, shrunk, 0, i);
+          System.arraycopy(current, i + 1, shrunk, i, shrunk.length - i);
+          members = shrunk;
+          break;
+        }
+      }
+      return members.length == 0;
+    }
+
+    /**
+     * Aggregate the members and hand the result to {@code sink}.
+     *
+     * @param allMinutes also flush the current minute of Wavefront histograms
+     */
+    abstract void report(Sink sink, boolean allMinutes) throws IOException;
+  }
+
+  private static class CounterSlot extends Slot {
+    // count read from each member, so that delta counters are only decremented once sent
+    private long[] counts = new long[0];
+
+    CounterSlot(Kind kind, MetricName metricName) {
+      super(kind, metricName);
+    }
+
+    @Override
+    synchronized void report(Sink sink, boolean allMinutes) throws IOException {
+      Metric[] current = members;
+      if (counts.length < current.length) {
+        counts = new long[current.length * 2];
+      }
+      long total = 0;
+      for (int i = 0; i < current.length; i++) {
+        counts[i] = ((Counter) current[i]).getCount();
+        total += counts[i];
+      }
+      if (kind == Kind.COUNTER) {
+        sink.counter(metricName, total);
+        return;
+      }
+      if (!sink.deltaCounter(metricName, total)) {
+        return;
+      }
+      for (int i = 0; i < current.length; i++) {
+        ((Counter) current[i]).dec(counts[i]);
+      }
+    }
+  }
+
+  private static class HistogramSlot extends Slot {
+    private final MinuteBins bins = new MinuteBins();
+
+    HistogramSlot(MetricName metricName) {
+      super(Kind.WAVEFRONT_HISTOGRAM, metricName);
+    }
+
+    @Override
+    synchronized void report(Sink sink, boolean allMinutes) throws IOException {
+      for (Metric member : members) {
+        WavefrontHistogram histogram = (WavefrontHistogram) member;
+        for (WavefrontHistogramImpl.Distribution distribution : allMinutes ?
+            histogram.flushAllDistributions() : histogram.flushDistributions()) {
+          bins.bin(distribution.timestamp).addAll(distribution.centroids);
+        }
+      }
+      if (!bins.isEmpty()) {
+        for (WavefrontHistogramImpl.Distribution distribution :
+            sink.distributions(metricName, bins.flush(Long.MAX_VALUE))) {
+          bins.bin(distribution.timestamp).addAll(distribution.centroids);
+        }
+      }
+    }
+  }
+
+  private static class DistinctCounterSlot extends Slot {
+    // sketch the members are merged into, of the lowest precision among them
+    private DistinctCounter merged;
+
+    DistinctCounterSlot(MetricName metricName) {
+      super(Kind.DISTINCT_COUNTER, metricName);
+    }
+
+    @Override
+    synchronized void report(Sink sink, boolean allMinutes) throws IOException {
+      Metric[] current = members;
+      int precision = DistinctCounter.MAX_PRECISION;
+      for (Metric member : current) {
+        precision = Math.min(precision, ((DistinctCounter) member).getPrecision());
+      }
+      if (merged == null || merged.getPrecision() != precision) {
+        merged = new DistinctCounter(precision);
+      }
+      for (Metric member : current) {
+        ((DistinctCounter) member).flushInto(merged);
+      }
+      sink.gauge(metricName, merged.flush());
+    }
+  }
+
+  private static class GaugeSlot extends Slot {
+    private final GaugeAggregation aggregation;
+
+    GaugeSlot(MetricName metricName, GaugeAggregation aggregation) {
+      super(Kind.GAUGE, metricName);
+      this.aggregation = aggregation;
+    }
+
+    @Override
+    void report(Sink sink, boolean allMinutes) throws IOException {
+      double result = aggregation == GaugeAggregation.MIN ? Double.POSITIVE_INFINITY :
+          aggregation == GaugeAggregation.MAX ? Double.NEGATIVE_INFINITY : 0;
+      int numeric = 0;
+      for (Metric member : members) {
+        Object value = sink.gaugeValue((Gauge<?>) member);
+        if (!(value instanceof Number)) {
+          continue;
+        }
+        double number = ((Number) value).doubleValue();
+        numeric++;
+        switch (aggregation) {
+          case MIN:
+            result = Math.min(result, number);
+            break;
+          case MAX:
+            result = Math.max(result, number);
+            break;
+          case SUM:
+          case AVERAGE:
+          default:
+            result += number;
+        }
+      }
+      if (numeric > 0) {
+        sink.gauge(metricName, aggregation == GaugeAggregation.AVERAGE ? result / numeric :
+            result);
+      }
+    }
+  }
+}
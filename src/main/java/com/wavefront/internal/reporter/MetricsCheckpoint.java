@@ -0,0 +1,409 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.histogram.DistributionCodec;
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.dropwizard.metrics5.MetricName;
+
+/**
+ * Memory-mapped checkpoint of the data that is lost when the process dies before it is reported:
+ * the counts of delta counters and the unflushed distributions of Wavefront histograms. Writes to
+ * the mapping reach the page cache immediately, so a checkpoint survives the JVM crashing or
+ * being killed without being synced to disk.
+ *
+ * <p>Every delta counter owns a slot in the first half of the file, holding its name, tags and
+ * count, and subsequent checkpoints only overwrite counts that changed. Distributions are written
+ * into whichever of two areas in the second half of the file is inactive, which then becomes the
+ * active one. The header is always updated last, with single 8-byte writes, so the file is
+ * consistent at any point. Distributions are only re-encoded for histograms whose distributions
+ * changed since the previous checkpoint, and the areas are left alone if none did.
+ *
+ * <p>Data found in the file when it is opened is restored: it is kept in the checkpoint until it
+ * has been sent, which the reporter does before sending anything else. Since a count is only
+ * cleared from the checkpoint after it has been sent, a crash right after a report may send it
+ * again on restart.
+ */
+class MetricsCheckpoint implements Closeable {
+  private static final Logger logger =
+      Logger.getLogger(MetricsCheckpoint.class.getCanonicalName());
+
+  private static final int MAGIC = 0x57464350;
+  private static final int VERSION = 1;
+
+  // header layout
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int COUNTERS_END_OFFSET = 8;
+  // active distribution area in the high 32 bits, its length in the low 32 bits
+  private static final int DISTRIBUTIONS_OFFSET = 16;
+  private static final int HEADER_SIZE = 64;
+
+  private final Path file;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int distributionsStart;
+  private final int distributionAreaSize;
+
+  // guarded by this
+  private final Map<MetricName, Integer> counterSlots = new HashMap<>();
+  private final Map<MetricName, Long> counterValues = new HashMap<>();
+  private int countersEnd;
+  private int activeArea;
+  private boolean fullLogged;
+  // distributions in the active area per histogram, with their encoding
+  private Map<MetricName, EncodedDistributions> encodedDistributions = new HashMap<>();
+
+  // restored data not sent yet
+  private final Map<MetricName, Long> restoredDeltas = new ConcurrentHashMap<>();
+  private final Map<MetricName, List<WavefrontHistogramImpl.Distribution>>
+      restoredDistributions = new ConcurrentHashMap<>();
+
+  /**
+   * Open or create the checkpoint file and restore the data it holds.
+   *
+   * @param file      checkpoint file
+   * @param sizeBytes size of the file, half of which holds delta counters and a quarter the
+   *                  distributions of one checkpoint
+   */
+  MetricsCheckpoint(Path file, int sizeBytes) throws IOException {
+    if (sizeBytes < 4096) {
+      throw new IllegalArgumentException("checkpoint size must be at least 4096 bytes");
+    }
+    this.file = file;
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    long existingSize = channel.size();
+    this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, sizeBytes);
+    this.distributionsStart = (HEADER_SIZE + (sizeBytes - HEADER_SIZE) / 2) & ~7;
+    this.distributionAreaSize = (sizeBytes - distributionsStart) / 2;
+    boolean restored = false;
+    if (existingSize == sizeBytes && buffer.getInt(MAGIC_OFFSET) == MAGIC &&
+        buffer.getInt(VERSION_OFFSET) == VERSION) {
+      try {
+        restore();
+        restored = true;
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Discarding unreadable metrics checkpoint " + file, e);
+        counterSlots.clear();
+        counterValues.clear();
+        restoredDeltas.clear();
+        restoredDistributions.clear();
+      }
+    } else if (existingSize > 0) {
+      logger.log(Level.WARNING, "Discarding metrics checkpoint " + file + " of another format " +
+          "or size");
+    }
+    if (!restored) {
+      buffer.putLong(COUNTERS_END_OFFSET, HEADER_SIZE);
+      buffer.putLong(DISTRIBUTIONS_OFFSET, 0);
+      buffer.putInt(VERSION_OFFSET, VERSION);
+      buffer.putInt(MAGIC_OFFSET, MAGIC);
+      countersEnd = HEADER_SIZE;
+      activeArea = 0;
+    }
+  }
+
+  private void restore() {
+    countersEnd = (int) buffer.getLong(COUNTERS_END_OFFSET);
+    if (countersEnd < HEADER_SIZE || countersEnd > distributionsStart) {
+      throw new IllegalStateException("Invalid end of counters: " + countersEnd);
+    }
+    int position = HEADER_SIZE;
+    while (position < countersEnd) {
+      int length = buffer.getInt(position);
+      if (length < 16 || position + length > countersEnd) {
+        throw new IllegalStateException("Invalid counter slot at " + position);
+      }
+      MetricName metricName = readName(buffer, position + 4);
+      int valueOffset = position + length - 8;
+      long value = buffer.getLong(valueOffset);
+      // slots are kept: restored counts are cleared from them once sent
+      counterSlots.put(metricName, valueOffset);
+      counterValues.put(metricName, value);
+      if (value != 0) {
+        restoredDeltas.merge(metricName, value, Long::sum);
+      }
+      position += length;
+    }
+    long distributions = buffer.getLong(DISTRIBUTIONS_OFFSET);
+    activeArea = (int) (distributions >>> 32);
+    int length = (int) distributions;
+    if (activeArea < 0 || activeArea > 1 || length < 0 || length > distributionAreaSize) {
+      throw new IllegalStateException("Invalid distribution area: " + distributions);
+    }
+    position = areaStart(activeArea);
+    int end = position + length;
+    while (position < end) {
+      int nameLength = buffer.getInt(position);
+      MetricName metricName = readName(buffer, position + 4);
+      position += 4 + nameLength;
+      int encodedLength = buffer.getInt(position);
+      byte[] encoded = new byte[encodedLength];
+      ByteBuffer source = buffer.duplicate();
+      source.position(position + 4);
+      source.get(encoded);
+      restoredDistributions.computeIfAbsent(metricName, key -> new ArrayList<>())
+          .addAll(DistributionCodec.decode(encoded));
+      position += 4 + encodedLength;
+    }
+    if (!restoredDeltas.isEmpty() || !restoredDistributions.isEmpty()) {
+      logger.log(Level.INFO, "Restored " + restoredDeltas.size() + " delta counters and " +
+          restoredDistributions.size() + " histograms from metrics checkpoint " + file);
+    }
+  }
+
+  private int areaStart(int area) {
+    return distributionsStart + area * distributionAreaSize;
+  }
+
+  /**
+   * Delta counts restored from the file that have not been sent yet. Entries are removed by the
+   * reporter once sent.
+   */
+  Map<MetricName, Long> restoredDeltas() {
+    return restoredDeltas;
+  }
+
+  /**
+   * Distributions restored from the file that have not been sent yet. Entries are removed by the
+   * reporter once sent.
+   */
+  Map<MetricName, List<WavefrontHistogramImpl.Distribution>> restoredDistributions() {
+    return restoredDistributions;
+  }
+
+  /**
+   * Checkpoint the current counts of delta counters and the unflushed distributions of
+   * histograms, together with the restored data that has not been sent yet.
+   */
+  synchronized void update(Map<MetricName, Long> deltas,
+                           Map<MetricName, List<WavefrontHistogramImpl.Distribution>>
+                               distributions) {
+    for (Map.Entry<MetricName, Integer> slot : counterSlots.entrySet()) {
+      if (!deltas.containsKey(slot.getKey()) && !restoredDeltas.containsKey(slot.getKey())) {
+        putCount(slot.getKey(), slot.getValue(), 0);
+      }
+    }
+    for (Map.Entry<MetricName, Long> entry : deltas.entrySet()) {
+      writeCount(entry.getKey(), entry.getValue());
+    }
+    for (Map.Entry<MetricName, Long> entry : restoredDeltas.entrySet()) {
+      if (!deltas.containsKey(entry.getKey())) {
+        writeCount(entry.getKey(), 0);
+      }
+    }
+    writeDistributions(distributions);
+  }
+
+  private void writeCount(MetricName metricName, long count) {
+    long value = count + restoredDeltas.getOrDefault(metricName, 0L);
+    Integer valueOffset = counterSlots.get(metricName);
+    if (valueOffset == null) {
+      if (value == 0) {
+        return;
+      }
+      valueOffset = newCounterSlot(metricName);
+      if (valueOffset < 0) {
+        return;
+      }
+    }
+    putCount(metricName, valueOffset, value);
+  }
+
+  private void putCount(MetricName metricName, int valueOffset, long value) {
+    Long previous = counterValues.put(metricName, value);
+    if (previous == null || previous != value) {
+      buffer.putLong(valueOffset, value);
+    }
+  }
+
+  private int newCounterSlot(MetricName metricName) {
+    byte[] name = encodeName(metricName);
+    int length = (4 + name.length + 7 & ~7) + 8;
+    if (countersEnd + length > distributionsStart) {
+      logFull("delta counters");
+      return -1;
+    }
+    buffer.putInt(countersEnd, length);
+    putBytes(countersEnd + 4, name);
+    int valueOffset = countersEnd + length - 8;
+    buffer.putLong(valueOffset, 0);
+    countersEnd += length;
+    // the slot only becomes part of the checkpoint once fully written
+    buffer.putLong(COUNTERS_END_OFFSET, countersEnd);
+    counterSlots.put(metricName, valueOffset);
+    counterValues.put(metricName, 0L);
+    return valueOffset;
+  }
+
+  private void writeDistributions(
+      Map<MetricName, List<WavefrontHistogramImpl.Distribution>> distributions) {
+    if (distributions.isEmpty() && restoredDistributions.isEmpty() &&
+        (int) buffer.getLong(DISTRIBUTIONS_OFFSET) == 0) {
+      return;
+    }
+    int area = 1 - activeArea;
+    int start = areaStart(area);
+    int position = start;
+    Map<MetricName, List<WavefrontHistogramImpl.Distribution>> pending =
+        new HashMap<>(restoredDistributions);
+    for (Map.Entry<MetricName, List<WavefrontHistogramImpl.Distribution>> entry :
+        distributions.entrySet()) {
+      pending.merge(entry.getKey(), entry.getValue(), (restored, current) -> {
+        List<WavefrontHistogramImpl.Distribution> merged = new ArrayList<>(restored);
+        merged.addAll(current);
+        return merged;
+      });
+    }
+    pending.values().removeIf(List::isEmpty);
+    Map<MetricName, EncodedDistributions> written = new HashMap<>();
+    // nothing is known about the area of a restored checkpoint until it has been written once
+    boolean changed = encodedDistributions.isEmpty() ||
+        !pending.keySet().equals(encodedDistributions.keySet());
+    for (Map.Entry<MetricName, List<WavefrontHistogramImpl.Distribution>> entry :
+        pending.entrySet()) {
+      EncodedDistributions previous = encodedDistributions.get(entry.getKey());
+      if (previous != null && previous.matches(entry.getValue())) {
+        written.put(entry.getKey(), previous);
+      } else {
+        written.put(entry.getKey(), new EncodedDistributions(entry.getKey(), entry.getValue()));
+        changed = true;
+      }
+    }
+    if (!changed) {
+      return;
+    }
+    for (EncodedDistributions encoded : written.values()) {
+      int length = 8 + encoded.name.length + encoded.encoded.length;
+      if (position + length > start + distributionAreaSize) {
+        logFull("distributions");
+        continue;
+      }
+      buffer.putInt(position, encoded.name.length);
+      putBytes(position + 4, encoded.name);
+      buffer.putInt(position + 4 + encoded.name.length, encoded.encoded.length);
+      putBytes(position + 8 + encoded.name.length, encoded.encoded);
+      position += length;
+    }
+    encodedDistributions = written;
+    activeArea = area;
+    buffer.putLong(DISTRIBUTIONS_OFFSET, ((long) area << 32) | (position - start));
+  }
+
+  private static final class EncodedDistributions {
+    private final byte[] name;
+    private final List<WavefrontHistogramImpl.Distribution> distributions;
+    private final byte[] encoded;
+
+    EncodedDistributions(MetricName metricName,
+                         List<WavefrontHistogramImpl.Distribution> distributions) {
+      this.name = encodeName(metricName);
+      this.distributions = distributions;
+      this.encoded = DistributionCodec.encode(distributions);
+    }
+
+    boolean matches(List<WavefrontHistogramImpl.Distribution> other) {
+      if (other.size() != distributions.size()) {
+        return false;
+      }
+      for (int i = 0; i < other.size(); i++) {
+        if (other.get(i).timestamp != distributions.get(i).timestamp ||
+            !other.get(i).centroids.equals(distributions.get(i).centroids)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private void logFull(String what) {
+    if (!fullLogged) {
+      logger.log(Level.WARNING, "Metrics checkpoint " + file + " is full, some " + what +
+          " are not checkpointed");
+      fullLogged = true;
+    }
+  }
+
+  private void putBytes(int offset, byte[] bytes) {
+    ByteBuffer target = buffer.duplicate();
+    target.position(offset);
+    target.put(bytes);
+  }
+
+  /**
+   * Encode the key and tags of a metric name as a count of strings followed by each string as
+   * its UTF-8 length and bytes.
+   */
+  static byte[] encodeName(MetricName metricName) {
+    List<String> strings = new ArrayList<>(1 + 2 * metricName.getTags().size());
+    strings.add(metricName.getKey());
+    for (Map.Entry<String, String> tag : metricName.getTags().entrySet()) {
+      strings.add(tag.getKey());
+      strings.add(tag.getValue());
+    }
+    List<byte[]> encoded = new ArrayList<>(strings.size());
+    int length = 4;
+    for (String string : strings) {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      encoded.add(bytes);
+      length += 4 + bytes.length;
+    }
+    ByteBuffer name = ByteBuffer.allocate(length);
+    name.putInt(strings.size());
+    for (byte[] bytes : encoded) {
+      name.putInt(bytes.length);
+      name.put(bytes);
+    }
+    return name.array();
+  }
+
+  /**
+   * Decode a metric name encoded with {@link #encodeName(MetricName)} at the given offset.
+   */
+  static MetricName readName(ByteBuffer buffer, int offset) {
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset);
+    int count = source.getInt();
+    if (count < 1 || count % 2 == 0) {
+      throw new IllegalStateException("Invalid metric name at " + offset);
+    }
+    String key = readString(source);
+    Map<String, String> tags = count == 1 ? Collections.emptyMap() : new HashMap<>();
+    for (int i = 1; i < count; i += 2) {
+      tags.put(readString(source), readString(source));
+    }
+    return new MetricName(key, tags);
+  }
+
+  private static String readString(ByteBuffer source) {
+    int length = source.getInt();
+    if (length < 0 || length > source.remaining()) {
+      throw new IllegalStateException("Invalid metric name length " + length);
+    }
+    byte[] bytes = new byte[length];
+    source.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,239 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.histogram.CentroidDigest;
+import com.wavefront.sdk.common.Constants;
+import com.wavefront.sdk.common.Utils;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * The points sent during the last completed reporting cycle, rendered once per cycle so that
+ * serving them costs no registry traversal. Points are recorded by the reporting thread as they
+ * are sent and the rendered bytes are swapped in when the cycle completes.
+ */
+class MetricsSnapshot {
+
+  private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.99, 0.999};
+  private static final Pattern PROMETHEUS_NAME = Pattern.compile("[^a-zA-Z0-9_:]");
+
+  private final SnapshotFormat format;
+  private final String source;
+
+  private volatile byte[] rendered = new byte[0];
+
+  // only accessed by the reporting thread
+  private boolean recording = false;
+  private final StringBuilder lines = new StringBuilder();
+  private final Map<String, Family> families = new TreeMap<>();
+  private final Map<String, Double> cumulativeDeltas = new HashMap<>();
+  // running _count and _sum of the summary series, keyed like cumulativeDeltas
+  private final Map<String, Long> cumulativeCounts = new HashMap<>();
+  private final Map<String, Double> cumulativeSums = new HashMap<>();
+
+  MetricsSnapshot(SnapshotFormat format, String source) {
+    this.format = format;
+    this.source = source;
+  }
+
+  SnapshotFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Returns the rendered snapshot of the last completed cycle; must not be modified.
+   */
+  byte[] bytes() {
+    return rendered;
+  }
+
+  /**
+   * Start recording the points of a reporting cycle. Points sent outside of a cycle, e.g. by the
+   * final flush on shutdown, are not recorded.
+   */
+  void startCycle() {
+    lines.setLength(0);
+    families.clear();
+    recording = true;
+  }
+
+  /**
+   * Stop recording and, if the cycle completed, render its points and serve them from now on.
+   * The deltas of a failed cycle are still added to the running totals: the reporter does not
+   * record them again.
+   */
+  void endCycle(boolean completed) {
+    if (recording) {
+      if (completed) {
+        publish();
+      } else {
+        accumulate();
+      }
+    }
+    recording = false;
+  }
+
+  void metric(String name, double value, long timestamp, Map<String, String> tags) {
+    if (!recording) {
+      return;
+    }
+    if (format == SnapshotFormat.WAVEFRONT) {
+      lines.append(Utils.metricToLineData(name, value, timestamp, source, tags, source));
+    } else {
+      family(name, "gauge").samples.append(series(name, tags, null)).append(' ')
+          .append(value).append('\n');
+    }
+  }
+
+  void deltaCounter(String name, double value, Map<String, String> tags) {
+    if (!recording) {
+      return;
+    }
+    if (format == SnapshotFormat.WAVEFRONT) {
+      lines.append(Utils.metricToLineData(name, value, null, source, tags, source));
+      return;
+    }
+    if (name.startsWith(Constants.DELTA_PREFIX) || name.startsWith(Constants.DELTA_PREFIX_2)) {
+      name = name.substring(1);
+    }
+    // added to the running totals only once the cycle is published
+    family(name + "_total", "counter").deltas
+        .merge(series(name + "_total", tags, null), value, Double::sum);
+  }
+
+  void distribution(String name, WavefrontHistogramImpl.Distribution distribution,
+                    Set<HistogramGranularity> granularities, Map<String, String> tags) {
+    if (!recording) {
+      return;
+    }
+    if (format == SnapshotFormat.WAVEFRONT) {
+      lines.append(Utils.histogramToLineData(name, distribution.centroids, granularities,
+          distribution.timestamp, source, tags, source));
+      return;
+    }
+    // distributions of several minutes flushed in one cycle are merged into one summary
+    family(name, "summary").summaries
+        .computeIfAbsent(series(name, tags, null), series -> new Summary(tags))
+        .digest.addAll(distribution.centroids);
+  }
+
+  private void publish() {
+    if (format == SnapshotFormat.WAVEFRONT) {
+      rendered = lines.toString().getBytes(StandardCharsets.UTF_8);
+      return;
+    }
+    StringBuilder out = lines;
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String familyName = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# TYPE ").append(familyName).append(' ').append(family.type).append('\n');
+      out.append(family.samples);
+      for (Map.Entry<String, Double> delta : family.deltas.entrySet()) {
+        out.append(delta.getKey()).append(' ')
+            .append(cumulativeDeltas.merge(delta.getKey(), delta.getValue(), Double::sum))
+            .append('\n');
+      }
+      for (Map.Entry<String, Summary> summary : family.summaries.entrySet()) {
+        Map<String, String> tags = summary.getValue().tags;
+        CentroidDigest digest = summary.getValue().digest;
+        for (double quantile : QUANTILES) {
+          out.append(series(familyName, tags, Double.toString(quantile))).append(' ')
+              .append(digest.quantile(quantile)).append('\n');
+        }
+        out.append(series(familyName + "_sum", tags, null)).append(' ')
+            .append(cumulativeSums.merge(summary.getKey(), digest.getSum(), Double::sum))
+            .append('\n');
+        out.append(series(familyName + "_count", tags, null)).append(' ')
+            .append(cumulativeCounts.merge(summary.getKey(), digest.getCount(), Long::sum))
+            .append('\n');
+      }
+    }
+    rendered = out.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Add the deltas and distributions of the cycle to the running totals without rendering.
+   */
+  private void accumulate() {
+    for (Family family : families.values()) {
+      family.deltas.forEach((series, delta) -> cumulativeDeltas.merge(series, delta, Double::sum));
+      family.summaries.forEach((series, summary) -> {
+        cumulativeSums.merge(series, summary.digest.getSum(), Double::sum);
+        cumulativeCounts.merge(series, summary.digest.getCount(), Long::sum);
+      });
+    }
+  }
+
+  private Family family(String name, String type) {
+    // the first type seen for a family wins
+    return families.computeIfAbsent(prometheusName(name), n -> new Family(type));
+  }
+
+  private static String series(String name, Map<String, String> tags, String quantile) {
+    StringBuilder series = new StringBuilder(prometheusName(name));
+    if (tags.isEmpty() && quantile == null) {
+      return series.toString();
+    }
+    series.append('{');
+    boolean first = true;
+    for (Map.Entry<String, String> tag : new TreeMap<>(tags).entrySet()) {
+      if (!first) {
+        series.append(',');
+      }
+      first = false;
+      series.append(prometheusName(tag.getKey())).append("=\"");
+      escape(series, tag.getValue());
+      series.append('"');
+    }
+    if (quantile != null) {
+      series.append(first ? "" : ",").append("quantile=\"").append(quantile).append('"');
+    }
+    return series.append('}').toString();
+  }
+
+  private static String prometheusName(String name) {
+    String sanitized = PROMETHEUS_NAME.matcher(name).replaceAll("_");
+    return !sanitized.isEmpty() && Character.isDigit(sanitized.charAt(0)) ?
+        "_" + sanitized : sanitized;
+  }
+
+  private static void escape(StringBuilder out, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        out.append('\\').append(c);
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+  }
+
+  private static class Family {
+    private final String type;
+    private final StringBuilder samples = new StringBuilder();
+    private final Map<String, Double> deltas = new LinkedHashMap<>();
+    private final Map<String, Summary> summaries = new LinkedHashMap<>();
+
+    Family(String type) {
+      this.type = type;
+    }
+  }
+
+  private static class Summary {
+    private final Map<String, String> tags;
+    private final CentroidDigest digest = new CentroidDigest();
+
+    Summary(Map<String, String> tags) {
+      this.tags = tags;
+    }
+  }
+}
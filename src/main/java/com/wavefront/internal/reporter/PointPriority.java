@@ -0,0 +1,29 @@
+package com.wavefront.internal.reporter;
+
+/**
+ * Priority classes of the points sent by a {@link WavefrontInternalReporter} whose output is
+ * limited to a number of points per second, from the highest to the lowest priority. When the
+ * limit is reached, points of lower classes are shed first.
+ */
+public enum PointPriority {
+  /**
+   * Delta counters and the distributions of Wavefront histograms. Their data is lost if not
+   * sent, unless the point is carried over to the next cycle.
+   */
+  DELTAS_AND_DISTRIBUTIONS,
+
+  /**
+   * Cumulative counters.
+   */
+  COUNTERS,
+
+  /**
+   * Gauges.
+   */
+  GAUGES,
+
+  /**
+   * The attributes of timers, meters and histograms, e.g. their rates and percentiles.
+   */
+  ATTRIBUTES
+}
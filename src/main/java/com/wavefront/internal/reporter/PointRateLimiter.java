@@ -0,0 +1,176 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.sdk.common.Constants;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.dropwizard.metrics5.MetricName;
+
+/**
+ * Token bucket limiting the points sent by the reporter to a number of points per second. The
+ * bucket refills continuously and holds the points of one reporting period, so that a whole cycle
+ * can be sent at once as long as the average rate stays under the limit.
+ *
+ * <p>Every point belongs to a {@link PointPriority}. Points of a class are only admitted while the
+ * bucket holds more tokens than the points of higher classes still expected in the current cycle,
+ * estimated from the number of points each class attempted in the previous cycle. Points of the
+ * lowest classes are therefore shed first, whatever the order in which the cycle sends them.
+ * Within the class that only partially fits, points are shed at random in proportion to the
+ * tokens left, so that the same series are not shed in every cycle.
+ */
+class PointRateLimiter {
+  private static final Logger logger =
+      Logger.getLogger(PointRateLimiter.class.getCanonicalName());
+
+  private static final int CLASSES = PointPriority.values().length;
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * A priority rule: metrics whose name matches {@code names} are sent with {@code priority}.
+   */
+  static class Rule {
+    private final CompiledMetricFilter.Rules names;
+    private final PointPriority priority;
+
+    Rule(CompiledMetricFilter.Rules names, PointPriority priority) {
+      this.names = names;
+      this.priority = priority;
+    }
+  }
+
+  private final double pointsPerSecond;
+  private final List<Rule> rules;
+
+  // guarded by this
+  private double capacity;
+  private double tokens;
+  private long lastRefillNanos;
+  private long[] attempted = new long[CLASSES];
+  private long[] previouslyAttempted = new long[CLASSES];
+  private final long[] shed = new long[CLASSES];
+  private boolean shedding;
+
+  /**
+   * @param pointsPerSecond the maximum average number of points sent per second
+   * @param rules           priority rules, the first matching rule applies
+   */
+  PointRateLimiter(double pointsPerSecond, List<Rule> rules) {
+    if (!(pointsPerSecond > 0)) {
+      throw new IllegalArgumentException("pointsPerSecond must be positive");
+    }
+    this.pointsPerSecond = pointsPerSecond;
+    this.rules = rules;
+    this.capacity = pointsPerSecond;
+    this.tokens = capacity;
+    this.lastRefillNanos = System.nanoTime();
+  }
+
+  /**
+   * Size the bucket to hold the points of one reporting period, and fill it.
+   */
+  synchronized void setPeriod(long periodNanos) {
+    capacity = Math.max(pointsPerSecond, pointsPerSecond * periodNanos / NANOS_PER_SECOND);
+    tokens = capacity;
+    lastRefillNanos = System.nanoTime();
+  }
+
+  /**
+   * Returns the priority of the points of a metric: that of the first rule matching its name, or
+   * the given default priority of its type.
+   */
+  PointPriority priorityOf(MetricName metricName, PointPriority defaultPriority) {
+    if (rules.isEmpty()) {
+      return defaultPriority;
+    }
+    String name = metricName.getKey();
+    if (name.startsWith(Constants.DELTA_PREFIX) || name.startsWith(Constants.DELTA_PREFIX_2)) {
+      name = name.substring(1);
+    }
+    for (Rule rule : rules) {
+      if (rule.names.matches(name, metricName.getTags())) {
+        return rule.priority;
+      }
+    }
+    return defaultPriority;
+  }
+
+  /**
+   * Start a reporting cycle: the points attempted in the previous cycle become the estimate of
+   * the points to reserve for each class.
+   */
+  synchronized void startCycle() {
+    long[] previous = previouslyAttempted;
+    previouslyAttempted = attempted;
+    attempted = previous;
+    Arrays.fill(attempted, 0);
+    Arrays.fill(shed, 0);
+  }
+
+  /**
+   * @return whether a point of the given priority may be sent, if not it is counted as shed
+   */
+  boolean tryAcquire(PointPriority priority) {
+    return tryAcquire(priority, 1);
+  }
+
+  /**
+   * @param points number of points sent together, e.g. a distribution reported with several
+   *               granularities
+   * @return whether the points may be sent, if not they are counted as shed
+   */
+  synchronized boolean tryAcquire(PointPriority priority, int points) {
+    int index = priority.ordinal();
+    attempted[index] += points;
+    double reserved = 0;
+    for (int higher = 0; higher < index; higher++) {
+      reserved += Math.max(0, previouslyAttempted[higher] - attempted[higher]);
+    }
+    refill();
+    double available = tokens - reserved;
+    // points of this class still expected in the cycle, including these
+    long expected = previouslyAttempted[index] - attempted[index] + points;
+    if (available < points || (available < expected &&
+        ThreadLocalRandom.current().nextDouble() * expected >= available)) {
+      shed[index] += points;
+      return false;
+    }
+    tokens -= points;
+    return true;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * pointsPerSecond /
+        NANOS_PER_SECOND);
+    lastRefillNanos = now;
+  }
+
+  /**
+   * Returns the points of the given priority shed since the start of the current cycle.
+   */
+  synchronized long shed(PointPriority priority) {
+    return shed[priority.ordinal()];
+  }
+
+  /**
+   * End a reporting cycle, logging when the reporter starts or stops shedding points.
+   */
+  synchronized void endCycle() {
+    long total = 0;
+    for (long count : shed) {
+      total += count;
+    }
+    if (total > 0 && !shedding) {
+      logger.log(Level.WARNING, "Shed " + total + " points to stay under " + pointsPerSecond +
+          " points per second, lowest priorities first");
+    } else if (total == 0 && shedding) {
+      logger.log(Level.INFO, "No longer shedding points");
+    }
+    shedding = total > 0;
+  }
+}
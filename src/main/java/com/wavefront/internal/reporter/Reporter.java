@@ -1,5 +1,6 @@
 package com.wavefront.internal.reporter;
 
+import java.time.Duration;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -27,4 +28,19 @@ public interface Reporter {
    * Stop the Wavefront Internal Reporter
    */
   void stop();
+
+  /**
+   * Stop the Wavefront Internal Reporter after one final report bounded by the given deadline.
+   * Delta counters are sent first, then all pending histogram distributions, then every other
+   * metric. Whatever cannot be sent before the deadline is abandoned. Reporters without a final
+   * report just {@link #stop()}.
+   *
+   * @param deadline  maximum time to spend on stopping, including the final report
+   * @return the number of points that were abandoned, counting each metric that was never sent
+   * as a single point
+   */
+  default int stop(Duration deadline) {
+    stop();
+    return 0;
+  }
 }
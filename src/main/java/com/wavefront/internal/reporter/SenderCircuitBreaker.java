@@ -0,0 +1,78 @@
+package com.wavefront.internal.reporter;
+
+/**
+ * Circuit breaker tracking whether reporting cycles reach Wavefront. The circuit opens after a
+ * number of consecutive failed cycles; while it is open, cycles are skipped and a probe is allowed
+ * once the current backoff has elapsed. Every failed probe doubles the backoff up to a maximum, a
+ * successful probe closes the circuit.
+ */
+class SenderCircuitBreaker {
+
+  private final int failureThreshold;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+
+  private int consecutiveFailures = 0;
+  private boolean open = false;
+  private long backoffNanos;
+  private long nextProbeNanos;
+  private long timesOpened = 0;
+
+  /**
+   * @param failureThreshold    consecutive failed cycles after which the circuit opens
+   * @param initialBackoffNanos time until the first probe once the circuit is open
+   * @param maxBackoffNanos     upper bound for the time between probes
+   */
+  SenderCircuitBreaker(int failureThreshold, long initialBackoffNanos, long maxBackoffNanos) {
+    if (failureThreshold < 1) {
+      throw new IllegalArgumentException("failureThreshold must be positive");
+    }
+    if (initialBackoffNanos <= 0 || maxBackoffNanos < initialBackoffNanos) {
+      throw new IllegalArgumentException("backoff must be positive and not exceed max backoff");
+    }
+    this.failureThreshold = failureThreshold;
+    this.initialBackoffNanos = initialBackoffNanos;
+    this.maxBackoffNanos = maxBackoffNanos;
+  }
+
+  synchronized boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Returns whether the circuit is open and its backoff has elapsed.
+   */
+  synchronized boolean shouldProbe(long nowNanos) {
+    return open && nowNanos - nextProbeNanos >= 0;
+  }
+
+  synchronized void onSuccess() {
+    consecutiveFailures = 0;
+    open = false;
+  }
+
+  /**
+   * Record a failed cycle or probe.
+   *
+   * @return whether this failure opened the circuit
+   */
+  synchronized boolean onFailure(long nowNanos) {
+    if (open) {
+      backoffNanos = Math.min(maxBackoffNanos, backoffNanos * 2);
+      nextProbeNanos = nowNanos + backoffNanos;
+      return false;
+    }
+    if (++consecutiveFailures < failureThreshold) {
+      return false;
+    }
+    open = true;
+    timesOpened++;
+    backoffNanos = initialBackoffNanos;
+    nextProbeNanos = nowNanos + backoffNanos;
+    return true;
+  }
+
+  synchronized long getTimesOpened() {
+    return timesOpened;
+  }
+}
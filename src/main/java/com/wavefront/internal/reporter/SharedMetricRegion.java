@@ -0,0 +1,759 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.EntitiesInstantiator;
+import com.wavefront.internal.histogram.CentroidDigest;
+import com.wavefront.internal.histogram.DigestSnapshot;
+import com.wavefront.internal.histogram.DistributionRecorder;
+import com.wavefront.internal.histogram.MinuteBins;
+import com.wavefront.sdk.common.Constants;
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.dropwizard.metrics5.Counter;
+import io.dropwizard.metrics5.DeltaCounter;
+import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.Histogram;
+import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.Metric;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SlidingTimeWindowArrayReservoir;
+import io.dropwizard.metrics5.Snapshot;
+import io.dropwizard.metrics5.Timer;
+import io.dropwizard.metrics5.WavefrontHistogram;
+
+/**
+ * Memory-mapped file holding metrics written by many processes on the same host and reported by
+ * a single {@link WavefrontInternalReporter}, see
+ * {@link WavefrontInternalReporter.Builder#reportSharedMetricRegion(Path, int)}. Worker processes
+ * create their metrics through this class instead of a reporter of their own: updates are atomic
+ * operations on the mapped memory, so they need neither locks nor a reporting thread, and
+ * nothing is lost when a worker exits or is killed.
+ *
+ * <p>Counters, delta counters and Wavefront histograms are supported. Every metric name owns a
+ * record in the file, shared by all processes creating a metric of that name, so their updates
+ * add up. Records are published through a hash index and are never removed: the size of the file
+ * bounds the number of distinct metric names. Once it is full, further metrics are created in
+ * this process only and are not reported. So are metrics of the other types, e.g. gauges, which
+ * cannot be shared between processes.
+ *
+ * <p>Histograms count values per minute in logarithmic buckets covering magnitudes from
+ * 2<sup>-16</sup> to 2<sup>40</sup> with a relative error of about 3%, in a ring of four minute
+ * bins. Each bin is reported and cleared by the reporter once its minute is over. A bin still
+ * holding an older minute when its turn comes again was not reported in time: its counts are
+ * dropped and it is relabeled with the current minute. Distributions that the reporter could not
+ * send are held by the reporting process until its next report.
+ *
+ * <p>Only one process reports the region at a time: reporting holds an exclusive lock on the
+ * file, and reporters that cannot take it skip the region until the reporting process exits.
+ * Every record offset read from the file is checked against the size of the region before it
+ * is used, so a corrupt file cannot make this process access memory outside the mapping;
+ * corrupt records are skipped.
+ */
+public class SharedMetricRegion implements EntitiesInstantiator, Closeable {
+  private static final Logger logger =
+      Logger.getLogger(SharedMetricRegion.class.getCanonicalName());
+
+  private static final int MAGIC = 0x57465352;
+  private static final int VERSION = 1;
+
+  // header layout, the end of allocated records is only updated atomically
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int SIZE_OFFSET = 8;
+  private static final int INDEX_CAPACITY_OFFSET = 12;
+  private static final int END_OFFSET = 16;
+  private static final int HEADER_SIZE = 64;
+  // byte ranges locked to initialize the file, and by the reporting process
+  private static final long INIT_LOCK_POSITION = 0;
+  private static final long REPORT_LOCK_POSITION = 1;
+
+  // record kinds
+  private static final int COUNTER = 1;
+  private static final int DELTA_COUNTER = 2;
+  private static final int HISTOGRAM = 3;
+
+  // histogram buckets: 16 per power of two, mirrored for negative values around a zero bucket
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MIN_EXPONENT = -16;
+  private static final int OCTAVES = 56;
+  private static final int HALF = OCTAVES * SUB_BUCKETS;
+  private static final int ZERO_BUCKET = HALF;
+  private static final int BUCKETS = 2 * HALF + 1;
+  private static final int BINS = 4;
+  // minute of the bin followed by the count of every bucket
+  private static final int BIN_SIZE = 8 + BUCKETS * 8;
+  // minute of a bin whose stale counts are being cleared before it is relabeled
+  private static final long RELABELING = -1;
+  // times a writer yields to a relabeling process before dropping its value
+  private static final int RELABEL_SPINS = 100;
+
+  private final Path file;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final MappedLongs longs;
+  private final int size;
+  private final int indexCapacity;
+  private final MetricRegistry registry = new MetricRegistry();
+  private volatile boolean fullLogged;
+  private volatile boolean corruptLogged;
+  private final Set<String> unsupportedLogged = ConcurrentHashMap.newKeySet();
+
+  // held while this process reports the region, guarded by this
+  private FileLock reportLock;
+  private boolean reportLockLogged;
+
+  // names of the records reported so far, guarded by this
+  private final Map<Integer, MetricName> reportedNames = new HashMap<>();
+  // distributions the sink did not send per record, guarded by this
+  private final Map<Integer, List<WavefrontHistogramImpl.Distribution>> heldDistributions =
+      new HashMap<>();
+  // bins seen relabeling by the previous report, guarded by this
+  private final Set<Integer> relabelingBins = new HashSet<>();
+
+  /**
+   * Map the given region file, creating it if needed.
+   *
+   * @param file      region file, shared by all processes reporting through it
+   * @param sizeBytes size of the file if it is created here, otherwise the size it was created
+   *                  with applies
+   */
+  public SharedMetricRegion(Path file, int sizeBytes) throws IOException {
+    if (sizeBytes < 65536) {
+      throw new IllegalArgumentException("region size must be at least 65536 bytes");
+    }
+    this.file = file;
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      // only guards initializing the file against other processes opening it
+      try (FileLock lock = channel.lock(INIT_LOCK_POSITION, 1, false)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() >= HEADER_SIZE) {
+          channel.read(header, 0);
+        }
+        int magic = header.getInt(MAGIC_OFFSET);
+        if (magic == MAGIC) {
+          if (header.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException(file + " is a shared metric region of another version");
+          }
+          size = header.getInt(SIZE_OFFSET);
+          indexCapacity = header.getInt(INDEX_CAPACITY_OFFSET);
+          if (size < 65536 || size > channel.size() || indexCapacity < 1 ||
+              Integer.bitCount(indexCapacity) != 1 || recordsStart(indexCapacity) >= size) {
+            throw new IOException(file + " is a corrupt or truncated shared metric region");
+          }
+          buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } else if (magic == 0) {
+          size = sizeBytes;
+          // about one index entry per kilobyte, as a power of two
+          indexCapacity = Integer.highestOneBit(sizeBytes / 1024);
+          buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+          buffer.putInt(SIZE_OFFSET, size);
+          buffer.putInt(INDEX_CAPACITY_OFFSET, indexCapacity);
+          new MappedLongs(buffer).compareAndSet(END_OFFSET, 0, recordsStart(indexCapacity));
+          buffer.putInt(VERSION_OFFSET, VERSION);
+          buffer.putInt(MAGIC_OFFSET, MAGIC);
+        } else {
+          throw new IOException(file + " is not a shared metric region");
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    this.longs = new MappedLongs(buffer);
+  }
+
+  private static int recordsStart(int indexCapacity) {
+    return HEADER_SIZE + (indexCapacity * 4 + 7 & ~7);
+  }
+
+  /**
+   * Returns the offset of the data of the record of the given metric, creating the record if
+   * needed, or -1 if the region is full.
+   */
+  private int record(MetricName metricName, int kind) {
+    byte[] name = MetricsCheckpoint.encodeName(metricName);
+    int hash = Arrays.hashCode(name);
+    hash ^= hash >>> 16;
+    int mask = indexCapacity - 1;
+    int allocated = 0;
+    for (int probe = 0; probe < indexCapacity; probe++) {
+      int entry = HEADER_SIZE + ((hash + probe) & mask) * 4;
+      int offset = longs.getIntVolatile(entry);
+      if (offset == 0) {
+        if (allocated == 0) {
+          allocated = allocate(kind, name);
+          if (allocated < 0) {
+            return -1;
+          }
+        }
+        if (longs.compareAndSetInt(entry, 0, allocated)) {
+          return dataOffset(allocated);
+        }
+        // published by another process meanwhile, the allocated record stays unused
+        offset = longs.getIntVolatile(entry);
+      }
+      if (!isValidRecord(offset)) {
+        logCorrupt(offset);
+        continue;
+      }
+      if (hasName(offset, name)) {
+        if (buffer.getInt(offset) != kind) {
+          throw new IllegalStateException("Metric of another type found registered to " +
+              "metricName: " + metricName + " in shared metric region " + file);
+        }
+        return dataOffset(offset);
+      }
+    }
+    return -1;
+  }
+
+  private int allocate(int kind, byte[] name) {
+    int length = (8 + name.length + 7 & ~7) + (kind == HISTOGRAM ? BINS * BIN_SIZE : 8);
+    while (true) {
+      long end = longs.getVolatile(END_OFFSET);
+      if (end + length > size) {
+        return -1;
+      }
+      if (longs.compareAndSet(END_OFFSET, end, end + length)) {
+        // the data of a new record is still zero, and the record is only read once published
+        int offset = (int) end;
+        buffer.putInt(offset, kind);
+        buffer.putInt(offset + 4, name.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset + 8);
+        target.put(name);
+        return offset;
+      }
+    }
+  }
+
+  /**
+   * Returns whether a record offset read from the file points to a whole record within the
+   * allocated part of the region.
+   */
+  private boolean isValidRecord(int offset) {
+    long end = longs.getVolatile(END_OFFSET);
+    if (offset < recordsStart(indexCapacity) || (offset & 7) != 0 || offset > end - 8 ||
+        end > size) {
+      return false;
+    }
+    int kind = buffer.getInt(offset);
+    int nameLength = buffer.getInt(offset + 4);
+    if (kind < COUNTER || kind > HISTOGRAM || nameLength < 0) {
+      return false;
+    }
+    long dataLength = kind == HISTOGRAM ? BINS * BIN_SIZE : 8;
+    return (offset + 8L + nameLength + 7 & ~7L) + dataLength <= end;
+  }
+
+  private void logCorrupt(int offset) {
+    if (!corruptLogged) {
+      logger.log(Level.WARNING, "Shared metric region " + file + " holds a corrupt record at " +
+          "offset " + offset + ", skipping it");
+      corruptLogged = true;
+    }
+  }
+
+  private boolean hasName(int offset, byte[] name) {
+    if (buffer.getInt(offset + 4) != name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; i++) {
+      if (buffer.get(offset + 8 + i) != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int dataOffset(int offset) {
+    return offset + (8 + buffer.getInt(offset + 4) + 7 & ~7);
+  }
+
+  private void logFull() {
+    if (!fullLogged) {
+      logger.log(Level.WARNING, "Shared metric region " + file + " is full, further metrics " +
+          "are not reported");
+      fullLogged = true;
+    }
+  }
+
+  static int bucket(double value) {
+    if (value == 0) {
+      return ZERO_BUCKET;
+    }
+    double magnitude = Math.abs(value);
+    int exponent = Math.getExponent(magnitude);
+    int index;
+    if (exponent < MIN_EXPONENT) {
+      index = 0;
+    } else if (exponent >= MIN_EXPONENT + OCTAVES) {
+      index = HALF - 1;
+    } else {
+      index = (exponent - MIN_EXPONENT) * SUB_BUCKETS + (int) ((Double.doubleToRawLongBits(
+          magnitude) >>> (52 - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+    return value > 0 ? ZERO_BUCKET + 1 + index : ZERO_BUCKET - 1 - index;
+  }
+
+  /**
+   * Returns the midpoint of a bucket.
+   */
+  static double bucketValue(int bucket) {
+    if (bucket == ZERO_BUCKET) {
+      return 0;
+    }
+    int index = bucket > ZERO_BUCKET ? bucket - ZERO_BUCKET - 1 : ZERO_BUCKET - 1 - bucket;
+    double midpoint = Math.scalb(1 + (index % SUB_BUCKETS + 0.5) / SUB_BUCKETS,
+        index / SUB_BUCKETS + MIN_EXPONENT);
+    return bucket > ZERO_BUCKET ? midpoint : -midpoint;
+  }
+
+  private void add(int data, long minuteMillis, int bucket, long count) {
+    int bin = data + (int) (minuteMillis / 60000L % BINS) * BIN_SIZE;
+    long binMinute = longs.getVolatile(bin);
+    for (int spins = 0; binMinute < minuteMillis; binMinute = longs.getVolatile(bin)) {
+      if (binMinute == RELABELING) {
+        if (++spins > RELABEL_SPINS) {
+          // the relabeling process may have died, the reporter frees the bin
+          return;
+        }
+        Thread.yield();
+      } else if (longs.compareAndSet(bin, binMinute, RELABELING)) {
+        // a free bin, or one that was not reported for BINS - 1 minutes: drop what it holds
+        clear(bin);
+        longs.compareAndSet(bin, RELABELING, minuteMillis);
+      }
+    }
+    longs.getAndAdd(bin + 8 + bucket * 8, count);
+  }
+
+  private void clear(int bin) {
+    for (int offset = bin + 8; offset < bin + BIN_SIZE; offset += 8) {
+      take(offset);
+    }
+  }
+
+  /**
+   * Reset a count to zero and return it. Unlike subtracting the count read, two processes taking
+   * the same count concurrently cannot both subtract it.
+   */
+  private long take(int offset) {
+    while (true) {
+      long count = longs.getVolatile(offset);
+      if (count == 0 || longs.compareAndSet(offset, count, 0)) {
+        return count;
+      }
+    }
+  }
+
+  private CentroidDigest peek(int data) {
+    CentroidDigest digest = new CentroidDigest();
+    for (int bin = data; bin < data + BINS * BIN_SIZE; bin += BIN_SIZE) {
+      if (longs.getVolatile(bin) <= 0) {
+        continue;
+      }
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        long count = longs.getVolatile(bin + 8 + bucket * 8);
+        if (count != 0) {
+          digest.add(bucketValue(bucket), count);
+        }
+      }
+    }
+    return digest;
+  }
+
+  /**
+   * Remove and return the distributions of the bins of minutes before the given one.
+   */
+  private List<WavefrontHistogramImpl.Distribution> drain(int data, long currentMinuteMillis) {
+    List<WavefrontHistogramImpl.Distribution> distributions = Collections.emptyList();
+    for (int bin = data; bin < data + BINS * BIN_SIZE; bin += BIN_SIZE) {
+      long binMinute = longs.getVolatile(bin);
+      if (binMinute == RELABELING) {
+        // still relabeling since the previous report: the writer died, free the bin
+        if (!relabelingBins.add(bin)) {
+          clear(bin);
+          longs.compareAndSet(bin, RELABELING, 0);
+          relabelingBins.remove(bin);
+        }
+        continue;
+      }
+      if (!relabelingBins.isEmpty()) {
+        relabelingBins.remove(bin);
+      }
+      if (binMinute == 0 || binMinute >= currentMinuteMillis) {
+        continue;
+      }
+      List<Pair<Double, Integer>> centroids = new ArrayList<>();
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        long count = take(bin + 8 + bucket * 8);
+        if (count != 0) {
+          centroids.add(new Pair<>(bucketValue(bucket), (int) Math.min(count,
+              Integer.MAX_VALUE)));
+        }
+      }
+      longs.compareAndSet(bin, binMinute, 0);
+      if (!centroids.isEmpty()) {
+        if (distributions.isEmpty()) {
+          distributions = new ArrayList<>(BINS);
+        }
+        distributions.add(new WavefrontHistogramImpl.Distribution(binMinute, centroids));
+      }
+    }
+    distributions.sort((a, b) -> Long.compare(a.timestamp, b.timestamp));
+    return distributions;
+  }
+
+  /**
+   * Report the metrics of all processes: counters, delta counts since the previous report and
+   * the distributions of completed minutes. Delta counts that the sink does not send stay in the
+   * region, distributions are held until the next report.
+   */
+  synchronized void report(MetricRollup.Sink sink) throws IOException {
+    if (!acquireReportLock()) {
+      return;
+    }
+    long currentMinuteMillis = MinuteBins.minuteMillis(System.currentTimeMillis());
+    for (int entry = HEADER_SIZE; entry < HEADER_SIZE + indexCapacity * 4; entry += 4) {
+      int offset = longs.getIntVolatile(entry);
+      if (offset == 0) {
+        continue;
+      }
+      MetricName metricName = reportedNames.get(offset);
+      if (metricName == null) {
+        if (!isValidRecord(offset)) {
+          logCorrupt(offset);
+          continue;
+        }
+        ByteBuffer name = buffer.duplicate();
+        name.limit(offset + 8 + buffer.getInt(offset + 4));
+        try {
+          metricName = MetricsCheckpoint.readName(name, offset + 8);
+        } catch (RuntimeException e) {
+          logCorrupt(offset);
+          continue;
+        }
+        reportedNames.put(offset, metricName);
+      }
+      int data = dataOffset(offset);
+      switch (buffer.getInt(offset)) {
+        case COUNTER:
+          sink.counter(metricName, longs.getVolatile(data));
+          break;
+        case DELTA_COUNTER:
+          long count = longs.getVolatile(data);
+          if (count != 0 && sink.deltaCounter(metricName, count)) {
+            longs.getAndAdd(data, -count);
+          }
+          break;
+        case HISTOGRAM:
+          List<WavefrontHistogramImpl.Distribution> distributions =
+              drain(data, currentMinuteMillis);
+          List<WavefrontHistogramImpl.Distribution> held = heldDistributions.remove(offset);
+          if (held != null) {
+            // writing them back into the bins would mix them into the minutes recorded there
+            held.addAll(distributions);
+            distributions = held;
+          }
+          if (!distributions.isEmpty()) {
+            List<WavefrontHistogramImpl.Distribution> shed =
+                sink.distributions(metricName, distributions);
+            if (!shed.isEmpty()) {
+              heldDistributions.put(offset, new ArrayList<>(shed));
+            }
+          }
+          break;
+        default:
+      }
+    }
+  }
+
+  /**
+   * Take the report lock unless this process already holds it.
+   *
+   * @return whether this process reports the region
+   */
+  private boolean acquireReportLock() throws IOException {
+    if (reportLock != null) {
+      return true;
+    }
+    try {
+      reportLock = channel.tryLock(REPORT_LOCK_POSITION, 1, false);
+    } catch (OverlappingFileLockException e) {
+      // held by another reporter of this process
+    }
+    if (reportLock == null) {
+      if (!reportLockLogged) {
+        logger.log(Level.WARNING, "Shared metric region " + file + " is reported by another " +
+            "reporter, skipping it until that reporter stops");
+        reportLockLogged = true;
+      }
+      return false;
+    }
+    if (reportLockLogged) {
+      logger.log(Level.INFO, "Reporting shared metric region " + file);
+      reportLockLogged = false;
+    }
+    return true;
+  }
+
+  /**
+   * Closes the file, releasing the report lock. Metrics already created keep updating the mapped
+   * region.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public Counter newCounter(MetricName metricName) {
+    Metric existing = registry.getMetrics().get(metricName);
+    if (existing != null) {
+      return checked(metricName, existing, Counter.class);
+    }
+    int data = record(metricName, COUNTER);
+    if (data < 0) {
+      logFull();
+      return registry.counter(metricName);
+    }
+    return registered(metricName, new SharedCounter(longs, data), Counter.class);
+  }
+
+  @Override
+  public DeltaCounter newDeltaCounter(MetricName metricName) {
+    if (!metricName.getKey().startsWith(Constants.DELTA_PREFIX) &&
+        !metricName.getKey().startsWith(Constants.DELTA_PREFIX_2)) {
+      metricName = new MetricName(Constants.DELTA_PREFIX + metricName.getKey(),
+          metricName.getTags());
+    }
+    Metric existing = registry.getMetrics().get(metricName);
+    if (existing != null) {
+      return checked(metricName, existing, DeltaCounter.class);
+    }
+    int data = record(metricName, DELTA_COUNTER);
+    if (data < 0) {
+      logFull();
+      return DeltaCounter.get(registry, metricName);
+    }
+    return registered(metricName, new SharedDeltaCounter(longs, data), DeltaCounter.class);
+  }
+
+  @Override
+  public WavefrontHistogram newWavefrontHistogram(MetricName metricName) {
+    return newWavefrontHistogram(metricName, System::currentTimeMillis);
+  }
+
+  @Override
+  public WavefrontHistogram newWavefrontHistogram(MetricName metricName, Supplier<Long> clock) {
+    Metric existing = registry.getMetrics().get(metricName);
+    if (existing != null) {
+      return checked(metricName, existing, WavefrontHistogram.class);
+    }
+    int data = record(metricName, HISTOGRAM);
+    if (data < 0) {
+      logFull();
+      return WavefrontHistogram.get(registry, metricName, clock);
+    }
+    return WavefrontHistogram.getWithRecorder(registry, metricName,
+        () -> new SharedRecorder(data, clock));
+  }
+
+  @Override
+  public Gauge newGauge(MetricName metricName, MetricRegistry.MetricSupplier<Gauge> supplier) {
+    logUnsupported("gauges");
+    return registry.gauge(metricName, supplier);
+  }
+
+  @Override
+  public Histogram newHistogram(MetricName metricName) {
+    logUnsupported("histograms");
+    return registry.histogram(metricName);
+  }
+
+  @Override
+  public Timer newTimer(MetricName metricName) {
+    logUnsupported("timers");
+    return registry.timer(metricName);
+  }
+
+  @Override
+  public Timer newTimer(MetricName metricName,
+                        SlidingTimeWindowArrayReservoir slidingTimeWindowArrayReservoir) {
+    logUnsupported("timers");
+    return registry.timer(metricName, () -> new Timer(slidingTimeWindowArrayReservoir));
+  }
+
+  @Override
+  public Meter newMeter(MetricName metricName) {
+    logUnsupported("meters");
+    return registry.meter(metricName);
+  }
+
+  private void logUnsupported(String metrics) {
+    if (unsupportedLogged.add(metrics)) {
+      logger.log(Level.WARNING, "Shared metric region " + file + " does not hold " + metrics +
+          ", they are created in this process only and are not reported; use counters, delta " +
+          "counters or Wavefront histograms");
+    }
+  }
+
+  private <T extends Metric> T registered(MetricName metricName, T metric, Class<T> type) {
+    try {
+      return registry.register(metricName, metric);
+    } catch (IllegalArgumentException e) {
+      // registered by another thread meanwhile
+      return checked(metricName, registry.getMetrics().get(metricName), type);
+    }
+  }
+
+  private static <T extends Metric> T checked(MetricName metricName, Metric metric,
+                                              Class<T> type) {
+    if (!type.isInstance(metric) || (type == Counter.class && metric instanceof DeltaCounter)) {
+      throw new IllegalStateException("Existing metric of type: " +
+          metric.getClass().getSimpleName() + " found registered to metricName: " + metricName);
+    }
+    return type.cast(metric);
+  }
+
+  private static final class SharedCounter extends Counter {
+    private final MappedLongs longs;
+    private final int offset;
+
+    SharedCounter(MappedLongs longs, int offset) {
+      this.longs = longs;
+      this.offset = offset;
+    }
+
+    @Override
+    public void inc() {
+      longs.getAndAdd(offset, 1);
+    }
+
+    @Override
+    public void inc(long n) {
+      longs.getAndAdd(offset, n);
+    }
+
+    @Override
+    public void dec() {
+      longs.getAndAdd(offset, -1);
+    }
+
+    @Override
+    public void dec(long n) {
+      longs.getAndAdd(offset, -n);
+    }
+
+    @Override
+    public long getCount() {
+      return longs.getVolatile(offset);
+    }
+  }
+
+  /**
+   * Delta counter whose count is the count of all processes not reported yet.
+   */
+  private static final class SharedDeltaCounter extends DeltaCounter {
+    private final MappedLongs longs;
+    private final int offset;
+
+    SharedDeltaCounter(MappedLongs longs, int offset) {
+      this.longs = longs;
+      this.offset = offset;
+    }
+
+    @Override
+    public void inc() {
+      longs.getAndAdd(offset, 1);
+    }
+
+    @Override
+    public void inc(long n) {
+      longs.getAndAdd(offset, n);
+    }
+
+    @Override
+    public void dec() {
+      longs.getAndAdd(offset, -1);
+    }
+
+    @Override
+    public void dec(long n) {
+      longs.getAndAdd(offset, -n);
+    }
+
+    @Override
+    public long getCount() {
+      return longs.getVolatile(offset);
+    }
+  }
+
+  /**
+   * Recorder of a Wavefront histogram in the region. Its bins are flushed by the reporter mapping
+   * the region, flushing them here returns nothing.
+   */
+  private final class SharedRecorder implements DistributionRecorder {
+    private final int data;
+    private final Supplier<Long> clock;
+
+    SharedRecorder(int data, Supplier<Long> clock) {
+      this.data = data;
+      this.clock = clock;
+    }
+
+    @Override
+    public void update(double value) {
+      if (!Double.isNaN(value)) {
+        add(data, MinuteBins.minuteMillis(clock.get()), bucket(value), 1);
+      }
+    }
+
+    @Override
+    public long getCount() {
+      return peek(data).getCount();
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+      return new DigestSnapshot(peek(data));
+    }
+
+    @Override
+    public List<WavefrontHistogramImpl.Distribution> flushDistributions() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public List<WavefrontHistogramImpl.Distribution> flushAllDistributions() {
+      return Collections.emptyList();
+    }
+  }
+}
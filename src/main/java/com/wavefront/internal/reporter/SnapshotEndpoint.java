@@ -0,0 +1,73 @@
+package com.wavefront.internal.reporter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP endpoint serving the pre-rendered {@link MetricsSnapshot} of a reporter, so that a
+ * scrape only copies bytes. Uses the HTTP server built into the JDK on a single daemon thread.
+ */
+class SnapshotEndpoint implements Closeable {
+
+  private final MetricsSnapshot snapshot;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  /**
+   * Bind the endpoint and start serving.
+   *
+   * @throws IOException if the address cannot be bound
+   */
+  SnapshotEndpoint(InetSocketAddress address, MetricsSnapshot snapshot) throws IOException {
+    this.snapshot = snapshot;
+    this.server = HttpServer.create(address, 0);
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "wavefront-reporter-endpoint");
+      thread.setDaemon(true);
+      return thread;
+    });
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod();
+      if (!"GET".equals(method) && !"HEAD".equals(method)) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] bytes = snapshot.bytes();
+      exchange.getResponseHeaders().set("Content-Type", snapshot.getFormat().contentType);
+      if ("HEAD".equals(method)) {
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+      try (OutputStream body = exchange.getResponseBody()) {
+        body.write(bytes);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
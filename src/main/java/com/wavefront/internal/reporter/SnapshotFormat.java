@@ -0,0 +1,24 @@
+package com.wavefront.internal.reporter;
+
+/**
+ * Text format of the metrics snapshot served by the local endpoint of a reporter.
+ */
+public enum SnapshotFormat {
+  /**
+   * Wavefront data format, exactly as sent to Wavefront.
+   */
+  WAVEFRONT("text/plain; charset=utf-8"),
+
+  /**
+   * Prometheus text exposition format. Delta counters are exposed as cumulative counters and
+   * Wavefront histograms as summaries, with the quantiles of the distributions flushed in the
+   * last cycle and a cumulative count and sum.
+   */
+  PROMETHEUS("text/plain; version=0.0.4; charset=utf-8");
+
+  final String contentType;
+
+  SnapshotFormat(String contentType) {
+    this.contentType = contentType;
+  }
+}
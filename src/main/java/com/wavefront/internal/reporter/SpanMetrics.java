@@ -0,0 +1,297 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.EntitiesInstantiator;
+import com.wavefront.internal.histogram.MinuteBins;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.dropwizard.metrics5.DeltaCounter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.WavefrontHistogram;
+
+/**
+ * Rate, error and duration (RED) metrics derived from finished spans. Each operation, identified
+ * by its application, service and operation name, is reported as delta counters of invocations,
+ * errors and total time, and a Wavefront histogram of durations in microseconds, named and tagged
+ * as by the Wavefront tracing SDKs.
+ *
+ * <p>Recording a span only appends its operation, minute and duration to a buffer owned by the
+ * calling thread: nothing of the span is retained, and threads never contend with each other. The
+ * buffers are drained into the metrics by the reporting thread at the start of every reporting
+ * cycle, and durations are merged into the histogram bin of the minute the span was recorded in.
+ * A thread whose buffer is full applies it to the metrics itself.
+ *
+ * <p>The number of operations is bounded: once the bound is reached, spans of new operations are
+ * recorded under the operation name {@code other} of their service if the service already has
+ * operations, and under application, service and operation {@code other} otherwise. Besides the
+ * bounded operations there is thus at most one {@code other} operation per known service and a
+ * single global one, whatever the number of distinct applications and services recorded.
+ */
+class SpanMetrics {
+  private static final Logger logger = Logger.getLogger(SpanMetrics.class.getCanonicalName());
+
+  static final String PREFIX = "tracing.derived.";
+  static final String OVERFLOW_OPERATION = "other";
+  private static final int BUFFER_CAPACITY = 1024;
+
+  private final EntitiesInstantiator metrics;
+  private final Supplier<Long> clockMillis;
+  private final int maxOperations;
+  // application -> service -> operation name -> operation
+  private final Map<String, Map<String, Map<String, Operation>>> operations =
+      new ConcurrentHashMap<>();
+  // guarded by this
+  private int operationCount;
+  private boolean overflowLogged;
+  private final List<ThreadBuffer> buffers = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<ThreadBuffer> threadBuffer =
+      ThreadLocal.withInitial(this::newThreadBuffer);
+
+  /**
+   * @param clockMillis clock of the duration histograms, that spans are binned by
+   */
+  SpanMetrics(EntitiesInstantiator metrics, Supplier<Long> clockMillis, int maxOperations) {
+    this.metrics = metrics;
+    this.clockMillis = clockMillis;
+    this.maxOperations = maxOperations;
+  }
+
+  void record(String application, String service, String operationName, long durationMicros,
+              boolean error) {
+    threadBuffer.get().record(operation(application, service, operationName),
+        MinuteBins.minuteMillis(clockMillis.get()), durationMicros, error);
+  }
+
+  private Operation operation(String application, String service, String operationName) {
+    Map<String, Map<String, Operation>> services = operations.get(application);
+    Map<String, Operation> byName = services == null ? null : services.get(service);
+    Operation operation = byName == null ? null : byName.get(operationName);
+    return operation != null ? operation : newOperation(application, service, operationName);
+  }
+
+  private synchronized Operation newOperation(String application, String service,
+                                              String operationName) {
+    if (operationCount < maxOperations) {
+      Map<String, Operation> byName = operations.computeIfAbsent(application,
+          key -> new ConcurrentHashMap<>()).computeIfAbsent(service,
+          key -> new ConcurrentHashMap<>());
+      Operation operation = byName.get(operationName);
+      if (operation == null) {
+        operation = new Operation(metrics, application, service, operationName);
+        byName.put(operationName, operation);
+        operationCount++;
+      }
+      return operation;
+    }
+    Map<String, Map<String, Operation>> services = operations.get(application);
+    Map<String, Operation> byName = services == null ? null : services.get(service);
+    Operation operation = byName == null ? null : byName.get(operationName);
+    if (operation != null) {
+      return operation;
+    }
+    if (!overflowLogged) {
+      logger.log(Level.WARNING, "More than " + maxOperations + " span operations, spans of " +
+          "further operations are reported as operation " + OVERFLOW_OPERATION);
+      overflowLogged = true;
+    }
+    if (byName == null) {
+      // new applications and services must not add entries once the bound is reached
+      application = OVERFLOW_OPERATION;
+      service = OVERFLOW_OPERATION;
+      byName = operations.computeIfAbsent(application, key -> new ConcurrentHashMap<>())
+          .computeIfAbsent(service, key -> new ConcurrentHashMap<>());
+    }
+    operation = byName.get(OVERFLOW_OPERATION);
+    if (operation == null) {
+      operation = new Operation(metrics, application, service, OVERFLOW_OPERATION);
+      byName.put(OVERFLOW_OPERATION, operation);
+    }
+    return operation;
+  }
+
+  private ThreadBuffer newThreadBuffer() {
+    ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread());
+    buffers.add(buffer);
+    return buffer;
+  }
+
+  /**
+   * Apply the spans buffered by every thread to their metrics. Buffers of threads that have
+   * terminated are drained one last time before they are dropped.
+   */
+  synchronized void drain() {
+    for (ThreadBuffer buffer : buffers) {
+      boolean terminated = buffer.isTerminated();
+      Segment segment = buffer.swap();
+      segment.apply();
+      buffer.spare = segment;
+      if (terminated) {
+        buffers.remove(buffer);
+      }
+    }
+  }
+
+  private static final class Operation {
+    private final DeltaCounter invocations;
+    private final DeltaCounter errors;
+    private final DeltaCounter totalTimeMillis;
+    private final WavefrontHistogram durationMicros;
+    private final boolean mergeDurations;
+    // the fields below are guarded by the monitor of this operation
+    // microseconds not yet added to totalTimeMillis
+    private long remainderMicros;
+    // durations by the minute of their span, not yet merged into durationMicros
+    private final MinuteBins durationBins = new MinuteBins();
+
+    Operation(EntitiesInstantiator metrics, String application, String service,
+              String operationName) {
+      Map<String, String> tags = new HashMap<>();
+      tags.put("application", application);
+      tags.put("service", service);
+      tags.put("operationName", operationName);
+      String name = PREFIX + application + "." + service + "." + operationName;
+      invocations = metrics.newDeltaCounter(new MetricName(name + ".invocation", tags));
+      errors = metrics.newDeltaCounter(new MetricName(name + ".error", tags));
+      totalTimeMillis = metrics.newDeltaCounter(new MetricName(name + ".total_time.millis",
+          tags));
+      durationMicros = metrics.newWavefrontHistogram(new MetricName(name + ".duration.micros",
+          tags));
+      // a custom recorder that cannot merge bins its updates by the time they are applied
+      mergeDurations = durationMicros.supportsMerge();
+    }
+
+    void apply(long minuteMillis, long durationMicros, boolean error) {
+      invocations.inc();
+      if (error) {
+        errors.inc();
+      }
+      if (mergeDurations) {
+        durationBins.bin(minuteMillis).add(durationMicros);
+      } else {
+        this.durationMicros.update(durationMicros);
+      }
+      remainderMicros += durationMicros;
+      if (remainderMicros >= 1000) {
+        totalTimeMillis.inc(remainderMicros / 1000);
+        remainderMicros %= 1000;
+      }
+    }
+
+    void mergeDurations() {
+      if (!durationBins.isEmpty()) {
+        durationMicros.merge(durationBins.flush(Long.MAX_VALUE));
+      }
+    }
+  }
+
+  /**
+   * Spans recorded by a thread, as parallel arrays of their operation, minute, duration and
+   * outcome.
+   */
+  private static final class Segment {
+    private final Operation[] operations = new Operation[BUFFER_CAPACITY];
+    private final long[] minutesMillis = new long[BUFFER_CAPACITY];
+    private final long[] durationsMicros = new long[BUFFER_CAPACITY];
+    private final boolean[] errors = new boolean[BUFFER_CAPACITY];
+    private int size;
+
+    boolean isFull() {
+      return size == BUFFER_CAPACITY;
+    }
+
+    void add(Operation operation, long minuteMillis, long durationMicros, boolean error) {
+      operations[size] = operation;
+      minutesMillis[size] = minuteMillis;
+      durationsMicros[size] = durationMicros;
+      errors[size] = error;
+      size++;
+    }
+
+    void apply() {
+      for (int i = 0; i < size; i++) {
+        Operation operation = operations[i];
+        synchronized (operation) {
+          operation.apply(minutesMillis[i], durationsMicros[i], errors[i]);
+        }
+      }
+      // one merge per operation and segment rather than per span
+      for (int i = 0; i < size; i++) {
+        Operation operation = operations[i];
+        synchronized (operation) {
+          operation.mergeDurations();
+        }
+        operations[i] = null;
+      }
+      size = 0;
+    }
+  }
+
+  private static final class ThreadBuffer {
+    private static final AtomicLongFieldUpdater<ThreadBuffer> PHASE =
+        AtomicLongFieldUpdater.newUpdater(ThreadBuffer.class, "phase");
+
+    private final WeakReference<Thread> owner;
+
+    /**
+     * Odd while the owning thread is recording. Only ever written by the owning thread.
+     */
+    private volatile long phase;
+
+    /**
+     * Segment the owning thread currently records into.
+     */
+    private volatile Segment active = new Segment();
+
+    /**
+     * Empty segment handed to the owning thread on the next swap. Only touched by the draining
+     * thread.
+     */
+    private Segment spare = new Segment();
+
+    ThreadBuffer(Thread owner) {
+      this.owner = new WeakReference<>(owner);
+    }
+
+    void record(Operation operation, long minuteMillis, long durationMicros, boolean error) {
+      long current = phase;
+      // volatile write followed by the volatile read of active: pairs with swap()
+      phase = current + 1;
+      Segment segment = active;
+      if (segment.isFull()) {
+        segment.apply();
+      }
+      segment.add(operation, minuteMillis, durationMicros, error);
+      PHASE.lazySet(this, current + 2);
+    }
+
+    /**
+     * Install the spare segment and wait until the owning thread is no longer writing into the
+     * previously active one, which is then returned.
+     */
+    Segment swap() {
+      Segment previous = active;
+      active = spare;
+      long observed = phase;
+      if ((observed & 1) != 0) {
+        while (phase == observed) {
+          Thread.yield();
+        }
+      }
+      return previous;
+    }
+
+    boolean isTerminated() {
+      Thread thread = owner.get();
+      return thread == null || !thread.isAlive();
+    }
+  }
+}
@@ -1,6 +1,11 @@
 package com.wavefront.internal.reporter;
 
-import com.wavefront.internal.EntitiesInstantiator;
+import com.wavefront.internal.ExtendedEntitiesInstantiator;
+import com.wavefront.internal.histogram.CentroidDigest;
+import com.wavefront.internal.histogram.IntervalHdrReservoir;
+import com.wavefront.internal.histogram.RecordingMode;
+import com.wavefront.internal.histogram.SamplingPolicy;
+import com.wavefront.internal.histogram.SlabDistributionStore;
 import com.wavefront.sdk.common.Constants;
 import com.wavefront.sdk.common.WavefrontSender;
 import com.wavefront.sdk.common.metrics.WavefrontSdkCounter;
@@ -9,15 +14,29 @@ import com.wavefront.sdk.entities.histograms.HistogramGranularity;
 import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
 
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,8 +45,12 @@ import java.util.regex.Pattern;
 import io.dropwizard.metrics5.Clock;
 import io.dropwizard.metrics5.Counter;
 import io.dropwizard.metrics5.DeltaCounter;
+import io.dropwizard.metrics5.DistinctCounter;
+import io.dropwizard.metrics5.ExponentiallyDecayingReservoir;
 import io.dropwizard.metrics5.Gauge;
+import io.dropwizard.metrics5.HeavyHitters;
 import io.dropwizard.metrics5.Histogram;
+import io.dropwizard.metrics5.LightweightMeter;
 import io.dropwizard.metrics5.Meter;
 import io.dropwizard.metrics5.Metered;
 import io.dropwizard.metrics5.Metric;
@@ -35,17 +58,15 @@ import io.dropwizard.metrics5.MetricAttribute;
 import io.dropwizard.metrics5.MetricFilter;
 import io.dropwizard.metrics5.MetricName;
 import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.MetricRegistryListener;
+import io.dropwizard.metrics5.MetricSet;
+import io.dropwizard.metrics5.Reservoir;
+import io.dropwizard.metrics5.SampledTimer;
 import io.dropwizard.metrics5.ScheduledReporter;
 import io.dropwizard.metrics5.SlidingTimeWindowArrayReservoir;
 import io.dropwizard.metrics5.Snapshot;
 import io.dropwizard.metrics5.Timer;
 import io.dropwizard.metrics5.WavefrontHistogram;
-import io.dropwizard.metrics5.jvm.BufferPoolMetricSet;
-import io.dropwizard.metrics5.jvm.ClassLoadingGaugeSet;
-import io.dropwizard.metrics5.jvm.FileDescriptorRatioGauge;
-import io.dropwizard.metrics5.jvm.GarbageCollectorMetricSet;
-import io.dropwizard.metrics5.jvm.MemoryUsageGaugeSet;
-import io.dropwizard.metrics5.jvm.ThreadStatesGaugeSet;
 
 /**
  * Wavefront Internal Reporter that reports metrics and histograms to Wavefront via proxy or
@@ -54,12 +75,16 @@ import io.dropwizard.metrics5.jvm.ThreadStatesGaugeSet;
  *
  * @author Sushant Dewan (sushant@wavefront.com).
  */
-public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator {
+public class WavefrontInternalReporter implements Reporter, ExtendedEntitiesInstantiator {
   private static final Logger logger =
       Logger.getLogger(WavefrontInternalReporter.class.getCanonicalName());
 
   private final ScheduledReporter scheduledReporter;
+  private final ScheduledExecutorService reportingExecutor;
   private final MetricRegistry internalRegistry;
+  // the internal registry followed by the application registries reported alongside it
+  private final List<MetricRegistry> registries;
+  private final MetricFilter filter;
 
   /**
    * A builder for {@link WavefrontInternalReporter} instances. Defaults to not using a prefix,
@@ -71,6 +96,34 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
     private final Map<String, String> reporterPointTags;
     private final Set<HistogramGranularity> histogramGranularities;
     private boolean includeJvmMetrics = false;
+    private boolean includeJfrMetrics = false;
+    private JvmMetricsCollector.ThreadStates jvmThreadStates =
+        JvmMetricsCollector.ThreadStates.FULL;
+    private int compactHistogramCompression = CentroidDigest.DEFAULT_COMPRESSION;
+    private int circuitFailureThreshold = 0;
+    private Duration circuitInitialBackoff;
+    private Duration circuitMaxBackoff;
+    private final CompiledMetricFilter.Rules includes = new CompiledMetricFilter.Rules();
+    private final CompiledMetricFilter.Rules excludes = new CompiledMetricFilter.Rules();
+    private final List<MetricRollup.Rule> rollupRules = new ArrayList<>();
+    private int gaugeThreads = 0;
+    private Duration gaugeTimeout;
+    private InetSocketAddress endpointAddress;
+    private SnapshotFormat endpointFormat;
+    private final List<MetricRegistry> attachedRegistries = new ArrayList<>();
+    private Duration coarseClockResolution;
+    private int distributionCentroidBudget = 0;
+    private boolean coalesceDistributions = false;
+    private final Set<MeterRate> meterRates =
+        EnumSet.of(MeterRate.M1, MeterRate.M5, MeterRate.M15, MeterRate.MEAN);
+    private int maxSpanOperations = 0;
+    private Path checkpointFile;
+    private Duration checkpointInterval;
+    private int checkpointSizeBytes;
+    private double pointsPerSecondLimit = 0;
+    private Path sharedRegionFile;
+    private int sharedRegionSizeBytes;
+    private final List<PointRateLimiter.Rule> priorityRules = new ArrayList<>();
 
     public Builder() {
       this.prefix = null;
@@ -164,6 +217,375 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
       return this;
     }
 
+    /**
+     * Report allocation, GC pause, safepoint and monitor contention metrics aggregated from JDK
+     * Flight Recorder events, in addition to the JVM metrics. Requires Java 14 or later and a JVM
+     * with JFR available; otherwise only the JVM metrics are reported.
+     *
+     * @return {@code this}
+     */
+    public Builder includeJfrMetrics() {
+      this.includeJvmMetrics = true;
+      this.includeJfrMetrics = true;
+      return this;
+    }
+
+    /**
+     * Compact every distribution sent for a Wavefront histogram to at most the given number of
+     * centroids. Fewer centroids mean smaller sends at the cost of quantile accuracy, mostly away
+     * from the tails. Defaults to sending distributions as recorded, with over a hundred
+     * centroids each.
+     *
+     * @param maxCentroids centroid budget per distribution, at least 3
+     * @return {@code this}
+     */
+    public Builder withDistributionCentroidBudget(int maxCentroids) {
+      this.distributionCentroidBudget = maxCentroids;
+      return this;
+    }
+
+    /**
+     * When distributions are only reported with hour and/or day granularity, merge the minute
+     * distributions flushed in a reporting cycle that fall into the same hour, or the same day
+     * if only the day granularity is reported, into a single distribution. Has no effect when
+     * the minute granularity is reported.
+     *
+     * @return {@code this}
+     */
+    public Builder coalesceDistributionBins() {
+      this.coalesceDistributions = true;
+      return this;
+    }
+
+    /**
+     * Set the rates reported for the meters created with {@code newLightweightMeter}, besides
+     * their count. Defaults to the moving averages and the mean rate, like other meters.
+     *
+     * @param rates the rates to report, none to only report the count
+     * @return {@code this}
+     */
+    public Builder withLightweightMeterRates(MeterRate... rates) {
+      this.meterRates.clear();
+      this.meterRates.addAll(Arrays.asList(rates));
+      return this;
+    }
+
+    /**
+     * Derive rate, error and duration metrics from the spans passed to {@code reportSpan}, e.g.
+     * when {@code reportTraces} is enabled in the reporting configuration. Each operation is
+     * reported as {@code tracing.derived.<application>.<service>.<operation>} delta counters of
+     * invocations, errors and total time and a Wavefront histogram of durations. Defaults to
+     * ignoring spans.
+     *
+     * @param maxOperations maximum number of operations reported, spans of further operations
+     *                      are reported under the operation name {@code other} of their
+     *                      service, or of application and service {@code other} for services
+     *                      without operations
+     * @return {@code this}
+     */
+    public Builder reportSpanMetrics(int maxOperations) {
+      this.maxSpanOperations = maxOperations;
+      return this;
+    }
+
+    /**
+     * Checkpoint the counts of delta counters and the unflushed distributions of Wavefront
+     * histograms into a memory-mapped file, so that they survive the process crashing or being
+     * killed. The checkpoint is written by the reporting thread at the given interval and after
+     * every report, and never touches the recording path. Data restored from the file is sent
+     * before anything else once reporting starts. Histograms with a custom recorder that cannot
+     * peek at its distributions are not checkpointed. Defaults to no checkpoint.
+     *
+     * @param file      checkpoint file, created if needed
+     * @param interval  interval between checkpoints
+     * @param sizeBytes size of the file, e.g. 4 MiB
+     * @return {@code this}
+     */
+    public Builder withCheckpoint(Path file, Duration interval, int sizeBytes) {
+      this.checkpointFile = file;
+      this.checkpointInterval = interval;
+      this.checkpointSizeBytes = sizeBytes;
+      return this;
+    }
+
+    /**
+     * Report the metrics that processes on this host write into a {@link SharedMetricRegion}
+     * mapping the given file, in addition to the metrics of this reporter. Delta counts and
+     * histogram distributions stay in the file until they are sent, so nothing is lost when the
+     * writing processes exit. Defaults to no shared region.
+     *
+     * @param file      region file, created if needed
+     * @param sizeBytes size of the file if it is created by this reporter, e.g. 64 MiB
+     * @return {@code this}
+     */
+    public Builder reportSharedMetricRegion(Path file, int sizeBytes) {
+      this.sharedRegionFile = file;
+      this.sharedRegionSizeBytes = sizeBytes;
+      return this;
+    }
+
+    /**
+     * Limit the points sent by the reporter to the given average number of points per second,
+     * counting each distribution of a Wavefront histogram as one point. When a reporting cycle
+     * exceeds the limit, points of the lowest {@link PointPriority} are shed first: by default
+     * delta counters and distributions come first, then counters, gauges and finally the
+     * attributes of timers, meters and histograms. Shed delta counts are carried over to the next
+     * cycle, as are shed distributions of histograms that can merge them back. The number of
+     * points shed per priority is reported as {@code points.shed.*} internal metrics. Defaults to
+     * no limit.
+     *
+     * @param pointsPerSecond maximum average number of points sent per second
+     * @return {@code this}
+     */
+    public Builder withPointsPerSecondLimit(double pointsPerSecond) {
+      this.pointsPerSecondLimit = pointsPerSecond;
+      return this;
+    }
+
+    /**
+     * Send the points of metrics whose name matches the given glob with the given priority
+     * instead of the default priority of their type, when the output of the reporter is limited
+     * with {@link #withPointsPerSecondLimit(double)}. The first matching rule applies.
+     *
+     * @param glob     the metric name glob, not including the reporter prefix
+     * @param priority the priority of the points of matching metrics
+     * @return {@code this}
+     */
+    public Builder assignPointPriority(String glob, PointPriority priority) {
+      CompiledMetricFilter.Rules names = new CompiledMetricFilter.Rules();
+      names.addGlob(glob);
+      this.priorityRules.add(new PointRateLimiter.Rule(names, priority));
+      return this;
+    }
+
+    /**
+     * Time the timers and assign values of the Wavefront histograms created by this reporter with
+     * a {@link CoarseClock} of the given resolution instead of reading the OS clock for every
+     * update. Durations measured by these timers are only accurate to the resolution. Timers and
+     * histograms created with an explicit clock keep it, e.g.
+     * {@code newTimer(name, Clock.defaultClock())} for a timer needing precise durations. The
+     * reporter releases the clock when it stops. Defaults to the precise clock.
+     *
+     * @param resolution interval at which the cached time is updated, e.g. 1 millisecond
+     * @return {@code this}
+     */
+    public Builder withCoarseClock(Duration resolution) {
+      this.coarseClockResolution = resolution;
+      return this;
+    }
+
+    /**
+     * Also report the metrics of an existing registry, e.g. the registry of a Dropwizard
+     * application, directly from that registry: its metrics are neither copied nor wrapped, and
+     * its delta counters and Wavefront histograms are reset as they are reported. Filters,
+     * roll-ups and the reporter's prefix and point tags apply to these metrics as well. JVM
+     * metrics already registered in any of the registries are not registered again. A metric
+     * registered under the same name in several registries is only reported from the first one,
+     * with the reporter's own registry first.
+     *
+     * @param registry an application registry, may be called several times
+     * @return {@code this}
+     */
+    public Builder reportMetricRegistry(MetricRegistry registry) {
+      this.attachedRegistries.add(registry);
+      return this;
+    }
+
+    /**
+     * Set how JVM thread metrics are collected when JVM metrics are included. Defaults to
+     * {@link JvmMetricsCollector.ThreadStates#FULL}, which takes one thread dump per reporting
+     * cycle. Use {@link JvmMetricsCollector.ThreadStates#COUNTS} to avoid thread dumps on services
+     * running many threads.
+     *
+     * @param threadStates how thread metrics are collected
+     * @return {@code this}
+     */
+    public Builder withJvmThreadStates(JvmMetricsCollector.ThreadStates threadStates) {
+      this.jvmThreadStates = threadStates;
+      return this;
+    }
+
+    /**
+     * Set the compression of histograms created with {@link RecordingMode#COMPACT}. Lower values
+     * reduce the off-heap memory held per histogram at the cost of accuracy. Defaults to 100.
+     *
+     * @param compression the fixed compression for compact histograms
+     * @return {@code this}
+     */
+    public Builder withCompactHistogramCompression(int compression) {
+      this.compactHistogramCompression = compression;
+      return this;
+    }
+
+    /**
+     * Configure the circuit breaker that stops reporting while the sender keeps failing. After
+     * {@code failureThreshold} consecutive reporting cycles with sender failures, cycles are
+     * skipped and delta counters and Wavefront histograms keep accumulating. Once the backoff has
+     * elapsed a single point is sent as a probe: if it succeeds reporting resumes, otherwise the
+     * backoff doubles up to {@code maxBackoff}. Disabled by default, so that every cycle is
+     * attempted.
+     *
+     * @param failureThreshold consecutive failed cycles after which reporting is suspended
+     * @param initialBackoff   time until the first probe
+     * @param maxBackoff       upper bound for the time between probes
+     * @return {@code this}
+     */
+    public Builder withSenderCircuitBreaker(int failureThreshold, Duration initialBackoff,
+                                            Duration maxBackoff) {
+      this.circuitFailureThreshold = failureThreshold;
+      this.circuitInitialBackoff = initialBackoff;
+      this.circuitMaxBackoff = maxBackoff;
+      return this;
+    }
+
+    /**
+     * Keep attempting every reporting cycle regardless of sender failures. This is the default.
+     *
+     * @return {@code this}
+     */
+    public Builder withoutSenderCircuitBreaker() {
+      this.circuitFailureThreshold = 0;
+      return this;
+    }
+
+    /**
+     * Evaluate gauges on a pool of the given number of threads instead of the reporting thread.
+     * Counters, histograms, meters and timers are reported while gauges are evaluated; gauges
+     * that have not completed {@code timeout} after their evaluation started report their last
+     * value and are counted as slow. Defaults to evaluating gauges on the reporting thread.
+     *
+     * @param threads number of threads evaluating gauges
+     * @param timeout time budget of every gauge evaluation
+     * @return {@code this}
+     */
+    public Builder evaluateGaugesConcurrently(int threads, Duration timeout) {
+      this.gaugeThreads = threads;
+      this.gaugeTimeout = timeout;
+      return this;
+    }
+
+    /**
+     * Serve the points of the last completed reporting cycle over HTTP on the given local
+     * address, for example to be scraped by a local agent. The points are rendered once per cycle,
+     * so a scrape neither traverses the registry nor evaluates gauges. Cycles skipped while the
+     * sender circuit is open leave the previous snapshot in place. Disabled by default.
+     *
+     * @param address address to bind, e.g. {@code new InetSocketAddress("localhost", 9464)}
+     * @param format  text format of the served snapshot
+     * @return {@code this}
+     */
+    public Builder withLocalEndpoint(InetSocketAddress address, SnapshotFormat format) {
+      this.endpointAddress = address;
+      this.endpointFormat = format;
+      return this;
+    }
+
+    /**
+     * Only report metrics whose name starts with the given prefix, unless they are excluded.
+     * Once any include rule is set, metrics matching none of the include rules are not reported.
+     *
+     * @param prefix the metric name prefix, not including the reporter prefix
+     * @return {@code this}
+     */
+    public Builder includeMetricsWithPrefix(String prefix) {
+      this.includes.addPrefix(prefix);
+      return this;
+    }
+
+    /**
+     * Only report metrics whose name matches the given glob, unless they are excluded. A
+     * {@code *} matches any sequence of characters and a {@code ?} matches a single character.
+     *
+     * @param glob the metric name glob, not including the reporter prefix
+     * @return {@code this}
+     */
+    public Builder includeMetricsMatching(String glob) {
+      this.includes.addGlob(glob);
+      return this;
+    }
+
+    /**
+     * Only report metrics carrying a point tag with the given key and a value matching the given
+     * glob, unless they are excluded.
+     *
+     * @param tagKey    the key of the point tag
+     * @param valueGlob glob for the value of the point tag, {@code *} for any value
+     * @return {@code this}
+     */
+    public Builder includeMetricsWithTag(String tagKey, String valueGlob) {
+      this.includes.addTag(tagKey, valueGlob);
+      return this;
+    }
+
+    /**
+     * Do not report metrics whose name starts with the given prefix.
+     *
+     * @param prefix the metric name prefix, not including the reporter prefix
+     * @return {@code this}
+     */
+    public Builder excludeMetricsWithPrefix(String prefix) {
+      this.excludes.addPrefix(prefix);
+      return this;
+    }
+
+    /**
+     * Do not report metrics whose name matches the given glob.
+     *
+     * @param glob the metric name glob, not including the reporter prefix
+     * @return {@code this}
+     */
+    public Builder excludeMetricsMatching(String glob) {
+      this.excludes.addGlob(glob);
+      return this;
+    }
+
+    /**
+     * Do not report metrics carrying a point tag with the given key and a value matching the
+     * given glob.
+     *
+     * @param tagKey    the key of the point tag
+     * @param valueGlob glob for the value of the point tag, {@code *} for any value
+     * @return {@code this}
+     */
+    public Builder excludeMetricsWithTag(String tagKey, String valueGlob) {
+      this.excludes.addTag(tagKey, valueGlob);
+      return this;
+    }
+
+    /**
+     * Roll up metrics whose name matches the given glob across the given point tag keys. The
+     * tags are dropped and all metrics of the same type that end up with the same name and tags
+     * are reported as a single series: counters and delta counters are summed, Wavefront
+     * histograms and distinct counters are merged and other gauges are summed. Timers, meters and
+     * other histograms are reported unchanged. The first matching roll-up rule applies.
+     *
+     * @param glob           the metric name glob, not including the reporter prefix
+     * @param droppedTagKeys the point tag keys to aggregate over
+     * @return {@code this}
+     */
+    public Builder rollUpMetricsMatching(String glob, String... droppedTagKeys) {
+      return rollUpMetricsMatching(glob, GaugeAggregation.SUM, droppedTagKeys);
+    }
+
+    /**
+     * Roll up metrics whose name matches the given glob across the given point tag keys, like
+     * {@link #rollUpMetricsMatching(String, String...)}, combining gauges with the given
+     * aggregation.
+     *
+     * @param glob             the metric name glob, not including the reporter prefix
+     * @param gaugeAggregation how the values of rolled up gauges are combined
+     * @param droppedTagKeys   the point tag keys to aggregate over
+     * @return {@code this}
+     */
+    public Builder rollUpMetricsMatching(String glob, GaugeAggregation gaugeAggregation,
+                                         String... droppedTagKeys) {
+      CompiledMetricFilter.Rules names = new CompiledMetricFilter.Rules();
+      names.addGlob(glob);
+      this.rollupRules.add(new MetricRollup.Rule(names,
+          new HashSet<>(Arrays.asList(droppedTagKeys)), gaugeAggregation));
+      return this;
+    }
+
     /**
      * Builds a {@link WavefrontInternalReporter} with the given properties, sending metrics and
      * histograms directly to a given Wavefront server using either proxy or direct ingestion APIs.
@@ -172,18 +594,77 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
      * @return a {@link WavefrontInternalReporter}
      */
     public WavefrontInternalReporter build(WavefrontSender wavefrontSender) {
-      return new WavefrontInternalReporter(new MetricRegistry(), wavefrontSender,
-          prefix, source, reporterPointTags, histogramGranularities, includeJvmMetrics);
+      MetricFilter filter = includes.isEmpty() && excludes.isEmpty() ? MetricFilter.ALL :
+          new CompiledMetricFilter(includes, excludes);
+      return new WavefrontInternalReporter(new MetricRegistry(),
+          attachedRegistries.isEmpty() ? Collections.emptyList() :
+              new ArrayList<>(attachedRegistries), filter, wavefrontSender,
+          prefix, source, reporterPointTags, histogramGranularities,
+          includeJvmMetrics ? new JvmMetricsCollector(jvmThreadStates) : null,
+          includeJfrMetrics, compactHistogramCompression,
+          circuitFailureThreshold == 0 ? null : new SenderCircuitBreaker(circuitFailureThreshold,
+              circuitInitialBackoff.toNanos(), circuitMaxBackoff.toNanos()),
+          rollupRules.isEmpty() ? Collections.emptyList() : new ArrayList<>(rollupRules),
+          gaugeThreads == 0 ? null : new GaugeEvaluator(gaugeThreads, gaugeTimeout.toNanos()),
+          endpointAddress, endpointFormat,
+          coarseClockResolution == null ? null : CoarseClock.withResolution(coarseClockResolution),
+          new DistributionCompactor(distributionCentroidBudget, coalesceDistributions,
+              histogramGranularities),
+          meterRates.toArray(new MeterRate[0]), maxSpanOperations, checkpointFile,
+          checkpointInterval, checkpointSizeBytes, sharedRegionFile, sharedRegionSizeBytes,
+          pointsPerSecondLimit <= 0 ? null : new PointRateLimiter(pointsPerSecondLimit,
+              priorityRules.isEmpty() ? Collections.emptyList() : new ArrayList<>(priorityRules)));
     }
   }
 
   private final WavefrontSender wavefrontSender;
   private final Clock clock = Clock.defaultClock();
+  // clock of the timers and Wavefront histograms created by this reporter, null for precise
+  private final CoarseClock coarseClock;
+  // guarded by this
+  private boolean coarseClockReleased = false;
+  private final DistributionCompactor distributionCompactor;
+  // rates reported for lightweight meters
+  private final MeterRate[] meterRates;
+  private final SpanMetrics spanMetrics;
+  private final MetricsCheckpoint checkpoint;
+  private final Duration checkpointInterval;
+  // metrics written by other processes, null if not reported
+  private final SharedMetricRegion sharedRegion;
+  // limits the points sent, null for no limit
+  private final PointRateLimiter rateLimiter;
+  // distributions shed by the rate limiter from histograms that cannot merge them back
+  private final Map<WavefrontHistogram, List<WavefrontHistogramImpl.Distribution>>
+      heldDistributions = Collections.synchronizedMap(new WeakHashMap<>());
+  // Wavefront histograms of the internal registry, released once they are removed from it
+  private final Map<MetricName, WavefrontHistogram> registeredHistograms =
+      new ConcurrentHashMap<>();
+  // histograms that cannot be checkpointed, guarded by checkpoint
+  private final Set<WavefrontHistogram> uncheckpointedHistograms =
+      Collections.newSetFromMap(new WeakHashMap<>());
   private final String prefix;
   private final String source;
   private final Map<String, String> reporterPointTags;
   private final Set<HistogramGranularity> histogramGranularities;
   private final WavefrontSdkMetricsRegistry sdkMetricsRegistry;
+  private final JvmMetricsCollector jvmMetricsCollector;
+  private final JfrMetricsSource jfrMetricsSource;
+  private final MetricRollup metricRollup;
+  // the given filter when it listens to the registries, kept apart from the reporting filter
+  // that wraps it when rolling up
+  private final MetricRegistryListener filterListener;
+  private final GaugeEvaluator gaugeEvaluator;
+  private final MetricsSnapshot snapshot;
+  private final InetSocketAddress endpointAddress;
+  private volatile SnapshotEndpoint snapshotEndpoint;
+  private final MetricRollup.Sink rollupSink = new RollupSink();
+  // points handed to the sender, read while the final report sends
+  private final AtomicLong pointsSent = new AtomicLong();
+  private final SenderCircuitBreaker circuitBreaker;
+  // sender failure count seen at the end of the previous reporting cycle
+  private int lastSenderFailureCount;
+  private final int compactHistogramCompression;
+  private volatile SlabDistributionStore compactHistogramStore;
 
   private final WavefrontSdkCounter gaugesReported;
   private final WavefrontSdkCounter deltaCountersReported;
@@ -193,19 +674,102 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
   private final WavefrontSdkCounter metersReported;
   private final WavefrontSdkCounter timersReported;
   private final WavefrontSdkCounter reportErrors;
+  private final WavefrontSdkCounter reportsSkipped;
+  private final WavefrontSdkCounter gaugesSlow;
+  // points shed by the rate limiter, by priority
+  private final WavefrontSdkCounter[] pointsShed;
 
   private WavefrontInternalReporter(MetricRegistry registry,
+                                    List<MetricRegistry> attachedRegistries,
+                                    MetricFilter filter,
                                     WavefrontSender wavefrontSender,
                                     String prefix,
                                     String source,
                                     Map<String, String> reporterPointTags,
                                     Set<HistogramGranularity> histogramGranularities,
-                                    boolean includeJvmMetrics) {
+                                    JvmMetricsCollector jvmMetricsCollector,
+                                    boolean includeJfrMetrics,
+                                    int compactHistogramCompression,
+                                    SenderCircuitBreaker circuitBreaker,
+                                    List<MetricRollup.Rule> rollupRules,
+                                    GaugeEvaluator gaugeEvaluator,
+                                    InetSocketAddress endpointAddress,
+                                    SnapshotFormat endpointFormat,
+                                    CoarseClock coarseClock,
+                                    DistributionCompactor distributionCompactor,
+                                    MeterRate[] meterRates,
+                                    int maxSpanOperations,
+                                    Path checkpointFile,
+                                    Duration checkpointInterval,
+                                    int checkpointSizeBytes,
+                                    Path sharedRegionFile,
+                                    int sharedRegionSizeBytes,
+                                    PointRateLimiter rateLimiter) {
     internalRegistry = registry;
-    scheduledReporter = new ScheduledReporter(registry, "wavefront-reporter", MetricFilter.ALL,
-        TimeUnit.SECONDS, TimeUnit.MILLISECONDS, Executors.newSingleThreadScheduledExecutor(),
+    if (attachedRegistries.isEmpty()) {
+      registries = Collections.singletonList(registry);
+    } else {
+      registries = new ArrayList<>(attachedRegistries.size() + 1);
+      registries.add(registry);
+      registries.addAll(attachedRegistries);
+    }
+    if (filter instanceof MetricRegistryListener) {
+      // evaluate the filter once per metric as it gets registered
+      filterListener = (MetricRegistryListener) filter;
+      addListener(filterListener);
+    } else {
+      filterListener = null;
+    }
+    if (!rollupRules.isEmpty()) {
+      MetricRollup rollup = new MetricRollup(rollupRules, filter);
+      addListener(rollup);
+      MetricFilter memberFilter = filter;
+      // rolled up metrics are only reported through their slots
+      filter = (name, metric) -> !rollup.isRolledUp(metric) && memberFilter.matches(name, metric);
+      metricRollup = rollup;
+    } else {
+      metricRollup = null;
+    }
+    internalRegistry.addListener(new MetricRegistryListener.Base() {
+      @Override
+      public void onHistogramAdded(MetricName name, Histogram histogram) {
+        if (histogram instanceof WavefrontHistogram) {
+          registeredHistograms.put(name, (WavefrontHistogram) histogram);
+        }
+      }
+
+      @Override
+      public void onHistogramRemoved(MetricName name) {
+        WavefrontHistogram histogram = registeredHistograms.remove(name);
+        if (histogram != null) {
+          // free what it holds as it is no longer reported, e.g. the slots of a compact one
+          heldDistributions.remove(histogram);
+          histogram.release();
+        }
+      }
+    });
+    this.filter = filter;
+    reportingExecutor = Executors.newSingleThreadScheduledExecutor();
+    scheduledReporter = new ScheduledReporter(registry, "wavefront-reporter", filter,
+        TimeUnit.SECONDS, TimeUnit.MILLISECONDS, reportingExecutor,
         true, Collections.emptySet()) {
 
+      /**
+       * Report the metrics of all registries.
+       */
+      @Override
+      public void report() {
+        MetricFilter reported = WavefrontInternalReporter.this.filter;
+        synchronized (this) {
+          if (spanMetrics != null) {
+            spanMetrics.drain();
+          }
+          report(metricsOf(r -> r.getGauges(reported)), metricsOf(r -> r.getCounters(reported)),
+              metricsOf(r -> r.getHistograms(reported)), metricsOf(r -> r.getMeters(reported)),
+              metricsOf(r -> r.getTimers(reported)));
+        }
+      }
+
       /**
        * Called periodically by the polling thread. Subclasses should report all the given metrics.
        *
@@ -222,11 +786,45 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
                          SortedMap<MetricName, Histogram> histograms,
                          SortedMap<MetricName, Meter> meters,
                          SortedMap<MetricName, Timer> timers) {
+        if (circuitBreaker != null && circuitBreaker.isOpen() && !probe()) {
+          reportsSkipped.inc();
+          return;
+        }
+        boolean failed = false;
+        if (snapshot != null) {
+          snapshot.startCycle();
+        }
+        if (rateLimiter != null) {
+          rateLimiter.startCycle();
+        }
         try {
-          for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
-            if (entry.getValue().getValue() instanceof Number) {
-              reportGauge(entry.getKey(), entry.getValue());
-              gaugesReported.inc();
+          if (checkpoint != null) {
+            // data restored from a previous process goes first
+            sendRestoredDeltas();
+            sendRestoredDistributions();
+          }
+
+          if (jvmMetricsCollector != null) {
+            // sample all JVM MXBeans once for every JVM gauge reported in this cycle
+            jvmMetricsCollector.sample();
+          }
+
+          if (gaugeEvaluator != null) {
+            // evaluate gauges while everything else is reported
+            gaugeEvaluator.startCycle();
+            for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
+              if (!(entry.getValue() instanceof DistinctCounter)) {
+                gaugeEvaluator.submit(entry.getKey(), entry.getValue());
+              }
+            }
+            if (metricRollup != null) {
+              for (MetricRollup.Slot slot : metricRollup.slots()) {
+                if (slot.kind == MetricRollup.Kind.GAUGE) {
+                  for (Metric member : slot.members) {
+                    gaugeEvaluator.submit(slot.metricName, (Gauge<?>) member);
+                  }
+                }
+              }
             }
           }
 
@@ -257,10 +855,44 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
             reportTimer(entry.getKey(), entry.getValue());
             timersReported.inc();
           }
+
+          if (gaugeEvaluator != null) {
+            gaugesSlow.inc(gaugeEvaluator.awaitCycle());
+          }
+          for (Map.Entry<MetricName, Gauge> entry : gauges.entrySet()) {
+            if (reportGauge(entry.getKey(), entry.getValue())) {
+              gaugesReported.inc();
+            }
+          }
+
+          if (metricRollup != null) {
+            for (MetricRollup.Slot slot : metricRollup.slots()) {
+              slot.report(rollupSink, false);
+            }
+          }
+
+          if (sharedRegion != null) {
+            sharedRegion.report(rollupSink);
+          }
         } catch (IOException e) {
+          failed = true;
           reportErrors.inc();
           logger.log(Level.WARNING, "Unable to report to Wavefront", e);
         }
+        if (snapshot != null) {
+          // a partially sent cycle keeps the previous snapshot
+          snapshot.endCycle(!failed);
+        }
+        if (rateLimiter != null) {
+          endRateLimitedCycle();
+        }
+        if (circuitBreaker != null) {
+          onCycleCompleted(failed);
+        }
+        if (checkpoint != null) {
+          // clear the counts that were just sent from the checkpoint
+          checkpoint();
+        }
       }
     };
 
@@ -269,19 +901,54 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
     this.source = source;
     this.reporterPointTags = reporterPointTags;
     this.histogramGranularities = histogramGranularities;
+    this.compactHistogramCompression = compactHistogramCompression;
+    this.jvmMetricsCollector = jvmMetricsCollector;
+    this.circuitBreaker = circuitBreaker;
+    this.gaugeEvaluator = gaugeEvaluator;
+    this.endpointAddress = endpointAddress;
+    this.coarseClock = coarseClock;
+    this.distributionCompactor = distributionCompactor.isEnabled() ? distributionCompactor : null;
+    this.meterRates = meterRates;
+    spanMetrics = maxSpanOperations > 0 ?
+        new SpanMetrics(this, histogramClock(), maxSpanOperations) : null;
+    MetricsCheckpoint openedCheckpoint = null;
+    if (checkpointFile != null) {
+      try {
+        openedCheckpoint = new MetricsCheckpoint(checkpointFile, checkpointSizeBytes);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to open metrics checkpoint " + checkpointFile, e);
+      }
+    }
+    this.checkpoint = openedCheckpoint;
+    SharedMetricRegion openedRegion = null;
+    if (sharedRegionFile != null) {
+      try {
+        openedRegion = new SharedMetricRegion(sharedRegionFile, sharedRegionSizeBytes);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to open shared metric region " + sharedRegionFile, e);
+      }
+    }
+    this.sharedRegion = openedRegion;
+    this.checkpointInterval = checkpointInterval;
+    this.rateLimiter = rateLimiter;
+    this.snapshot = endpointAddress == null ? null : new MetricsSnapshot(endpointFormat, source);
+    this.lastSenderFailureCount = wavefrontSender.getFailureCount();
 
-    if (includeJvmMetrics) {
-      tryRegister(registry, "jvm.uptime",
-          (Gauge<Long>) () -> ManagementFactory.getRuntimeMXBean().getUptime());
-      tryRegister(registry, "jvm.current_time", (Gauge<Long>) clock::getTime);
-      tryRegister(registry, "jvm.classes", new ClassLoadingGaugeSet());
-      tryRegister(registry, "jvm.fd_usage", new FileDescriptorRatioGauge());
-      tryRegister(registry, "jvm.buffers",
-          new BufferPoolMetricSet(ManagementFactory.getPlatformMBeanServer()));
-      tryRegister(registry, "jvm.gc", new GarbageCollectorMetricSet());
-      tryRegister(registry, "jvm.memory", new MemoryUsageGaugeSet());
-      tryRegister(registry, "jvm.thread-states", new ThreadStatesGaugeSet());
+    if (jvmMetricsCollector != null) {
+      Map<MetricName, Metric> jvmMetrics = new HashMap<>();
+      collect(jvmMetrics, MetricName.build("jvm.uptime"), jvmMetricsCollector.uptime());
+      collect(jvmMetrics, MetricName.build("jvm.current_time"), (Gauge<Long>) clock::getTime);
+      collect(jvmMetrics, MetricName.build("jvm.classes"), jvmMetricsCollector.classLoading());
+      collect(jvmMetrics, MetricName.build("jvm.fd_usage"),
+          jvmMetricsCollector.fileDescriptorUsage());
+      collect(jvmMetrics, MetricName.build("jvm.buffers"), jvmMetricsCollector.bufferPools());
+      collect(jvmMetrics, MetricName.build("jvm.gc"), jvmMetricsCollector.garbageCollectors());
+      collect(jvmMetrics, MetricName.build("jvm.memory"), jvmMetricsCollector.memory());
+      collect(jvmMetrics, MetricName.build("jvm.thread-states"),
+          jvmMetricsCollector.threadStates());
+      registerJvmMetrics(jvmMetrics);
     }
+    jfrMetricsSource = includeJfrMetrics ? new JfrMetricsSource(this) : null;
 
     sdkMetricsRegistry = new WavefrontSdkMetricsRegistry.Builder(this.wavefrontSender).
             prefix(Constants.SDK_METRIC_PREFIX + ".internal_reporter").
@@ -297,15 +964,138 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
     metersReported = sdkMetricsRegistry.newCounter("meters.reported");
     timersReported = sdkMetricsRegistry.newCounter("timers.reported");
     reportErrors = sdkMetricsRegistry.newCounter("errors");
+    reportsSkipped = sdkMetricsRegistry.newCounter("reports.skipped");
+    gaugesSlow = sdkMetricsRegistry.newCounter("gauges.slow");
+    if (rateLimiter != null) {
+      PointPriority[] priorities = PointPriority.values();
+      pointsShed = new WavefrontSdkCounter[priorities.length];
+      for (PointPriority priority : priorities) {
+        pointsShed[priority.ordinal()] = sdkMetricsRegistry.newCounter("points.shed." +
+            priority.name().toLowerCase());
+      }
+    } else {
+      pointsShed = null;
+    }
+    if (circuitBreaker != null) {
+      sdkMetricsRegistry.newGauge("circuit.open", () -> circuitBreaker.isOpen() ? 1 : 0);
+      sdkMetricsRegistry.newGauge("circuit.opened", circuitBreaker::getTimesOpened);
+    }
+  }
+
+  private void endRateLimitedCycle() {
+    for (PointPriority priority : PointPriority.values()) {
+      pointsShed[priority.ordinal()].inc(rateLimiter.shed(priority));
+    }
+    rateLimiter.endCycle();
   }
 
-  private <T extends Metric> void tryRegister(MetricRegistry registry, String name, T metric) {
-    // Dropwizard services automatically include JVM metrics,
-    // so adding them again would throw an exception
+  /**
+   * Send a single point to find out whether the sender has recovered, once the backoff of the
+   * open circuit has elapsed.
+   *
+   * @return whether the circuit is closed and reporting can resume
+   */
+  private boolean probe() {
+    long now = System.nanoTime();
+    if (!circuitBreaker.shouldProbe(now)) {
+      return false;
+    }
+    boolean failed = false;
     try {
-      registry.register(name, metric);
-    } catch (IllegalArgumentException e) {
-      logger.log(Level.INFO, e.getMessage());
+      wavefrontSender.sendMetric(Constants.SDK_METRIC_PREFIX + ".internal_reporter.circuit.probe",
+          1, clock.getTime() / 1000, source, reporterPointTags);
+      wavefrontSender.flush();
+    } catch (IOException e) {
+      failed = true;
+    }
+    int failureCount = wavefrontSender.getFailureCount();
+    failed |= failureCount != lastSenderFailureCount;
+    lastSenderFailureCount = failureCount;
+    if (failed) {
+      circuitBreaker.onFailure(now);
+      return false;
+    }
+    circuitBreaker.onSuccess();
+    logger.log(Level.INFO, "Wavefront sender recovered, resuming reporting");
+    return true;
+  }
+
+  private void onCycleCompleted(boolean failed) {
+    // buffering senders fail asynchronously, so also count failures since the previous cycle
+    int failureCount = wavefrontSender.getFailureCount();
+    failed |= failureCount != lastSenderFailureCount;
+    lastSenderFailureCount = failureCount;
+    if (!failed) {
+      circuitBreaker.onSuccess();
+    } else if (circuitBreaker.onFailure(System.nanoTime())) {
+      logger.log(Level.WARNING, "Wavefront sender keeps failing, suspending reporting");
+    }
+  }
+
+  private void addListener(MetricRegistryListener listener) {
+    for (MetricRegistry registry : registries) {
+      registry.addListener(listener);
+    }
+  }
+
+  private void removeListeners() {
+    // application registries outlive the reporter
+    for (MetricRegistry registry : registries) {
+      if (registry != internalRegistry) {
+        if (filterListener != null) {
+          registry.removeListener(filterListener);
+        }
+        if (metricRollup != null) {
+          registry.removeListener(metricRollup);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the metrics of all reported registries, the first registry winning on duplicate
+   * names.
+   */
+  private <T extends Metric> SortedMap<MetricName, T> metricsOf(
+      Function<MetricRegistry, SortedMap<MetricName, T>> metrics) {
+    if (registries.size() == 1) {
+      return metrics.apply(internalRegistry);
+    }
+    SortedMap<MetricName, T> merged = new TreeMap<>(metrics.apply(internalRegistry));
+    for (int i = 1; i < registries.size(); i++) {
+      metrics.apply(registries.get(i)).forEach(merged::putIfAbsent);
+    }
+    return merged;
+  }
+
+  private static void collect(Map<MetricName, Metric> metrics, MetricName name, Metric metric) {
+    if (metric instanceof MetricSet) {
+      for (Map.Entry<MetricName, Metric> entry : ((MetricSet) metric).getMetrics().entrySet()) {
+        collect(metrics, name.append(entry.getKey()), entry.getValue());
+      }
+    } else {
+      metrics.put(name, metric);
+    }
+  }
+
+  private void registerJvmMetrics(Map<MetricName, Metric> jvmMetrics) {
+    // Dropwizard services automatically include JVM metrics, so only register the ones that none
+    // of the reported registries already has
+    Set<MetricName> existing = new HashSet<>();
+    for (MetricRegistry registry : registries) {
+      existing.addAll(registry.getNames());
+    }
+    int skipped = 0;
+    for (Map.Entry<MetricName, Metric> entry : jvmMetrics.entrySet()) {
+      if (existing.contains(entry.getKey())) {
+        skipped++;
+      } else {
+        internalRegistry.register(entry.getKey(), entry.getValue());
+      }
+    }
+    if (skipped > 0) {
+      logger.log(Level.INFO, skipped + " JVM metrics are already registered and are reported " +
+          "from their existing registration");
     }
   }
 
@@ -337,6 +1127,10 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
   }
 
   private void reportMetered(MetricName metricName, Metered meter) throws IOException {
+    if (meter instanceof LightweightMeter) {
+      reportLightweightMeter(metricName, (LightweightMeter) meter);
+      return;
+    }
     final long time = clock.getTime() / 1000;
     sendIfEnabled(MetricAttribute.COUNT, metricName, meter.getCount(), time);
     sendIfEnabled(MetricAttribute.M1_RATE, metricName,
@@ -349,14 +1143,44 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
         scheduledReporter.convertRate(meter.getMeanRate()), time);
   }
 
+  private void reportLightweightMeter(MetricName metricName, LightweightMeter meter)
+      throws IOException {
+    meter.tick();
+    final long time = clock.getTime() / 1000;
+    sendIfEnabled(MetricAttribute.COUNT, metricName, meter.getCount(), time);
+    for (MeterRate rate : meterRates) {
+      double value;
+      switch (rate) {
+        case INTERVAL:
+          value = meter.getIntervalRate();
+          break;
+        case M1:
+          value = meter.getOneMinuteRate();
+          break;
+        case M5:
+          value = meter.getFiveMinuteRate();
+          break;
+        case M15:
+          value = meter.getFifteenMinuteRate();
+          break;
+        case MEAN:
+        default:
+          value = meter.getMeanRate();
+      }
+      if (rate.attribute != null) {
+        sendIfEnabled(rate.attribute, metricName, scheduledReporter.convertRate(value), time);
+      } else if (admit(metricName, PointPriority.ATTRIBUTES)) {
+        sendMetric(prefixAndSanitize(metricName.getKey(), rate.code),
+            scheduledReporter.convertRate(value), time, getMetricTags(metricName));
+      }
+    }
+  }
+
   private void reportHistogram(MetricName metricName, Histogram histogram) throws IOException {
     if (histogram instanceof WavefrontHistogram) {
-      String histogramName = prefixAndSanitize(metricName.getKey());
-      for (WavefrontHistogramImpl.Distribution distribution :
-          ((WavefrontHistogram) histogram).flushDistributions()) {
-        wavefrontSender.sendDistribution(histogramName, distribution.centroids,
-            histogramGranularities, distribution.timestamp, source, getMetricTags(metricName));
-      }
+      WavefrontHistogram wavefrontHistogram = (WavefrontHistogram) histogram;
+      mergeShed(wavefrontHistogram, sendDistributions(metricName,
+          withHeld(wavefrontHistogram, wavefrontHistogram.flushDistributions())));
     } else {
       final Snapshot snapshot = histogram.getSnapshot();
       final long time = clock.getTime() / 1000;
@@ -374,30 +1198,329 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
     }
   }
 
+  /**
+   * Merge the distributions shed by the rate limiter back into their histogram, so that they are
+   * sent by the next cycle. The distributions of histograms that cannot merge them, e.g. with a
+   * custom recorder, are held by the reporter until the next cycle instead.
+   */
+  private void mergeShed(WavefrontHistogram histogram,
+                         List<WavefrontHistogramImpl.Distribution> shed) {
+    if (shed.isEmpty()) {
+      return;
+    }
+    if (histogram.supportsMerge()) {
+      histogram.merge(shed);
+    } else {
+      heldDistributions.merge(histogram, shed, (held, more) -> {
+        List<WavefrontHistogramImpl.Distribution> merged = new ArrayList<>(held);
+        merged.addAll(more);
+        return merged;
+      });
+    }
+  }
+
+  /**
+   * Returns the distributions held for the histogram since a previous cycle, followed by the
+   * given ones just flushed from it.
+   */
+  private List<WavefrontHistogramImpl.Distribution> withHeld(
+      WavefrontHistogram histogram, List<WavefrontHistogramImpl.Distribution> flushed) {
+    List<WavefrontHistogramImpl.Distribution> held = heldDistributions.remove(histogram);
+    if (held == null) {
+      return flushed;
+    }
+    List<WavefrontHistogramImpl.Distribution> distributions = new ArrayList<>(held);
+    distributions.addAll(flushed);
+    return distributions;
+  }
+
+  /**
+   * @return the distributions shed by the rate limiter, if any
+   */
+  private List<WavefrontHistogramImpl.Distribution> sendDistributions(
+      MetricName metricName, List<WavefrontHistogramImpl.Distribution> distributions)
+      throws IOException {
+    if (distributions.isEmpty()) {
+      return Collections.emptyList();
+    }
+    if (distributionCompactor != null) {
+      distributions = distributionCompactor.compact(distributions);
+    }
+    String histogramName = prefixAndSanitize(metricName.getKey());
+    Map<String, String> tags = getMetricTags(metricName);
+    PointPriority priority = rateLimiter == null ? null :
+        rateLimiter.priorityOf(metricName, PointPriority.DELTAS_AND_DISTRIBUTIONS);
+    List<WavefrontHistogramImpl.Distribution> shed = Collections.emptyList();
+    for (WavefrontHistogramImpl.Distribution distribution : distributions) {
+      // one point per granularity
+      if (priority != null &&
+          !rateLimiter.tryAcquire(priority, Math.max(1, histogramGranularities.size()))) {
+        if (shed.isEmpty()) {
+          shed = new ArrayList<>();
+        }
+        shed.add(distribution);
+        continue;
+      }
+      wavefrontSender.sendDistribution(histogramName, distribution.centroids,
+          histogramGranularities, distribution.timestamp, source, tags);
+      pointsSent.addAndGet(Math.max(1, histogramGranularities.size()));
+      if (snapshot != null) {
+        snapshot.distribution(histogramName, distribution, histogramGranularities, tags);
+      }
+    }
+    return shed;
+  }
+
   private void reportCounter(MetricName metricName, Counter counter) throws IOException {
-    if (counter instanceof DeltaCounter) {
+    if (counter instanceof HeavyHitters) {
+      reportHeavyHitters(metricName, (HeavyHitters) counter);
+    } else if (counter instanceof DeltaCounter) {
       long count = counter.getCount();
-      String name = Constants.DELTA_PREFIX +
-          prefixAndSanitize(metricName.getKey().substring(1), "count");
-      wavefrontSender.sendDeltaCounter(name, count, source, getMetricTags(metricName));
-      counter.dec(count);
+      if (sendDeltaCounter(metricName, count)) {
+        counter.dec(count);
+      }
     } else {
-      wavefrontSender.sendMetric(prefixAndSanitize(metricName.getKey(), "count"),
-          counter.getCount(), clock.getTime() / 1000, source, getMetricTags(metricName));
+      sendCounter(metricName, counter.getCount());
+    }
+  }
+
+  /**
+   * Send the top keys and the remaining events as {@code other}. Counts that are not sent, e.g.
+   * shed by the rate limiter, stay in the counter and are reported as {@code other} by the next
+   * cycle.
+   */
+  private void reportHeavyHitters(MetricName metricName, HeavyHitters heavyHitters)
+      throws IOException {
+    // read the count first: keys of events added after it are dropped with the sketch, their
+    // events stay in the counter and are reported as other by the next cycle
+    long other = heavyHitters.getCount();
+    Map<String, Long> top = heavyHitters.flushTop();
+    long sent = 0;
+    for (Map.Entry<String, Long> entry : top.entrySet()) {
+      long count = Math.min(entry.getValue(), other);
+      if (count <= 0) {
+        break;
+      }
+      other -= count;
+      if (sendDeltaCounter(heavyHitters.keyed(metricName, entry.getKey()), count)) {
+        sent += count;
+      }
+    }
+    if (other > 0 &&
+        sendDeltaCounter(heavyHitters.keyed(metricName, HeavyHitters.OTHER), other)) {
+      sent += other;
+    }
+    heavyHitters.dec(sent);
+  }
+
+  private void sendRestoredDeltas() throws IOException {
+    Iterator<Map.Entry<MetricName, Long>> restored =
+        checkpoint.restoredDeltas().entrySet().iterator();
+    while (restored.hasNext()) {
+      Map.Entry<MetricName, Long> entry = restored.next();
+      if (sendDeltaCounter(entry.getKey(), entry.getValue())) {
+        restored.remove();
+      }
     }
   }
 
-  private void reportGauge(MetricName metricName, Gauge<Number> gauge) throws IOException {
-    wavefrontSender.sendMetric(prefixAndSanitize(metricName.getKey()),
-        gauge.getValue().doubleValue(), clock.getTime() / 1000,
-        source, getMetricTags(metricName));
+  private void sendRestoredDistributions() throws IOException {
+    Iterator<Map.Entry<MetricName, List<WavefrontHistogramImpl.Distribution>>> restored =
+        checkpoint.restoredDistributions().entrySet().iterator();
+    while (restored.hasNext()) {
+      Map.Entry<MetricName, List<WavefrontHistogramImpl.Distribution>> entry = restored.next();
+      List<WavefrontHistogramImpl.Distribution> shed =
+          sendDistributions(entry.getKey(), entry.getValue());
+      if (shed.isEmpty()) {
+        restored.remove();
+      } else {
+        entry.setValue(shed);
+      }
+    }
+  }
+
+  /**
+   * Write the pending counts of delta counters and the unflushed distributions of Wavefront
+   * histograms to the checkpoint.
+   */
+  private void checkpoint() {
+    synchronized (checkpoint) {
+      try {
+        Map<MetricName, Long> deltas = new HashMap<>();
+        Map<MetricName, List<WavefrontHistogramImpl.Distribution>> distributions =
+            new HashMap<>();
+        for (Map.Entry<MetricName, Counter> entry :
+            metricsOf(r -> r.getCounters(filter)).entrySet()) {
+          Counter counter = entry.getValue();
+          if (counter instanceof HeavyHitters && counter.getCount() != 0) {
+            // keys are not checkpointed, their events are restored as other
+            deltas.put(((HeavyHitters) counter).keyed(entry.getKey(), HeavyHitters.OTHER),
+                counter.getCount());
+          } else if (counter instanceof DeltaCounter && counter.getCount() != 0) {
+            deltas.put(entry.getKey(), counter.getCount());
+          }
+        }
+        for (Map.Entry<MetricName, Histogram> entry :
+            metricsOf(r -> r.getHistograms(filter)).entrySet()) {
+          if (entry.getValue() instanceof WavefrontHistogram) {
+            checkpointHistogram(distributions, entry.getKey(),
+                (WavefrontHistogram) entry.getValue());
+          }
+        }
+        if (metricRollup != null) {
+          for (MetricRollup.Slot slot : metricRollup.slots()) {
+            for (Metric member : slot.members) {
+              if (slot.kind == MetricRollup.Kind.DELTA_COUNTER) {
+                deltas.merge(slot.metricName, ((Counter) member).getCount(), Long::sum);
+              } else if (slot.kind == MetricRollup.Kind.WAVEFRONT_HISTOGRAM) {
+                checkpointHistogram(distributions, slot.metricName, (WavefrontHistogram) member);
+              }
+            }
+          }
+        }
+        checkpoint.update(deltas, distributions);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to checkpoint metrics", e);
+      }
+    }
+  }
+
+  private void checkpointHistogram(
+      Map<MetricName, List<WavefrontHistogramImpl.Distribution>> distributions,
+      MetricName metricName, WavefrontHistogram histogram) {
+    if (uncheckpointedHistograms.contains(histogram)) {
+      return;
+    }
+    if (!histogram.supportsPeek()) {
+      if (uncheckpointedHistograms.isEmpty()) {
+        logger.log(Level.INFO, "Wavefront histograms with recorders that cannot peek at their " +
+            "distributions, e.g. " + metricName.getKey() + ", are not checkpointed");
+      }
+      uncheckpointedHistograms.add(histogram);
+      return;
+    }
+    List<WavefrontHistogramImpl.Distribution> pending = histogram.peekDistributions();
+    if (!pending.isEmpty()) {
+      distributions.computeIfAbsent(metricName, key -> new ArrayList<>()).addAll(pending);
+    }
+  }
+
+  /**
+   * @return whether the count was sent, {@code false} if the rate limiter shed it
+   */
+  private boolean sendDeltaCounter(MetricName metricName, long count) throws IOException {
+    if (!admit(metricName, PointPriority.DELTAS_AND_DISTRIBUTIONS)) {
+      return false;
+    }
+    String name = Constants.DELTA_PREFIX +
+        prefixAndSanitize(metricName.getKey().substring(1), "count");
+    Map<String, String> tags = getMetricTags(metricName);
+    wavefrontSender.sendDeltaCounter(name, count, source, tags);
+    pointsSent.incrementAndGet();
+    if (snapshot != null) {
+      snapshot.deltaCounter(name, count, tags);
+    }
+    return true;
+  }
+
+  private void sendCounter(MetricName metricName, long count) throws IOException {
+    if (admit(metricName, PointPriority.COUNTERS)) {
+      sendMetric(prefixAndSanitize(metricName.getKey(), "count"), count, clock.getTime() / 1000,
+          getMetricTags(metricName));
+    }
+  }
+
+  /**
+   * @return whether the gauge had a numeric value to report
+   */
+  private boolean reportGauge(MetricName metricName, Gauge<?> gauge) throws IOException {
+    if (gauge instanceof DistinctCounter) {
+      // every point counts the distinct values of one cycle
+      sendGauge(metricName, ((DistinctCounter) gauge).flush());
+      return true;
+    }
+    Object value = gaugeValue(gauge);
+    if (value instanceof Number) {
+      sendGauge(metricName, ((Number) value).doubleValue());
+      return true;
+    }
+    return false;
+  }
+
+  private Object gaugeValue(Gauge<?> gauge) {
+    // concurrently evaluated gauges report the value of their last completed evaluation
+    return gaugeEvaluator == null ? gauge.getValue() : gaugeEvaluator.valueOf(gauge);
+  }
+
+  private void sendGauge(MetricName metricName, double value) throws IOException {
+    if (admit(metricName, PointPriority.GAUGES)) {
+      sendMetric(prefixAndSanitize(metricName.getKey()), value, clock.getTime() / 1000,
+          getMetricTags(metricName));
+    }
+  }
+
+  /**
+   * Sends the series aggregated by roll-up slots.
+   */
+  private class RollupSink implements MetricRollup.Sink {
+    @Override
+    public void counter(MetricName metricName, long count) throws IOException {
+      sendCounter(metricName, count);
+      countersReported.inc();
+    }
+
+    @Override
+    public boolean deltaCounter(MetricName metricName, long count) throws IOException {
+      boolean sent = sendDeltaCounter(metricName, count);
+      deltaCountersReported.inc();
+      return sent;
+    }
+
+    @Override
+    public void gauge(MetricName metricName, double value) throws IOException {
+      sendGauge(metricName, value);
+      gaugesReported.inc();
+    }
+
+    @Override
+    public Object gaugeValue(Gauge<?> gauge) {
+      return WavefrontInternalReporter.this.gaugeValue(gauge);
+    }
+
+    @Override
+    public List<WavefrontHistogramImpl.Distribution> distributions(
+        MetricName metricName, List<WavefrontHistogramImpl.Distribution> distributions)
+        throws IOException {
+      List<WavefrontHistogramImpl.Distribution> shed =
+          sendDistributions(metricName, distributions);
+      wfHistogramsReported.inc();
+      return shed;
+    }
   }
 
   private void sendIfEnabled(MetricAttribute type, MetricName metricName, double value,
                              long timestamp) throws IOException {
-    if (!scheduledReporter.getDisabledMetricAttributes().contains(type)) {
-      wavefrontSender.sendMetric(prefixAndSanitize(metricName.getKey(), type.getCode()), value,
-          timestamp, source, getMetricTags(metricName));
+    if (!scheduledReporter.getDisabledMetricAttributes().contains(type) &&
+        admit(metricName, PointPriority.ATTRIBUTES)) {
+      sendMetric(prefixAndSanitize(metricName.getKey(), type.getCode()), value, timestamp,
+          getMetricTags(metricName));
+    }
+  }
+
+  /**
+   * @return whether a point of the metric may be sent under the points per second limit
+   */
+  private boolean admit(MetricName metricName, PointPriority defaultPriority) {
+    return rateLimiter == null ||
+        rateLimiter.tryAcquire(rateLimiter.priorityOf(metricName, defaultPriority));
+  }
+
+  private void sendMetric(String name, double value, long timestamp, Map<String, String> tags)
+      throws IOException {
+    wavefrontSender.sendMetric(name, value, timestamp, source, tags);
+    pointsSent.incrementAndGet();
+    if (snapshot != null) {
+      snapshot.metric(name, value, timestamp, tags);
     }
   }
 
@@ -431,12 +1554,328 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
 
   @Override
   public void start(long period, TimeUnit unit) {
+    if (jfrMetricsSource != null && !jfrMetricsSource.start()) {
+      logger.log(Level.INFO, "JFR metrics require Java 14 or later with JFR available, " +
+          "reporting JVM metrics only");
+    }
+    if (endpointAddress != null && snapshotEndpoint == null) {
+      try {
+        snapshotEndpoint = new SnapshotEndpoint(endpointAddress, snapshot);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to serve metrics snapshot on " + endpointAddress, e);
+      }
+    }
+    if (rateLimiter != null) {
+      rateLimiter.setPeriod(unit.toNanos(period));
+    }
     scheduledReporter.start(period, unit);
+    if (checkpoint != null) {
+      long intervalNanos = checkpointInterval.toNanos();
+      reportingExecutor.scheduleWithFixedDelay(this::checkpoint, intervalNanos, intervalNanos,
+          TimeUnit.NANOSECONDS);
+    }
   }
 
   @Override
   public void stop() {
+    if (jfrMetricsSource != null) {
+      jfrMetricsSource.close();
+    }
     scheduledReporter.stop();
+    if (gaugeEvaluator != null) {
+      gaugeEvaluator.close();
+    }
+    closeSnapshotEndpoint();
+    closeCheckpoint();
+    closeSharedRegion();
+    releaseCoarseClock();
+    removeListeners();
+  }
+
+  private void closeCheckpoint() {
+    if (checkpoint != null) {
+      checkpoint();
+      try {
+        checkpoint.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to close metrics checkpoint", e);
+      }
+    }
+  }
+
+  private void closeSharedRegion() {
+    if (sharedRegion != null) {
+      try {
+        sharedRegion.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to close shared metric region", e);
+      }
+    }
+  }
+
+  private synchronized void releaseCoarseClock() {
+    if (coarseClock != null && !coarseClockReleased) {
+      coarseClockReleased = true;
+      coarseClock.release();
+    }
+  }
+
+  private void closeSnapshotEndpoint() {
+    if (snapshotEndpoint != null) {
+      snapshotEndpoint.close();
+      snapshotEndpoint = null;
+    }
+  }
+
+  @Override
+  public int stop(Duration deadline) {
+    long deadlineNanos = System.nanoTime() + deadline.toNanos();
+    if (jfrMetricsSource != null) {
+      jfrMetricsSource.close();
+    }
+    // cancel scheduled reports and let a report in progress finish before the final one
+    reportingExecutor.shutdown();
+    try {
+      if (!reportingExecutor.awaitTermination(remainingNanos(deadlineNanos),
+          TimeUnit.NANOSECONDS)) {
+        reportingExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      reportingExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+
+    if (spanMetrics != null) {
+      spanMetrics.drain();
+    }
+    FinalFlush finalFlush = new FinalFlush(deadlineNanos);
+    // sending may block on a slow proxy, so never wait for it past the deadline
+    Thread flushThread = new Thread(finalFlush, "wavefront-reporter-final-flush");
+    flushThread.setDaemon(true);
+    flushThread.start();
+    try {
+      flushThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos(deadlineNanos))));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // stop the final report before tearing down what it sends from
+    int abandoned = finalFlush.abandon(deadline);
+    // the reporting executor is shut down already, so this only waits for it when a report is
+    // stuck past the deadline, which must not hold up the caller
+    if (reportingExecutor.isTerminated()) {
+      scheduledReporter.stop();
+    } else {
+      Thread stopThread = new Thread(scheduledReporter::stop, "wavefront-reporter-stop");
+      stopThread.setDaemon(true);
+      stopThread.start();
+    }
+    if (gaugeEvaluator != null) {
+      gaugeEvaluator.close();
+    }
+    closeSnapshotEndpoint();
+    releaseCoarseClock();
+    removeListeners();
+    return abandoned;
+  }
+
+  /**
+   * Close the resources the final report sends from, once it no longer uses them.
+   */
+  private void closeFlushedResources() {
+    // keeps whatever the final report could not send
+    closeCheckpoint();
+    closeSharedRegion();
+  }
+
+  private static long remainingNanos(long deadlineNanos) {
+    return Math.max(0, deadlineNanos - System.nanoTime());
+  }
+
+  /**
+   * Final report sent in groups of decreasing priority: delta counters and Wavefront histograms
+   * lose data when they are not sent, other metrics only lose a single point. Each group is
+   * flushed through the sender before the next one starts. The points of a group are only
+   * counted as delivered once that flush succeeds, while each metric the report never got to is
+   * counted on its own.
+   */
+  private class FinalFlush implements Runnable {
+    private static final int DELTA_COUNTERS = 0;
+    private static final int WAVEFRONT_HISTOGRAMS = 1;
+    private static final int OTHER_METRICS = 2;
+
+    private final long deadlineNanos;
+    private final List<List<MetricSender>> groups = new ArrayList<>(3);
+    // metrics handed to the sender, by group
+    private final AtomicIntegerArray sent = new AtomicIntegerArray(3);
+    // points handed to the sender up to the last flush that succeeded
+    private volatile long pointsDelivered = pointsSent.get();
+    private volatile boolean abandoned = false;
+    // guarded by this
+    private boolean finished = false;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    FinalFlush(long deadlineNanos) {
+      this.deadlineNanos = deadlineNanos;
+      List<MetricSender> deltaCounters = new ArrayList<>();
+      List<MetricSender> wavefrontHistograms = new ArrayList<>();
+      List<MetricSender> otherMetrics = new ArrayList<>();
+      if (checkpoint != null) {
+        if (!checkpoint.restoredDeltas().isEmpty()) {
+          deltaCounters.add(WavefrontInternalReporter.this::sendRestoredDeltas);
+        }
+        if (!checkpoint.restoredDistributions().isEmpty()) {
+          wavefrontHistograms.add(WavefrontInternalReporter.this::sendRestoredDistributions);
+        }
+      }
+      for (Map.Entry<MetricName, Counter> entry :
+          metricsOf(r -> r.getCounters(filter)).entrySet()) {
+        if (entry.getValue() instanceof DeltaCounter) {
+          deltaCounters.add(() -> {
+            reportCounter(entry.getKey(), entry.getValue());
+            deltaCountersReported.inc();
+          });
+        } else {
+          otherMetrics.add(() -> {
+            reportCounter(entry.getKey(), entry.getValue());
+            countersReported.inc();
+          });
+        }
+      }
+      for (Map.Entry<MetricName, Histogram> entry :
+          metricsOf(r -> r.getHistograms(filter)).entrySet()) {
+        if (entry.getValue() instanceof WavefrontHistogram) {
+          wavefrontHistograms.add(() -> {
+            WavefrontHistogram histogram = (WavefrontHistogram) entry.getValue();
+            mergeShed(histogram, sendDistributions(entry.getKey(),
+                withHeld(histogram, histogram.flushAllDistributions())));
+            wfHistogramsReported.inc();
+          });
+        } else {
+          otherMetrics.add(() -> {
+            reportHistogram(entry.getKey(), entry.getValue());
+            histogramsReported.inc();
+          });
+        }
+      }
+      for (Map.Entry<MetricName, Gauge> entry : metricsOf(r -> r.getGauges(filter)).entrySet()) {
+        otherMetrics.add(() -> {
+          if (reportGauge(entry.getKey(), entry.getValue())) {
+            gaugesReported.inc();
+          }
+        });
+      }
+      for (Map.Entry<MetricName, Meter> entry : metricsOf(r -> r.getMeters(filter)).entrySet()) {
+        otherMetrics.add(() -> {
+          reportMetered(entry.getKey(), entry.getValue());
+          metersReported.inc();
+        });
+      }
+      for (Map.Entry<MetricName, Timer> entry : metricsOf(r -> r.getTimers(filter)).entrySet()) {
+        otherMetrics.add(() -> {
+          reportTimer(entry.getKey(), entry.getValue());
+          timersReported.inc();
+        });
+      }
+      if (metricRollup != null) {
+        for (MetricRollup.Slot slot : metricRollup.slots()) {
+          MetricSender sender = () -> slot.report(rollupSink, true);
+          if (slot.kind == MetricRollup.Kind.DELTA_COUNTER) {
+            deltaCounters.add(sender);
+          } else if (slot.kind == MetricRollup.Kind.WAVEFRONT_HISTOGRAM) {
+            wavefrontHistograms.add(sender);
+          } else {
+            otherMetrics.add(sender);
+          }
+        }
+      }
+      if (sharedRegion != null) {
+        // the rest of the region stays in the file for the next reporter
+        deltaCounters.add(() -> sharedRegion.report(rollupSink));
+      }
+      groups.add(deltaCounters);
+      groups.add(wavefrontHistograms);
+      groups.add(otherMetrics);
+    }
+
+    @Override
+    public void run() {
+      if (rateLimiter != null) {
+        rateLimiter.startCycle();
+      }
+      try {
+        for (int group = 0; group < groups.size(); group++) {
+          if (group == OTHER_METRICS && jvmMetricsCollector != null) {
+            jvmMetricsCollector.sample();
+          }
+          for (MetricSender sender : groups.get(group)) {
+            if (abandoned || System.nanoTime() - deadlineNanos > 0) {
+              return;
+            }
+            sender.send();
+            sent.incrementAndGet(group);
+          }
+          long points = pointsSent.get();
+          wavefrontSender.flush();
+          pointsDelivered = points;
+        }
+      } catch (IOException e) {
+        reportErrors.inc();
+        logger.log(Level.WARNING, "Unable to send final report to Wavefront", e);
+      } finally {
+        if (rateLimiter != null) {
+          endRateLimitedCycle();
+        }
+        boolean close;
+        synchronized (this) {
+          finished = true;
+          // abandoned while sending: the resources were left open for this thread to close
+          close = abandoned;
+        }
+        if (close) {
+          closeFlushedResources();
+        }
+      }
+    }
+
+    /**
+     * Stop sending and log what was not delivered: the metrics that were never sent, and the
+     * points that were sent but not flushed. The checkpoint and the shared region are closed now
+     * if the final report is finished, or else by the final report thread once the send in
+     * progress returns.
+     *
+     * @return the number of points that were abandoned, counting each metric that was never sent
+     * as a single point
+     */
+    int abandon(Duration deadline) {
+      boolean close;
+      synchronized (this) {
+        abandoned = true;
+        close = finished;
+      }
+      if (close) {
+        closeFlushedResources();
+      }
+      int[] unsentByGroup = new int[groups.size()];
+      long unsent = 0;
+      for (int group = 0; group < groups.size(); group++) {
+        unsentByGroup[group] = groups.get(group).size() - sent.get(group);
+        unsent += unsentByGroup[group];
+      }
+      long unflushed = pointsSent.get() - pointsDelivered;
+      if (unsent + unflushed > 0) {
+        logger.log(Level.WARNING, "Final report abandoned after " + deadline + ": " +
+            unsentByGroup[DELTA_COUNTERS] + " delta counters, " +
+            unsentByGroup[WAVEFRONT_HISTOGRAMS] + " Wavefront histograms and " +
+            unsentByGroup[OTHER_METRICS] + " other metrics were not sent, and " + unflushed +
+            " points were sent but not flushed");
+      }
+      return (int) Math.min(Integer.MAX_VALUE, unsent + unflushed);
+    }
+  }
+
+  @FunctionalInterface
+  private interface MetricSender {
+    void send() throws IOException;
   }
 
   @Override
@@ -459,25 +1898,99 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
     return internalRegistry.histogram(metricName);
   }
 
+  @Override
+  public Histogram newHistogram(MetricName metricName, IntervalHdrReservoir reservoir) {
+    return internalRegistry.histogram(metricName, () -> new Histogram(reservoir));
+  }
+
   @Override
   public Timer newTimer(MetricName metricName) {
+    if (coarseClock != null) {
+      return newTimer(metricName, coarseClock);
+    }
     return internalRegistry.timer(metricName);
   }
 
   @Override
   public Timer newTimer(MetricName metricName, SlidingTimeWindowArrayReservoir slidingTimeWindowArrayReservoir) {
-    MetricRegistry.MetricSupplier<Timer> timerMetricSupplier = () -> new Timer(slidingTimeWindowArrayReservoir);
+    MetricRegistry.MetricSupplier<Timer> timerMetricSupplier =
+        () -> new Timer(slidingTimeWindowArrayReservoir, timerClock());
     return internalRegistry.timer(metricName, timerMetricSupplier);
   }
 
+  @Override
+  public Timer newTimer(MetricName metricName, Clock clock) {
+    return internalRegistry.timer(metricName, () -> new Timer(newDefaultReservoir(clock), clock));
+  }
+
+  private Clock timerClock() {
+    return coarseClock == null ? clock : coarseClock;
+  }
+
+  private static Reservoir newDefaultReservoir(Clock clock) {
+    // same size and alpha as Dropwizard's default reservoir
+    return new ExponentiallyDecayingReservoir(1028, 0.015, clock);
+  }
+
+  private Supplier<Long> histogramClock() {
+    return coarseClock == null ? System::currentTimeMillis : coarseClock.millis();
+  }
+
+  @Override
+  public Timer newTimer(MetricName metricName, SamplingPolicy samplingPolicy) {
+    Timer timer = internalRegistry.timer(metricName, () -> new SampledTimer(
+        newDefaultReservoir(timerClock()), samplingPolicy.newSampler(), timerClock()));
+    if (timer instanceof SampledTimer) {
+      SampledTimer sampledTimer = (SampledTimer) timer;
+      internalRegistry.gauge(metricName.resolve("sampling_rate"),
+          () -> sampledTimer::getSamplingRate);
+    }
+    return timer;
+  }
+
+  @Override
+  public Timer newTimer(MetricName metricName, IntervalHdrReservoir reservoir) {
+    return internalRegistry.timer(metricName, () -> new Timer(reservoir, timerClock()));
+  }
+
   @Override
   public Meter newMeter(MetricName metricName) {
     return internalRegistry.meter(metricName);
   }
 
+  @Override
+  public LightweightMeter newLightweightMeter(MetricName metricName) {
+    Meter meter = internalRegistry.meter(metricName, LightweightMeter::new);
+    if (!(meter instanceof LightweightMeter)) {
+      throw new IllegalStateException("Existing metric of type: Meter found registered to " +
+          "metricName: " + metricName);
+    }
+    return (LightweightMeter) meter;
+  }
+
+  @Override
+  public HeavyHitters newHeavyHitters(MetricName metricName, String tagKey, int topK) {
+    return HeavyHitters.get(internalRegistry, metricName, tagKey, topK);
+  }
+
+  @Override
+  public DistinctCounter newDistinctCounter(MetricName metricName) {
+    return newDistinctCounter(metricName, DistinctCounter.DEFAULT_PRECISION);
+  }
+
+  @Override
+  public DistinctCounter newDistinctCounter(MetricName metricName, int precision) {
+    Gauge<?> gauge = internalRegistry.gauge(metricName, () -> new DistinctCounter(precision));
+    if (!(gauge instanceof DistinctCounter)) {
+      throw new IllegalStateException("Existing metric of type: Gauge found registered to " +
+          "metricName: " + metricName);
+    }
+    return (DistinctCounter) gauge;
+  }
+
   @Override
   public WavefrontHistogram newWavefrontHistogram(MetricName metricName) {
-    return WavefrontHistogram.get(internalRegistry, metricName);
+    return WavefrontHistogram.get(internalRegistry, metricName, histogramClock());
   }
 
   @Override
@@ -485,6 +1998,59 @@ public class WavefrontInternalReporter implements Reporter, EntitiesInstantiator
     return WavefrontHistogram.get(internalRegistry, metricName, clock);
   }
 
+  @Override
+  public WavefrontHistogram newWavefrontHistogram(MetricName metricName, Supplier<Long> clock,
+                                                  RecordingMode recordingMode) {
+    if (recordingMode == RecordingMode.COMPACT) {
+      return WavefrontHistogram.getWithRecorder(internalRegistry, metricName,
+          () -> getCompactHistogramStore().newRecorder(clock));
+    }
+    return WavefrontHistogram.get(internalRegistry, metricName, clock, recordingMode);
+  }
+
+  @Override
+  public WavefrontHistogram newWavefrontHistogram(MetricName metricName,
+                                                  SamplingPolicy samplingPolicy) {
+    WavefrontHistogram histogram = WavefrontHistogram.get(internalRegistry, metricName,
+        histogramClock(), samplingPolicy);
+    internalRegistry.gauge(metricName.resolve("count"), () -> histogram::getCount);
+    internalRegistry.gauge(metricName.resolve("sampling_rate"), () -> histogram::getSamplingRate);
+    return histogram;
+  }
+
+  private SlabDistributionStore getCompactHistogramStore() {
+    SlabDistributionStore store = compactHistogramStore;
+    if (store == null) {
+      synchronized (this) {
+        store = compactHistogramStore;
+        if (store == null) {
+          store = new SlabDistributionStore(compactHistogramCompression);
+          compactHistogramStore = store;
+        }
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Record a finished span into the rate, error and duration metrics of its operation. Only the
+   * arguments are copied into a buffer of the calling thread, which the reporter drains at the
+   * start of every reporting cycle. Ignored unless span metrics are enabled with
+   * {@link Builder#reportSpanMetrics(int)}.
+   *
+   * @param application    application of the span
+   * @param service        service of the span
+   * @param operationName  operation of the span
+   * @param durationMicros duration of the span in microseconds
+   * @param error          whether the span reports an error
+   */
+  public void reportSpan(String application, String service, String operationName,
+                         long durationMicros, boolean error) {
+    if (spanMetrics != null) {
+      spanMetrics.record(application, service, operationName, durationMicros, error);
+    }
+  }
+
   @Override
   public int getFailureCount() {
     return wavefrontSender.getFailureCount();
@@ -0,0 +1,181 @@
+package io.dropwizard.metrics5;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Gauge of the number of distinct values added to it, e.g. users or sessions, estimated in fixed
+ * memory with a HyperLogLog sketch. The reporter reports the estimate once per reporting cycle and
+ * clears the sketch, so that every point counts the distinct values of one cycle.
+ *
+ * <p>Values are added by their 64-bit hash, which must be uniformly distributed: {@link #hash}
+ * mixes the bits of identifiers that are not. The sketch holds {@code 2^precision} one-byte
+ * registers, packed four to an int, and the relative standard error of the estimate is about
+ * {@code 1.04 / sqrt(2^precision)}, i.e. 0.8% with the default precision of 14. A register is
+ * only written when a hash raises it, with compare-and-set, so that adding a value that was
+ * already seen is a single read.
+ *
+ * <p>Sketches of shards of the same population can be merged with {@link #merge} before they are
+ * reported, or rolled up by the reporter when their names only differ by the rolled-up tags.
+ */
+public class DistinctCounter implements Gauge<Long> {
+
+  public static final int DEFAULT_PRECISION = 14;
+  public static final int MIN_PRECISION = 4;
+  public static final int MAX_PRECISION = 18;
+
+  private final int precision;
+  private final int registerCount;
+  // register i in bits 8 * (i % 4) to 8 * (i % 4) + 7 of int i / 4
+  private final AtomicIntegerArray registers;
+
+  public DistinctCounter() {
+    this(DEFAULT_PRECISION);
+  }
+
+  /**
+   * @param precision base-2 logarithm of the number of registers, from {@link #MIN_PRECISION} to
+   *                  {@link #MAX_PRECISION}
+   */
+  public DistinctCounter(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException("precision must be between " + MIN_PRECISION + " and " +
+          MAX_PRECISION);
+    }
+    this.precision = precision;
+    this.registerCount = 1 << precision;
+    this.registers = new AtomicIntegerArray(registerCount / 4);
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  /**
+   * Returns a uniformly distributed 64-bit hash of the given identifier.
+   */
+  public static long hash(long value) {
+    // finalizer of MurmurHash3
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+
+  /**
+   * Add the value with the given uniformly distributed 64-bit hash.
+   */
+  public void add(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // the guard bit bounds the rank when the remaining bits are all zero
+    int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+    raise(index, rank);
+  }
+
+  private void raise(int index, int rank) {
+    int word = index >>> 2;
+    int shift = (index & 3) << 3;
+    while (true) {
+      int current = registers.get(word);
+      if (((current >>> shift) & 0xff) >= rank) {
+        return;
+      }
+      int updated = (current & ~(0xff << shift)) | (rank << shift);
+      if (registers.compareAndSet(word, current, updated)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Merge the values added to {@code other} into this sketch. The other sketch must have at
+   * least the precision of this one.
+   */
+  public void merge(DistinctCounter other) {
+    mergeFrom(other, false);
+  }
+
+  /**
+   * Merge the values added to this sketch into {@code target} and clear this sketch. Values added
+   * concurrently are either merged or kept.
+   */
+  public void flushInto(DistinctCounter target) {
+    target.mergeFrom(this, true);
+  }
+
+  private void mergeFrom(DistinctCounter other, boolean clear) {
+    if (other.precision < precision) {
+      throw new IllegalArgumentException("Cannot merge a sketch of precision " +
+          other.precision + " into a sketch of precision " + precision);
+    }
+    int extraBits = other.precision - precision;
+    for (int word = 0; word < other.registers.length(); word++) {
+      int packed = clear ? other.registers.getAndSet(word, 0) : other.registers.get(word);
+      for (int i = 0; packed != 0; i++, packed >>>= 8) {
+        int rank = packed & 0xff;
+        if (rank == 0) {
+          continue;
+        }
+        int otherIndex = (word << 2) + i;
+        int index = otherIndex >>> extraBits;
+        if (extraBits > 0) {
+          // the index bits dropped by this sketch are the leading bits of its remaining hash
+          int dropped = otherIndex & ((1 << extraBits) - 1);
+          rank = dropped == 0 ? rank + extraBits :
+              Integer.numberOfLeadingZeros(dropped) - (32 - extraBits) + 1;
+        }
+        raise(index, rank);
+      }
+    }
+  }
+
+  /**
+   * Returns the estimated number of distinct values added since the sketch was last cleared.
+   */
+  @Override
+  public Long getValue() {
+    return estimate(false);
+  }
+
+  /**
+   * Returns the estimated number of distinct values added since the sketch was last cleared, and
+   * clear it.
+   */
+  public long flush() {
+    return estimate(true);
+  }
+
+  private long estimate(boolean clear) {
+    double sum = 0;
+    int zeros = 0;
+    for (int word = 0; word < registers.length(); word++) {
+      int packed = clear ? registers.getAndSet(word, 0) : registers.get(word);
+      for (int i = 0; i < 4; i++, packed >>>= 8) {
+        int rank = packed & 0xff;
+        // 2^-rank
+        sum += Double.longBitsToDouble((1023L - rank) << 52);
+        if (rank == 0) {
+          zeros++;
+        }
+      }
+    }
+    return estimate(sum, zeros);
+  }
+
+  /**
+   * @param sum   sum of 2^-rank over all registers
+   * @param zeros number of registers still zero
+   */
+  private long estimate(double sum, int zeros) {
+    double m = registerCount;
+    double alpha = registerCount == 16 ? 0.673 : registerCount == 32 ? 0.697 :
+        registerCount == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is more accurate for small cardinalities
+      estimate = m * Math.log(m / zeros);
+    }
+    return Math.round(estimate);
+  }
+}
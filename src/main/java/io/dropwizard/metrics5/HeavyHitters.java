@@ -0,0 +1,230 @@
+package io.dropwizard.metrics5;
+
+import com.wavefront.sdk.common.Constants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delta counter of events that also tracks the keys, e.g. tenants or URLs, accounting for most of
+ * them, whatever the number of distinct keys. Each reporting cycle the top keys are reported as
+ * delta counters tagged with the key, and the remaining events as a delta counter tagged
+ * {@code other}, so that the counts of all reported series add up to the count of events.
+ *
+ * <p>Keys are tracked in a fixed-size HeavyKeeper sketch: every key hashes to one bucket in each of
+ * two rows, holding a fingerprint and a count. The first row is indexed by {@link
+ * String#hashCode()}, the second row and the fingerprint by an independent 64-bit hash. A bucket
+ * owned by another key is decayed with a probability that falls exponentially with its count, and
+ * taken over once its count reaches zero, so that frequent keys keep their buckets and infrequent
+ * ones do not. Buckets are updated with compare-and-set and counts are never overestimated beyond
+ * fingerprint collisions. The sketch is cleared every time it is reported.
+ */
+public class HeavyHitters extends DeltaCounter {
+
+  public static final String OTHER = "other";
+
+  private static final int ROWS = 2;
+  private static final double DECAY = 1.08;
+  // probability of decaying a bucket by count, negligible beyond
+  private static final double[] DECAY_PROBABILITY = new double[256];
+  private static final long COUNT_MASK = 0xffffffffL;
+
+  static {
+    for (int count = 0; count < DECAY_PROBABILITY.length; count++) {
+      DECAY_PROBABILITY[count] = Math.pow(DECAY, -count);
+    }
+  }
+
+  private final String tagKey;
+  private final int topK;
+  private final int width;
+  // fingerprint in the high 32 bits, count in the low 32 bits
+  private final AtomicLongArray buckets;
+  private final AtomicReferenceArray<String> keys;
+
+  public static synchronized HeavyHitters get(MetricRegistry registry, MetricName metricName,
+                                              String tagKey, int topK) {
+    if (registry == null || metricName == null || metricName.getKey().isEmpty()) {
+      throw new IllegalArgumentException("Invalid arguments");
+    }
+
+    if (!metricName.getKey().startsWith(Constants.DELTA_PREFIX) &&
+        !metricName.getKey().startsWith(Constants.DELTA_PREFIX_2)) {
+      metricName = new MetricName(Constants.DELTA_PREFIX + metricName.getKey(),
+          metricName.getTags());
+    }
+    HeavyHitters heavyHitters = new HeavyHitters(tagKey, topK);
+    try {
+      return registry.register(metricName, heavyHitters);
+    } catch(IllegalArgumentException e) {
+      Counter existing = registry.counter(metricName);
+      if (existing instanceof HeavyHitters) {
+        return (HeavyHitters) existing;
+      } else {
+        throw new IllegalStateException("Existing metric of type: Counter found registered to " +
+            "metricName: " + metricName);
+      }
+    }
+  }
+
+  /**
+   * @param tagKey point tag key under which keys are reported
+   * @param topK   number of keys reported every cycle
+   */
+  public HeavyHitters(String tagKey, int topK) {
+    if (tagKey == null || tagKey.isEmpty()) {
+      throw new IllegalArgumentException("tagKey must not be empty");
+    }
+    if (topK < 1) {
+      throw new IllegalArgumentException("topK must be positive");
+    }
+    this.tagKey = tagKey;
+    this.topK = topK;
+    // eight buckets per reported key in each row leave room for keys competing for the top
+    this.width = Integer.highestOneBit(Math.max(64, topK * 8) - 1) << 1;
+    this.buckets = new AtomicLongArray(ROWS * width);
+    this.keys = new AtomicReferenceArray<>(ROWS * width);
+  }
+
+  public String getTagKey() {
+    return tagKey;
+  }
+
+  public int getTopK() {
+    return topK;
+  }
+
+  /**
+   * Count an event of the given key.
+   */
+  public void add(String key) {
+    add(key, 1);
+  }
+
+  /**
+   * Count {@code n} events of the given key. Events without a key are only reported as
+   * {@code other}.
+   */
+  public void add(String key, long n) {
+    if (n <= 0) {
+      return;
+    }
+    inc(n);
+    if (key == null) {
+      return;
+    }
+    long mix = mix(key);
+    long fingerprint = fingerprint(mix);
+    update(index(key.hashCode() * 0x9E3779B9), key, fingerprint, n);
+    update(width + index((int) mix), key, fingerprint, n);
+  }
+
+  /**
+   * 64-bit hash of the UTF-16 chars of the key, independent of {@link String#hashCode()} so that
+   * keys colliding in the first row are told apart by the second row and the fingerprint.
+   */
+  private static long mix(String key) {
+    long hash = 0x9E3779B97F4A7C15L ^ key.length();
+    for (int i = 0; i < key.length(); i++) {
+      hash = (hash ^ key.charAt(i)) * 0xFF51AFD7ED558CCDL;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  /**
+   * Never zero, so that a bucket that was never owned is told apart from an owned one.
+   */
+  private static long fingerprint(long mix) {
+    return (mix >>> 32) | 1L;
+  }
+
+  private int index(int hash) {
+    return (hash ^ (hash >>> 15)) & (width - 1);
+  }
+
+  private void update(int index, String key, long fingerprint, long n) {
+    while (true) {
+      long bucket = buckets.get(index);
+      long count = bucket & COUNT_MASK;
+      if (count == 0 || bucket >>> 32 == fingerprint) {
+        long updated = (fingerprint << 32) | Math.min(count + n, COUNT_MASK);
+        if (buckets.compareAndSet(index, bucket, updated)) {
+          if (count == 0) {
+            keys.set(index, key);
+          }
+          return;
+        }
+        continue;
+      }
+      if (count >= DECAY_PROBABILITY.length ||
+          ThreadLocalRandom.current().nextDouble() >= DECAY_PROBABILITY[(int) count]) {
+        return;
+      }
+      // a bucket decayed to zero is taken over by this key
+      long decayed = count == 1 ? (fingerprint << 32) | Math.min(n, COUNT_MASK) : bucket - 1;
+      if (buckets.compareAndSet(index, bucket, decayed)) {
+        if (count == 1) {
+          keys.set(index, key);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Clear the sketch and return the top keys with their counts since the previous call, in
+   * decreasing order of counts.
+   */
+  public Map<String, Long> flushTop() {
+    Map<String, Long> counts = new HashMap<>();
+    for (int index = 0; index < buckets.length(); index++) {
+      long bucket = buckets.getAndSet(index, 0);
+      long count = bucket & COUNT_MASK;
+      if (count == 0) {
+        continue;
+      }
+      String key = keys.get(index);
+      // the key of a bucket that was just taken over may not be set yet
+      if (key != null && fingerprint(mix(key)) == bucket >>> 32) {
+        counts.merge(key, count, Math::max);
+      }
+    }
+    if (counts.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    PriorityQueue<Map.Entry<String, Long>> top =
+        new PriorityQueue<>(topK + 1, Map.Entry.comparingByValue());
+    for (Map.Entry<String, Long> entry : counts.entrySet()) {
+      top.add(entry);
+      if (top.size() > topK) {
+        top.poll();
+      }
+    }
+    List<Map.Entry<String, Long>> sorted = new ArrayList<>(top);
+    sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> entry : sorted) {
+      result.put(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Returns the name of the series reporting the given key.
+   */
+  public MetricName keyed(MetricName metricName, String key) {
+    Map<String, String> tags = new HashMap<>(metricName.getTags());
+    tags.put(tagKey, key);
+    return new MetricName(metricName.getKey(), tags);
+  }
+}
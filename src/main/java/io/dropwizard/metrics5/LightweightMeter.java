@@ -0,0 +1,114 @@
+package io.dropwizard.metrics5;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link Meter} that only counts marks in a striped counter: marking neither reads the clock
+ * nor updates moving averages. Rates are computed when the meter is reported, from the counts
+ * and times of successive reports, and {@link #getOneMinuteRate()},
+ * {@link #getFiveMinuteRate()} and {@link #getFifteenMinuteRate()} return the rates as of the
+ * last report. The moving averages therefore advance once per reporting cycle rather than every 5
+ * seconds, and the meter is meant to be read by a single reporter.
+ */
+public class LightweightMeter extends Meter {
+
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final double ONE_MINUTE = TimeUnit.MINUTES.toNanos(1);
+  private static final double FIVE_MINUTES = TimeUnit.MINUTES.toNanos(5);
+  private static final double FIFTEEN_MINUTES = TimeUnit.MINUTES.toNanos(15);
+
+  private final LongAdder count = new LongAdder();
+  private final Clock clock;
+  private final long startTick;
+
+  // state of the last report, guarded by this
+  private long lastCount;
+  private long lastTick;
+  private boolean ticked;
+  private volatile double intervalRate;
+  private volatile double m1Rate;
+  private volatile double m5Rate;
+  private volatile double m15Rate;
+
+  public LightweightMeter() {
+    this(Clock.defaultClock());
+  }
+
+  public LightweightMeter(Clock clock) {
+    super(clock);
+    this.clock = clock;
+    this.startTick = clock.getTick();
+    this.lastTick = startTick;
+  }
+
+  @Override
+  public void mark() {
+    count.increment();
+  }
+
+  @Override
+  public void mark(long n) {
+    count.add(n);
+  }
+
+  @Override
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Update the rates with the marks counted since the previous call. Called by the reporter once
+   * per reporting cycle.
+   */
+  public synchronized void tick() {
+    long tick = clock.getTick();
+    long elapsed = tick - lastTick;
+    if (elapsed <= 0) {
+      return;
+    }
+    long current = count.sum();
+    double rate = (current - lastCount) * NANOS_PER_SECOND / elapsed;
+    if (ticked) {
+      m1Rate += (rate - m1Rate) * (1 - Math.exp(-elapsed / ONE_MINUTE));
+      m5Rate += (rate - m5Rate) * (1 - Math.exp(-elapsed / FIVE_MINUTES));
+      m15Rate += (rate - m15Rate) * (1 - Math.exp(-elapsed / FIFTEEN_MINUTES));
+    } else {
+      m1Rate = rate;
+      m5Rate = rate;
+      m15Rate = rate;
+      ticked = true;
+    }
+    intervalRate = rate;
+    lastCount = current;
+    lastTick = tick;
+  }
+
+  /**
+   * Returns the rate per second between the last two calls to {@link #tick()}.
+   */
+  public double getIntervalRate() {
+    return intervalRate;
+  }
+
+  @Override
+  public double getOneMinuteRate() {
+    return m1Rate;
+  }
+
+  @Override
+  public double getFiveMinuteRate() {
+    return m5Rate;
+  }
+
+  @Override
+  public double getFifteenMinuteRate() {
+    return m15Rate;
+  }
+
+  @Override
+  public double getMeanRate() {
+    long elapsed = clock.getTick() - startTick;
+    return elapsed <= 0 ? 0.0 : getCount() * NANOS_PER_SECOND / elapsed;
+  }
+}
@@ -0,0 +1,57 @@
+package io.dropwizard.metrics5;
+
+import com.wavefront.internal.histogram.Sampler;
+
+/**
+ * A {@link Timer} recording only a sample of its durations into its reservoir. Counts and rates
+ * remain exact since they are maintained by the timer itself for every update: its meter is still
+ * marked on every update, so sampling only saves the cost of updating the reservoir. Reservoirs
+ * take no weights, so the sampled durations are not weighted by the sampling rate.
+ */
+public class SampledTimer extends Timer {
+
+  private final Sampler sampler;
+
+  public SampledTimer(Reservoir reservoir, Sampler sampler) {
+    this(reservoir, sampler, Clock.defaultClock());
+  }
+
+  public SampledTimer(Reservoir reservoir, Sampler sampler, Clock clock) {
+    super(new SampledReservoir(reservoir, sampler), clock);
+    this.sampler = sampler;
+  }
+
+  /**
+   * Returns the fraction of durations currently recorded into the reservoir.
+   */
+  public double getSamplingRate() {
+    return sampler.getRate();
+  }
+
+  private static class SampledReservoir implements Reservoir {
+    private final Reservoir delegate;
+    private final Sampler sampler;
+
+    SampledReservoir(Reservoir delegate, Sampler sampler) {
+      this.delegate = delegate;
+      this.sampler = sampler;
+    }
+
+    @Override
+    public int size() {
+      return delegate.size();
+    }
+
+    @Override
+    public void update(long value) {
+      if (sampler.sample()) {
+        delegate.update(value);
+      }
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+      return delegate.getSnapshot();
+    }
+  }
+}
@@ -1,8 +1,14 @@
 package io.dropwizard.metrics5;
 
+import com.wavefront.internal.histogram.DistributionRecorder;
+import com.wavefront.internal.histogram.PerThreadDistributionRecorder;
+import com.wavefront.internal.histogram.RecordingMode;
+import com.wavefront.internal.histogram.SampledDistributionRecorder;
+import com.wavefront.internal.histogram.SamplingPolicy;
+import com.wavefront.internal.histogram.SharedDistributionRecorder;
+import com.wavefront.internal.histogram.SlabDistributionStore;
 import com.wavefront.sdk.entities.histograms.WavefrontHistogramImpl;
 
-import java.io.OutputStream;
 import java.util.List;
 import java.util.function.Supplier;
 
@@ -13,7 +19,7 @@ import java.util.function.Supplier;
  */
 public class WavefrontHistogram extends Histogram implements Metric {
 
-  private final WavefrontHistogramImpl delegate;
+  private final DistributionRecorder delegate;
 
   public static WavefrontHistogram get(MetricRegistry registry, MetricName metricName) {
     return get(registry, metricName, System::currentTimeMillis);
@@ -22,9 +28,41 @@ public class WavefrontHistogram extends Histogram implements Metric {
   public static WavefrontHistogram get(MetricRegistry registry,
                                        MetricName metricName,
                                        Supplier<Long> clock) {
+    return get(registry, metricName, clock, RecordingMode.SHARED);
+  }
+
+  public static WavefrontHistogram get(MetricRegistry registry,
+                                       MetricName metricName,
+                                       Supplier<Long> clock,
+                                       RecordingMode recordingMode) {
+    switch (recordingMode) {
+      case PER_THREAD:
+        return getWithRecorder(registry, metricName,
+            () -> new PerThreadDistributionRecorder(clock));
+      case COMPACT:
+        return getWithRecorder(registry, metricName,
+            () -> SlabDistributionStore.shared().newRecorder(clock));
+      case SHARED:
+      default:
+        return getWithRecorder(registry, metricName, () -> new SharedDistributionRecorder(clock));
+    }
+  }
+
+  public static WavefrontHistogram get(MetricRegistry registry,
+                                       MetricName metricName,
+                                       Supplier<Long> clock,
+                                       SamplingPolicy samplingPolicy) {
+    return getWithRecorder(registry, metricName, () -> new SampledDistributionRecorder(
+        new SharedDistributionRecorder(clock), samplingPolicy.newSampler()));
+  }
+
+  public static WavefrontHistogram getWithRecorder(MetricRegistry registry,
+                                                   MetricName metricName,
+                                                   Supplier<DistributionRecorder> recorder) {
     // Awkward construction trying to fit in with Dropwizard Histogram
     TDigestReservoir reservoir = new TDigestReservoir();
-    WavefrontHistogram tDigestHistogram = new WavefrontHistogram(reservoir, clock);
+    WavefrontHistogram tDigestHistogram = new WavefrontHistogram(reservoir,
+        recorder.get());
     reservoir.set(tDigestHistogram);
     try {
       return registry.register(metricName, tDigestHistogram);
@@ -39,9 +77,9 @@ public class WavefrontHistogram extends Histogram implements Metric {
     }
   }
 
-  private WavefrontHistogram(TDigestReservoir reservoir, Supplier<Long> clockMillis) {
+  private WavefrontHistogram(TDigestReservoir reservoir, DistributionRecorder delegate) {
     super(reservoir);
-    delegate = new WavefrontHistogramImpl(clockMillis);
+    this.delegate = delegate;
   }
 
   @Override
@@ -65,82 +103,70 @@ public class WavefrontHistogram extends Histogram implements Metric {
 
   @Override
   public Snapshot getSnapshot() {
-    final WavefrontHistogramImpl.Snapshot delegateSnapshot = delegate.getSnapshot();
-
-    return new Snapshot() {
-      @Override
-      public double getMedian() {
-        return getValue(.50);
-      }
-
-      @Override
-      public double get75thPercentile() {
-        return getValue(.75);
-      }
-
-      @Override
-      public double get95thPercentile() {
-        return getValue(.95);
-      }
-
-      @Override
-      public double get98thPercentile() {
-        return getValue(.98);
-      }
-
-      @Override
-      public double get99thPercentile() {
-        return getValue(.99);
-      }
-
-      @Override
-      public double get999thPercentile() {
-        return getValue(.999);
-      }
-
-      @Override
-      public long getMax() {
-        return Math.round(delegateSnapshot.getMax());
-      }
+    return delegate.getSnapshot();
+  }
 
-      @Override
-      public double getMean() {
-        return delegateSnapshot.getMean();
-      }
+  /**
+   * Returns the fraction of values recorded into distributions, 1 unless the histogram was
+   * created with a {@link SamplingPolicy}.
+   */
+  public double getSamplingRate() {
+    return delegate.getSamplingRate();
+  }
 
-      @Override
-      public long getMin() {
-        return (long) delegateSnapshot.getMin();
-      }
+  public List<WavefrontHistogramImpl.Distribution> flushDistributions() {
+    return delegate.flushDistributions();
+  }
 
-      @Override
-      public double getStdDev() {
-        return delegate.stdDev();
-      }
+  /**
+   * Returns whether {@link #merge(List)} is supported, i.e. always unless the histogram was
+   * created with a custom {@link DistributionRecorder}.
+   */
+  public boolean supportsMerge() {
+    return delegate.supportsMerge();
+  }
 
-      @Override
-      public void dump(OutputStream outputStream) {
-      }
+  /**
+   * Merge distributions recorded by another histogram, e.g. in another process and transferred
+   * with {@link com.wavefront.internal.histogram.DistributionCodec}, so that they are reported as
+   * part of this histogram. Supported in every {@link RecordingMode}.
+   *
+   * @param distributions distributions to merge
+   */
+  public void merge(List<WavefrontHistogramImpl.Distribution> distributions) {
+    delegate.merge(distributions);
+  }
 
-      @Override
-      public double getValue(double quantile) {
-        return delegateSnapshot.getValue(quantile);
-      }
+  /**
+   * Returns whether {@link #peekDistributions()} is supported, i.e. always unless the histogram
+   * was created with a custom {@link DistributionRecorder}.
+   */
+  public boolean supportsPeek() {
+    return delegate.supportsPeek();
+  }
 
-      @Override
-      public long[] getValues() {
-        return new long[0];
-      }
+  /**
+   * Returns the distributions of all minute bins including the current one without flushing
+   * them. Supported in every {@link RecordingMode}.
+   */
+  public List<WavefrontHistogramImpl.Distribution> peekDistributions() {
+    return delegate.peekDistributions();
+  }
 
-      @Override
-      public int size() {
-        return delegateSnapshot.getSize();
-      }
-    };
+  /**
+   * Flush all minute bins including the current one, for a final report before shutting down.
+   */
+  public List<WavefrontHistogramImpl.Distribution> flushAllDistributions() {
+    return delegate.flushAllDistributions();
   }
 
-  public List<WavefrontHistogramImpl.Distribution> flushDistributions() {
-    return delegate.flushDistributions();
+  /**
+   * Discard the minute bins that have not been flushed and release the storage held for them,
+   * e.g. the off-heap slots of a histogram recording in {@link RecordingMode#COMPACT} mode, once
+   * the histogram is no longer reported.
+   */
+  public void release() {
+    delegate.release();
   }
 
   private static class TDigestReservoir implements Reservoir {
@@ -0,0 +1,163 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.EntitiesInstantiator;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import io.dropwizard.metrics5.DeltaCounter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.WavefrontHistogram;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Aggregates JDK Flight Recorder events into allocation, GC pause, safepoint and monitor
+ * contention metrics. Events are consumed through JFR event streaming on a single thread owned
+ * by the recording stream, which updates delta counters and Wavefront histograms registered with
+ * the reporter. Stack traces are never recorded.
+ */
+class JfrMetricsSource implements Closeable {
+  private static final Logger logger =
+      Logger.getLogger(JfrMetricsSource.class.getCanonicalName());
+
+  private static final String PREFIX = "jvm.jfr.";
+  private static final String OTHER = "other";
+
+  /**
+   * Bound on the number of distinct values of a tag, further values are reported as "other".
+   */
+  private static final int MAX_TAG_VALUES = 64;
+
+  private static final Pattern DIGITS = Pattern.compile("\\d+");
+
+  private final EntitiesInstantiator entitiesInstantiator;
+  private final DeltaCounter allocatedBytes;
+  private final WavefrontHistogram safepointSync;
+
+  // Only accessed by the recording stream thread.
+  private final Map<String, DeltaCounter> allocatedBytesByThread = new HashMap<>();
+  private final Map<String, WavefrontHistogram> gcPauses = new HashMap<>();
+  private final Map<String, WavefrontHistogram> safepointOperations = new HashMap<>();
+  private final Map<String, WavefrontHistogram> monitorBlocked = new HashMap<>();
+
+  private RecordingStream stream;
+
+  JfrMetricsSource(EntitiesInstantiator entitiesInstantiator) {
+    this.entitiesInstantiator = entitiesInstantiator;
+    this.allocatedBytes = entitiesInstantiator.newDeltaCounter(
+        new MetricName(PREFIX + "allocation.bytes", new HashMap<>()));
+    this.safepointSync = entitiesInstantiator.newWavefrontHistogram(
+        new MetricName(PREFIX + "safepoint.sync.millis", new HashMap<>()));
+  }
+
+  /**
+   * Start consuming JFR events.
+   *
+   * @return whether JFR event streaming is supported by the running JVM
+   */
+  synchronized boolean start() {
+    if (stream != null) {
+      return true;
+    }
+    try {
+      stream = new RecordingStream();
+    } catch (RuntimeException | Error e) {
+      // JFR can be unavailable (e.g. disabled or not built into the runtime)
+      logger.log(Level.INFO, "JFR event streaming is not available", e);
+      return false;
+    }
+    stream.setMaxAge(Duration.ofMinutes(1));
+    // allocation samples are throttled by the JVM itself (Java 16+, ignored before)
+    stream.enable("jdk.ObjectAllocationSample").with("throttle", "150/s").withoutStackTrace();
+    stream.enable("jdk.GarbageCollection");
+    stream.enable("jdk.SafepointBegin");
+    stream.enable("jdk.ExecuteVMOperation").withThreshold(Duration.ZERO);
+    stream.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ofMillis(10))
+        .withoutStackTrace();
+    stream.onEvent("jdk.ObjectAllocationSample", this::onAllocationSample);
+    stream.onEvent("jdk.GarbageCollection", this::onGarbageCollection);
+    stream.onEvent("jdk.SafepointBegin", this::onSafepointBegin);
+    stream.onEvent("jdk.ExecuteVMOperation", this::onVmOperation);
+    stream.onEvent("jdk.JavaMonitorEnter", this::onMonitorEnter);
+    stream.setReuse(true);
+    stream.setOrdered(false);
+    stream.startAsync();
+    return true;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (stream != null) {
+      stream.close();
+      stream = null;
+    }
+  }
+
+  private void onAllocationSample(RecordedEvent event) {
+    long weight = event.getLong("weight");
+    allocatedBytes.inc(weight);
+    RecordedThread thread = event.getThread();
+    String threadName = thread == null || thread.getJavaName() == null ? OTHER :
+        DIGITS.matcher(thread.getJavaName()).replaceAll("#");
+    bounded(allocatedBytesByThread, threadName, name -> entitiesInstantiator.newDeltaCounter(
+        new MetricName(PREFIX + "allocation.thread.bytes", tag("thread", name)))).inc(weight);
+  }
+
+  private void onGarbageCollection(RecordedEvent event) {
+    bounded(gcPauses, event.getString("name"), name ->
+        entitiesInstantiator.newWavefrontHistogram(
+            new MetricName(PREFIX + "gc.pause.millis", tag("gc", name)))).
+        update(millis(event.getDuration("sumOfPauses")));
+  }
+
+  private void onSafepointBegin(RecordedEvent event) {
+    safepointSync.update(millis(event.getDuration()));
+  }
+
+  private void onVmOperation(RecordedEvent event) {
+    if (!event.getBoolean("safepoint")) {
+      return;
+    }
+    bounded(safepointOperations, event.getString("operation"), name ->
+        entitiesInstantiator.newWavefrontHistogram(
+            new MetricName(PREFIX + "safepoint.operation.millis", tag("operation", name)))).
+        update(millis(event.getDuration()));
+  }
+
+  private void onMonitorEnter(RecordedEvent event) {
+    RecordedClass monitorClass = event.getClass("monitorClass");
+    bounded(monitorBlocked, monitorClass == null ? OTHER : monitorClass.getName(), name ->
+        entitiesInstantiator.newWavefrontHistogram(
+            new MetricName(PREFIX + "monitor.blocked.millis", tag("class", name)))).
+        update(millis(event.getDuration()));
+  }
+
+  private static <T> T bounded(Map<String, T> metrics, String tagValue,
+                               Function<String, T> factory) {
+    T metric = metrics.get(tagValue);
+    if (metric == null) {
+      String key = tagValue == null || metrics.size() >= MAX_TAG_VALUES ? OTHER : tagValue;
+      metric = metrics.computeIfAbsent(key, factory);
+    }
+    return metric;
+  }
+
+  private static Map<String, String> tag(String key, String value) {
+    Map<String, String> tags = new HashMap<>();
+    tags.put(key, value);
+    return tags;
+  }
+
+  private static double millis(Duration duration) {
+    return duration.toNanos() / 1_000_000d;
+  }
+}
@@ -0,0 +1,44 @@
+package com.wavefront.internal.reporter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Atomic access to the longs and ints of a memory-mapped file, shared by every process mapping
+ * it. Values are stored in native byte order and offsets must be aligned to the size of the
+ * value.
+ */
+class MappedLongs {
+  private static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private static final VarHandle INTS =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+  private final MappedByteBuffer buffer;
+
+  MappedLongs(MappedByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  long getVolatile(int offset) {
+    return (long) LONGS.getVolatile(buffer, offset);
+  }
+
+  long getAndAdd(int offset, long delta) {
+    return (long) LONGS.getAndAdd(buffer, offset, delta);
+  }
+
+  boolean compareAndSet(int offset, long expected, long value) {
+    return LONGS.compareAndSet(buffer, offset, expected, value);
+  }
+
+  int getIntVolatile(int offset) {
+    return (int) INTS.getVolatile(buffer, offset);
+  }
+
+  boolean compareAndSetInt(int offset, int expected, int value) {
+    return INTS.compareAndSet(buffer, offset, expected, value);
+  }
+}
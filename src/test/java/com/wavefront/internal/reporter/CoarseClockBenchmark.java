@@ -0,0 +1,148 @@
+package com.wavefront.internal.reporter;
+
+import com.wavefront.internal.histogram.RecordingMode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+import io.dropwizard.metrics5.Clock;
+import io.dropwizard.metrics5.ExponentiallyDecayingReservoir;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.Timer;
+import io.dropwizard.metrics5.WavefrontHistogram;
+
+/**
+ * Compares reading and timing with the OS clock to a {@link CoarseClock}, and reports the CPU
+ * used by the ticker thread of the coarse clock. Not a unit test: run it after
+ * {@code mvn test-compile} with
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *     com.wavefront.internal.reporter.CoarseClockBenchmark [resolutionMillis] [threads]
+ * </pre>
+ *
+ * <p>Each operation is warmed up, then timed over several rounds, and the median time per
+ * operation of every thread is printed. Defaults to a resolution of 1 ms and a single thread.
+ */
+public final class CoarseClockBenchmark {
+
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+  private static final int OPERATIONS_PER_ROUND = 2_000_000;
+
+  // folds the results of the operations so that they are not optimized away
+  private static volatile long sink;
+
+  private interface Operation {
+    long run(long i);
+  }
+
+  private CoarseClockBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Duration resolution = Duration.ofMillis(args.length > 0 ? Long.parseLong(args[0]) : 1);
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    CoarseClock coarseClock = CoarseClock.withResolution(resolution);
+    Clock preciseClock = Clock.defaultClock();
+    System.out.println("resolution " + resolution + ", " + threads + " thread(s)");
+
+    long tickerCpuStart = tickerCpuNanos();
+    long wallStart = System.nanoTime();
+
+    measure("getTick, precise", threads, i -> preciseClock.getTick());
+    measure("getTick, coarse", threads, i -> coarseClock.getTick());
+
+    Timer preciseTimer = new Timer(new ExponentiallyDecayingReservoir(1028, 0.015, preciseClock),
+        preciseClock);
+    Timer coarseTimer = new Timer(new ExponentiallyDecayingReservoir(1028, 0.015, coarseClock),
+        coarseClock);
+    measure("Timer.time().stop(), precise", threads, i -> preciseTimer.time().stop());
+    measure("Timer.time().stop(), coarse", threads, i -> coarseTimer.time().stop());
+
+    WavefrontHistogram preciseHistogram = newHistogram(System::currentTimeMillis);
+    WavefrontHistogram coarseHistogram = newHistogram(coarseClock.millis());
+    measure("per-thread WavefrontHistogram.update, precise", threads, i -> {
+      preciseHistogram.update(i & 1023);
+      return i;
+    });
+    measure("per-thread WavefrontHistogram.update, coarse", threads, i -> {
+      coarseHistogram.update(i & 1023);
+      return i;
+    });
+
+    long tickerCpu = tickerCpuNanos() - tickerCpuStart;
+    long wall = System.nanoTime() - wallStart;
+    System.out.printf("ticker thread CPU: %.1f%% of one core%n", 100.0 * tickerCpu / wall);
+    coarseClock.release();
+    System.out.println("(sink " + sink + ")");
+  }
+
+  private static WavefrontHistogram newHistogram(Supplier<Long> clock) {
+    return WavefrontHistogram.get(new MetricRegistry(),
+        new MetricName("benchmark", Collections.emptyMap()), clock, RecordingMode.PER_THREAD);
+  }
+
+  private static void measure(String name, int threads, Operation operation) throws Exception {
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      runRound(threads, operation);
+    }
+    double[] nanosPerOperation = new double[ROUNDS];
+    for (int round = 0; round < ROUNDS; round++) {
+      nanosPerOperation[round] = (double) runRound(threads, operation) / OPERATIONS_PER_ROUND;
+    }
+    Arrays.sort(nanosPerOperation);
+    System.out.printf("%-48s %8.1f ns/op (min %.1f, max %.1f)%n", name,
+        nanosPerOperation[ROUNDS / 2], nanosPerOperation[0], nanosPerOperation[ROUNDS - 1]);
+  }
+
+  /**
+   * Returns the wall time in nanoseconds for every thread to run the operation
+   * {@link #OPERATIONS_PER_ROUND} times.
+   */
+  private static long runRound(int threads, Operation operation) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<>(threads);
+    for (int t = 0; t < threads; t++) {
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        long result = 0;
+        for (long i = 0; i < OPERATIONS_PER_ROUND; i++) {
+          result += operation.run(i);
+        }
+        sink += result;
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return System.nanoTime() - startNanos;
+  }
+
+  private static long tickerCpuNanos() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    long total = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("wavefront-coarse-clock-")) {
+        total += Math.max(0, threadBean.getThreadCpuTime(thread.getId()));
+      }
+    }
+    return total;
+  }
+}